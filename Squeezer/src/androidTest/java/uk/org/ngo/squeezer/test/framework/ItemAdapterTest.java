@@ -1,7 +1,9 @@
 package uk.org.ngo.squeezer.test.framework;
 
 import android.test.ActivityInstrumentationTestCase2;
+import android.widget.ListView;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -179,6 +181,85 @@ public class ItemAdapterTest extends ActivityInstrumentationTestCase2<ArtistList
         }
     }
 
+    /**
+     * Pages are only evicted when pages are received, not by lookups, and items are moved within
+     * the held pages when an item is removed or inserted.
+     */
+    public void testEviction() {
+        artistItemAdapter.setMaxResidentPages(3);
+        for (int pos = 0; pos < artists.length; pos += pageSize) {
+            int end = Math.min(pos + pageSize, artists.length);
+            artistItemAdapter.update(artists.length, pos, Arrays.asList(artists).subList(pos, end));
+        }
+        int firstHeld = (artists.length / pageSize - 2) * pageSize;
+        for (int i = 0; i < artists.length; i++) {
+            assertEquals(i >= firstHeld ? artists[i] : null, artistItemAdapter.getItem(i));
+        }
+
+        // Walking the list doesn't evict the held pages
+        assertEquals(0, artistItemAdapter.findItem(artists[0]));
+        assertEquals(firstHeld, artistItemAdapter.findItem(artists[firstHeld]));
+        for (int i = 0; i < artists.length; i++) {
+            artistItemAdapter.isEnabled(i);
+            assertEquals(i >= firstHeld ? artists[i] : null, artistItemAdapter.getItem(i));
+        }
+
+        // Items move within the held pages, items which are not held are unknown
+        artistItemAdapter.removeItem(pageSize + 1);
+        assertEquals(artists.length - 1, artistItemAdapter.getCount());
+        for (int i = 0; i < artistItemAdapter.getCount(); i++) {
+            Artist artist = artistItemAdapter.getItem(i);
+            assertTrue(artist == null || artist == artists[i + 1]);
+        }
+        assertEquals(artists[firstHeld + 1], artistItemAdapter.getItem(firstHeld));
+        assertNull(artistItemAdapter.getItem(firstHeld - 1));
+
+        artistItemAdapter.insertItem(firstHeld, artists[firstHeld]);
+        assertEquals(artists.length, artistItemAdapter.getCount());
+        for (int i = firstHeld; i < artists.length; i++) {
+            assertEquals(artists[i], artistItemAdapter.getItem(i));
+        }
+    }
+
+    /**
+     * After the adapter is invalidated, only the pages which are shown are ordered again.
+     */
+    public void testRefreshOrdersVisiblePages() {
+        final List<Integer> orderedPages = new ArrayList<>();
+        artistItemAdapter = new ItemAdapter<Artist>(new ArtistView(getActivity())) {
+            @Override
+            protected void orderPage(int position) {
+                orderedPages.add(position / pageSize);
+            }
+        };
+        artistItemAdapter.update(artists.length, 0, Arrays.asList(artists));
+
+        artistItemAdapter.invalidate();
+        artistItemAdapter.findItem(artists[artists.length - 1]);
+        for (int i = 0; i < artists.length; i++) {
+            artistItemAdapter.getItem(i);
+            artistItemAdapter.isEnabled(i);
+        }
+        assertTrue(orderedPages.isEmpty());
+
+        final ListView listView = new ListView(getActivity());
+        getInstrumentation().runOnMainSync(() -> {
+            for (int i = pageSize + 2; i < pageSize + 6; i++) {
+                artistItemAdapter.getView(i, null, listView);
+            }
+        });
+        for (Integer page : orderedPages) {
+            assertEquals(1, page.intValue());
+        }
+        assertFalse(orderedPages.isEmpty());
+
+        // The shown pages are no longer out of date when they are received again
+        orderedPages.clear();
+        artistItemAdapter.update(artists.length, pageSize, Arrays.asList(artists).subList(pageSize, 2 * pageSize));
+        getInstrumentation().runOnMainSync(() -> artistItemAdapter.getView(pageSize + 2, null, listView));
+        assertTrue(orderedPages.isEmpty());
+    }
+
     private Artist[] getArtists() {
         int N = 109;
         Artist[] result = new Artist[N];
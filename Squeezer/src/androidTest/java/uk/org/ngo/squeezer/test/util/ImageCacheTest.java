@@ -16,9 +16,20 @@
 
 package uk.org.ngo.squeezer.test.util;
 
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
 import uk.org.ngo.squeezer.util.ImageCache;
+import uk.org.ngo.squeezer.util.JournalDiskCache;
 
 public class ImageCacheTest extends TestCase {
     /** Verify that hashKeyForDisk returns correct MD5 checksums. */
@@ -27,4 +38,62 @@ public class ImageCacheTest extends TestCase {
         assertEquals("37b51d194a7513e45b56f6524f2d51f2", ImageCache.hashKeyForDisk("bar"));
         assertEquals("73feffa4b7f6bb68e44cf984c85f6e88", ImageCache.hashKeyForDisk("baz"));
     }
+
+    /** Verify that scaled bitmaps are read back unchanged from the thumbnail cache. */
+    public void testThumbnailCache() {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "ImageCacheTest");
+        ImageCache imageCache = new ImageCache(new ImageCache.ImageCacheParams(dir));
+        imageCache.initDiskCache();
+        imageCache.clearCache();
+
+        Bitmap bitmap = Bitmap.createBitmap(20, 10, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        bitmap.setPixel(3, 4, Color.RED);
+        imageCache.addBitmapToThumbnailCache("20:10:foo", bitmap);
+
+        assertNull(imageCache.getBitmapFromThumbnailCache("10:10:foo"));
+        Bitmap cached = imageCache.getBitmapFromThumbnailCache("20:10:foo");
+        assertNotNull(cached);
+        assertTrue(bitmap.sameAs(cached));
+
+        imageCache.clearCache();
+        assertNull(imageCache.getBitmapFromThumbnailCache("20:10:foo"));
+        imageCache.close();
+    }
+
+    /** Verify that reads miss instead of waiting while the disk cache is being opened. */
+    public void testReadsDontWaitForInit() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "ImageCacheInitTest");
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ImageCache.ImageCacheParams params = new ImageCache.ImageCacheParams(dir);
+        params.diskCacheFactory = (directory, maxSize) -> {
+            opening.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return JournalDiskCache.FACTORY.open(directory, maxSize);
+        };
+        final ImageCache imageCache = new ImageCache(params);
+
+        Thread init = new Thread(imageCache::initDiskCache);
+        init.start();
+        try {
+            assertTrue(opening.await(10, TimeUnit.SECONDS));
+            FutureTask<byte[]> read = new FutureTask<>(() -> imageCache.getBytesFromDiskCache("foo"));
+            new Thread(read).start();
+            assertNull(read.get(10, TimeUnit.SECONDS));
+            assertNull(imageCache.editDiskCache("foo"));
+        } finally {
+            release.countDown();
+        }
+        init.join();
+
+        imageCache.addBytesToDiskCache("foo", new byte[]{1, 2, 3});
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, imageCache.getBytesFromDiskCache("foo")));
+        imageCache.clearCache();
+        imageCache.close();
+    }
 }
@@ -727,6 +727,11 @@ public class NowPlayingFragment extends Fragment {
         } else {
             ImageFetcher.getInstance(mActivity).loadImage(song.getIcon(), albumArt);
         }
+
+        // Let the service load the artwork of the upcoming tracks at this size
+        if (mFullHeightLayout && mService != null && albumArt.getWidth() > 0 && albumArt.getHeight() > 0) {
+            mService.setNowPlayingArtworkSize(albumArt.getWidth(), albumArt.getHeight());
+        }
     }
 
     /**
@@ -79,6 +79,9 @@ public final class Preferences {
     // Fade-in period? (0 = disable fade-in)
     public static final String KEY_FADE_IN_SECS = "squeezer.fadeInSecs";
 
+    // Maximum number of outstanding requests to the server
+    static final String KEY_PUBLISH_WINDOW = "squeezer.publish_window";
+
     // What do to when an album is selected in the list view
     private static final String KEY_ON_SELECT_ALBUM_ACTION = "squeezer.action.onselect.album";
 
@@ -328,6 +331,15 @@ public final class Preferences {
         editor.apply();
     }
 
+    /**
+     * Get the maximum number of requests which may be outstanding to the server at once.
+     * <p>
+     * The default is 1, i.e. wait for the reply to each request before sending the next.
+     */
+    public int getPublishWindow() {
+        return Util.getInt(sharedPreferences.getString(KEY_PUBLISH_WINDOW, null), 1);
+    }
+
     public boolean isAutoConnect() {
         return sharedPreferences.getBoolean(KEY_AUTO_CONNECT, true);
     }
@@ -103,6 +103,10 @@ public class SettingsActivity extends PreferenceActivity implements
                 Preferences.KEY_AUTO_CONNECT);
         autoConnectPref.setChecked(sharedPreferences.getBoolean(Preferences.KEY_AUTO_CONNECT, true));
 
+        ListPreference publishWindowPref = (ListPreference) findPreference(Preferences.KEY_PUBLISH_WINDOW);
+        publishWindowPref.setOnPreferenceChangeListener(this);
+        updateListPreferenceSummary(publishWindowPref, String.valueOf(preferences.getPublishWindow()));
+
         fillScrobblePreferences(sharedPreferences);
 
         fillDownloadPreferences(preferences);
@@ -274,6 +278,7 @@ public class SettingsActivity extends PreferenceActivity implements
         }
 
         if (Preferences.KEY_ON_THEME_SELECT_ACTION.equals(key) ||
+                Preferences.KEY_PUBLISH_WINDOW.equals(key) ||
                 Preferences.KEY_DOWNLOAD_PATH_STRUCTURE.equals(key) ||
                 Preferences.KEY_DOWNLOAD_FILENAME_STRUCTURE.equals(key)) {
             updateListPreferenceSummary((ListPreference) preference, (String) newValue);
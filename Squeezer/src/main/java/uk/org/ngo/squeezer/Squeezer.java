@@ -2,9 +2,12 @@ package uk.org.ngo.squeezer;
 
 
 import android.content.Context;
+import android.os.StrictMode;
 
 import androidx.multidex.MultiDexApplication;
 
+import uk.org.ngo.squeezer.util.AsyncTask;
+
 // Trick to make the app context useful available everywhere.
 // See http://stackoverflow.com/questions/987072/using-application-context-everywhere
 
@@ -23,6 +26,20 @@ public class Squeezer extends MultiDexApplication {
     @Override
     public void onCreate() {
         super.onCreate();
+
+        // Image loads may be started from the service's background threads, so make sure the
+        // results are delivered on the main thread.
+        AsyncTask.init();
+
+        // Blocking work belongs on the service executors, report any that runs on the main thread
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+        }
     }
 }
 
@@ -37,6 +37,8 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
+import uk.org.ngo.squeezer.util.Record;
+
 public class Util {
 
     /** {@link java.util.regex.Pattern} that splits strings on colon. */
@@ -117,11 +119,22 @@ public class Util {
     }
 
     public static long getLong(Map<String, Object> record, String fieldName, long defaultValue) {
+        if (record instanceof Record) {
+            return ((Record) record).getLong(fieldName, defaultValue);
+        }
         return getLong(record.get(fieldName), defaultValue);
     }
 
+    /**
+     * Numbers are converted by {@link Number#longValue()}, strings are parsed as decimal numbers,
+     * and the default is returned for any other type. {@link Record#getLong(String, long)} reads
+     * values the same way.
+     */
     public static long getLong(Object value, long defaultValue) {
-        return (value instanceof Number) ? ((Number)value).intValue() : parseDecimalInt((String) value, defaultValue);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return (value instanceof String) ? parseDecimalInt((String) value, defaultValue) : defaultValue;
     }
 
     public static int getInt(Map<String, Object> record, String fieldName) {
@@ -129,11 +142,15 @@ public class Util {
     }
 
     public static int getInt(Map<String, Object> record, String fieldName, int defaultValue) {
+        if (record instanceof Record) {
+            return ((Record) record).getInt(fieldName, defaultValue);
+        }
         return getInt(record.get(fieldName), defaultValue);
     }
 
+    /** @see #getLong(Object, long) */
     public static int getInt(Object value, int defaultValue) {
-        return (value instanceof Number) ? ((Number)value).intValue() : (int) parseDecimalInt((String) value, defaultValue);
+        return (int) getLong(value, defaultValue);
     }
 
     public static int getInt(Object value) {
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.download;
+
+import java.util.List;
+
+/**
+ * Executes a statement for many rows in as few transactions as possible, with a single compiled
+ * statement which is bound again for each row. Each transaction is committed with one sync of
+ * the database file, rather than one per row.
+ * <p>
+ * The database is accessed through {@link Database}, so the batching can be exercised without
+ * Android.
+ */
+class BatchWriter {
+    /**
+     * Maximum number of rows in one transaction, so a large batch doesn't hold the database lock
+     * for too long.
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /** The parts of {@link android.database.sqlite.SQLiteDatabase} used for batch writes. */
+    interface Database {
+        void beginTransaction();
+        void setTransactionSuccessful();
+        void endTransaction();
+        Statement compileStatement(String sql);
+    }
+
+    /** The parts of {@link android.database.sqlite.SQLiteStatement} used for batch writes. */
+    interface Statement {
+        void bindLong(int index, long value);
+        void bindString(int index, String value);
+        void clearBindings();
+        long executeInsert();
+        int executeUpdateDelete();
+        void close();
+    }
+
+    /** Binds the values of a row to the arguments of the statement. */
+    interface Binder<T> {
+        void bind(Statement statement, T row);
+    }
+
+    private BatchWriter() {
+    }
+
+    /**
+     * Insert the rows.
+     *
+     * @return The row ids of the inserted rows, -1 for rows which could not be inserted
+     */
+    static <T> long[] insert(Database db, String sql, List<T> rows, Binder<T> binder) {
+        long[] ids = new long[rows.size()];
+        execute(db, sql, rows, binder, ids);
+        return ids;
+    }
+
+    /**
+     * Execute an update or delete statement for the rows.
+     *
+     * @return The total number of rows affected
+     */
+    static <T> int updateDelete(Database db, String sql, List<T> rows, Binder<T> binder) {
+        return execute(db, sql, rows, binder, null);
+    }
+
+    private static <T> int execute(Database db, String sql, List<T> rows, Binder<T> binder, long[] ids) {
+        int affected = 0;
+        Statement statement = db.compileStatement(sql);
+        try {
+            for (int start = 0; start < rows.size(); start += MAX_BATCH_SIZE) {
+                int end = Math.min(rows.size(), start + MAX_BATCH_SIZE);
+                db.beginTransaction();
+                try {
+                    for (int i = start; i < end; i++) {
+                        statement.clearBindings();
+                        binder.bind(statement, rows.get(i));
+                        if (ids != null) {
+                            ids[i] = statement.executeInsert();
+                            if (ids[i] != -1) {
+                                affected++;
+                            }
+                        } else {
+                            affected += statement.executeUpdateDelete();
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return affected;
+    }
+}
@@ -23,6 +23,9 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.util.AsyncTask;
 
@@ -60,21 +63,32 @@ public class CancelDownloadsActivity extends Activity {
     static class CancelDownloadsTask extends AsyncTask<Void, Void, Void> {
         final DownloadDatabase downloadDatabase;
         final DownloadManager downloadManager;
+        final DownloadEngine downloadEngine;
 
         public CancelDownloadsTask(Context context) {
             downloadDatabase = new DownloadDatabase(context);
             downloadManager =(DownloadManager)context.getSystemService(Context.DOWNLOAD_SERVICE);
+            downloadEngine = DownloadEngine.getInstance(context);
         }
 
         @Override
         protected Void doInBackground(Void... params) {
+            downloadEngine.cancelAll();
+            final List<Long> downloadIds = new ArrayList<>();
             downloadDatabase.iterateDownloadEntries(new DownloadDatabase.DownloadHandler() {
                 @Override
                 public void handle(DownloadDatabase.DownloadEntry entry) {
-                    downloadManager.remove(entry.downloadId);
-                    downloadDatabase.remove(entry.downloadId);
+                    downloadIds.add(entry.downloadId);
                 }
             });
+            if (!downloadIds.isEmpty()) {
+                long[] ids = new long[downloadIds.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = downloadIds.get(i);
+                }
+                downloadManager.remove(ids);
+                downloadDatabase.remove(ids);
+            }
             return null;
         }
     }
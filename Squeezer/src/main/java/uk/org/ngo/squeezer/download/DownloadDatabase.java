@@ -21,21 +21,26 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Encapsulates the download database implementation
  */
-public class DownloadDatabase {
+public class DownloadDatabase implements DownloadScheduler.JobStore {
 
     private class DOWNLOAD_DATABASE {
         private static final String NAME = "download";
-        private static final int VERSION = 2;
+        private static final int VERSION = 5;
 
         private class SONG {
             private static final String TABLE = "download";
@@ -47,12 +52,35 @@ public class DownloadDatabase {
                 private static final String ALBUM_ART = "album_art";
             }
         }
+
+        private class JOB {
+            private static final String TABLE = "job";
+
+            private class COLUMNS {
+                private static final String ID = "_id";
+                private static final String URL = "url";
+                private static final String TITLE = "title";
+                private static final String ALBUM = "album";
+                private static final String ALBUM_ID = "album_id";
+                private static final String HOST = "host";
+                private static final String TEMP_NAME = "temp_name";
+                private static final String FILE_NAME = "file_name";
+                private static final String ALBUM_ART = "album_art";
+                private static final String STATE = "state";
+                private static final String BYTES = "bytes";
+                private static final String TOTAL = "total";
+                private static final String ATTEMPTS = "attempts";
+                private static final String RETRY_AT = "retry_at";
+            }
+        }
     }
 
     private final SQLiteDatabase db;
+    private final BatchWriter.Database batchDatabase;
 
     public DownloadDatabase(Context context) {
         db = OpenHelper.getInstance(context).getWritableDatabase();
+        batchDatabase = new BatchDatabase(db);
     }
 
     private static class OpenHelper  extends SQLiteOpenHelper {
@@ -93,6 +121,12 @@ public class DownloadDatabase {
 
         @Override
         public void onCreate(SQLiteDatabase sqLiteDatabase) {
+            createSongTable(sqLiteDatabase);
+            createSongIndex(sqLiteDatabase);
+            createJobTable(sqLiteDatabase);
+        }
+
+        private static void createSongTable(SQLiteDatabase sqLiteDatabase) {
             sqLiteDatabase.execSQL("CREATE TABLE " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
                     DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + " INTEGER, " +
                     DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME + " TEXT, " +
@@ -100,12 +134,74 @@ public class DownloadDatabase {
                     DOWNLOAD_DATABASE.SONG.COLUMNS.ALBUM_ART + " TEXT)");
         }
 
+        private static void createSongIndex(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE INDEX download_id ON " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
+                    DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ")");
+        }
+
+        private static void createJobTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + DOWNLOAD_DATABASE.JOB.TABLE + "(" +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.URL + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.TITLE + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.TEMP_NAME + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.FILE_NAME + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ART + " TEXT, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + " INTEGER, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.BYTES + " INTEGER, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.TOTAL + " INTEGER, " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.ATTEMPTS + " INTEGER)");
+            sqLiteDatabase.execSQL("CREATE INDEX job_state ON " + DOWNLOAD_DATABASE.JOB.TABLE + "(" +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + ")");
+            addJobScheduleColumns(sqLiteDatabase);
+        }
+
+        /**
+         * Add the columns used to select the jobs to start, and to group them by album. Existing
+         * jobs are grouped by the album name, as before.
+         */
+        private static void addJobScheduleColumns(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + DOWNLOAD_DATABASE.JOB.TABLE +
+                    " ADD COLUMN " + DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ID + " TEXT");
+            sqLiteDatabase.execSQL("ALTER TABLE " + DOWNLOAD_DATABASE.JOB.TABLE +
+                    " ADD COLUMN " + DOWNLOAD_DATABASE.JOB.COLUMNS.HOST + " TEXT");
+            sqLiteDatabase.execSQL("ALTER TABLE " + DOWNLOAD_DATABASE.JOB.TABLE +
+                    " ADD COLUMN " + DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + " INTEGER NOT NULL DEFAULT 0");
+
+            Cursor cursor = sqLiteDatabase.rawQuery("select " + DOWNLOAD_DATABASE.JOB.COLUMNS.ID + ", " +
+                    DOWNLOAD_DATABASE.JOB.COLUMNS.URL + " from " + DOWNLOAD_DATABASE.JOB.TABLE, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues contentValues = new ContentValues();
+                    contentValues.put(DOWNLOAD_DATABASE.JOB.COLUMNS.HOST, Uri.parse(cursor.getString(1)).getHost());
+                    sqLiteDatabase.update(DOWNLOAD_DATABASE.JOB.TABLE, contentValues, DOWNLOAD_DATABASE.JOB.COLUMNS.ID + "=?",
+                            new String[]{String.valueOf(cursor.getLong(0))});
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DOWNLOAD_DATABASE.SONG.TABLE);
-            // Upgrades just creates a new database. The database keeps track of
-            // active downloads, so it holds only temporary information.
-            onCreate(sqLiteDatabase);
+            if (oldVersion < 2) {
+                // The download table holds only temporary information, so just create it again
+                sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DOWNLOAD_DATABASE.SONG.TABLE);
+                createSongTable(sqLiteDatabase);
+            }
+            if (oldVersion < 3) {
+                // Keep the download table, so downloads already enqueued with DownloadManager
+                // are still moved in to place when they complete
+                createJobTable(sqLiteDatabase);
+            }
+            if (oldVersion < 4) {
+                createSongIndex(sqLiteDatabase);
+            }
+            if (oldVersion >= 3 && oldVersion < 5) {
+                // createJobTable adds the columns for older versions
+                addJobScheduleColumns(sqLiteDatabase);
+            }
         }
 
     }
@@ -119,12 +215,37 @@ public class DownloadDatabase {
      * @return False if we could not register the download
      */
     public boolean registerDownload(long downloadId, @NonNull String tempName, @NonNull String fileName, @NonNull Uri albumArtUrl) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID, downloadId);
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME, tempName);
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME, fileName);
-        contentValues.put(DOWNLOAD_DATABASE.SONG.COLUMNS.ALBUM_ART, albumArtUrl.toString());
-        return (db.insert(DOWNLOAD_DATABASE.SONG.TABLE, null, contentValues) != -1);
+        DownloadEntry entry = new DownloadEntry();
+        entry.downloadId = downloadId;
+        entry.tempName = tempName;
+        entry.fileName = fileName;
+        entry.albumArtUrl = albumArtUrl;
+        return registerDownloads(Collections.singletonList(entry));
+    }
+
+    /**
+     * Register download entries in one transaction.
+     *
+     * @return False if we could not register all the downloads
+     */
+    public boolean registerDownloads(@NonNull List<DownloadEntry> entries) {
+        long[] ids = BatchWriter.insert(batchDatabase, "insert into " + DOWNLOAD_DATABASE.SONG.TABLE + "(" +
+                        DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + ", " +
+                        DOWNLOAD_DATABASE.SONG.COLUMNS.TEMP_NAME + ", " +
+                        DOWNLOAD_DATABASE.SONG.COLUMNS.FILE_NAME + ", " +
+                        DOWNLOAD_DATABASE.SONG.COLUMNS.ALBUM_ART + ") values (?, ?, ?, ?)",
+                entries, (statement, entry) -> {
+                    statement.bindLong(1, entry.downloadId);
+                    statement.bindString(2, entry.tempName);
+                    statement.bindString(3, entry.fileName);
+                    statement.bindString(4, entry.albumArtUrl.toString());
+                });
+        for (long id : ids) {
+            if (id == -1) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -149,8 +270,7 @@ public class DownloadDatabase {
             cursor.close();
         }
         if (entry != null) {
-            db.delete(DOWNLOAD_DATABASE.SONG.TABLE, DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
-                    new String[]{String.valueOf(downloadId)});
+            remove(downloadId);
         }
 
         return entry;
@@ -176,17 +296,332 @@ public class DownloadDatabase {
         return entry;
     }
 
+    /**
+     * Unregister the downloads with the supplied ids, in one transaction.
+     */
     public void remove(long... downloadIds) {
+        List<Long> ids = new ArrayList<>(downloadIds.length);
+        for (long downloadId : downloadIds) {
+            ids.add(downloadId);
+        }
+        BatchWriter.updateDelete(batchDatabase, "delete from " + DOWNLOAD_DATABASE.SONG.TABLE +
+                " where " + DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
+                ids, (statement, downloadId) -> statement.bindLong(1, downloadId));
+    }
+
+    /**
+     * Add a download job in the {@link DownloadJob#QUEUED} state.
+     *
+     * @return The id of the job, or -1 if it could not be added
+     */
+    public long addJob(@NonNull DownloadJob job) {
+        addJobs(Collections.singletonList(job));
+        return job.id;
+    }
+
+    /**
+     * Add download jobs in the {@link DownloadJob#QUEUED} state, in one transaction. The id of
+     * each job is set, or -1 if it could not be added.
+     *
+     * @return The number of jobs added
+     */
+    public int addJobs(@NonNull List<DownloadJob> jobs) {
+        long[] ids = BatchWriter.insert(batchDatabase, "insert into " + DOWNLOAD_DATABASE.JOB.TABLE + "(" +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.URL + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.TITLE + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ID + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.HOST + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.TEMP_NAME + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.FILE_NAME + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ART + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.BYTES + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.TOTAL + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.ATTEMPTS + ", " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, 0, -1, 0, 0)",
+                jobs, (statement, job) -> {
+                    statement.bindString(1, job.url);
+                    bindString(statement, 2, job.title);
+                    bindString(statement, 3, job.album);
+                    bindString(statement, 4, job.albumId);
+                    bindString(statement, 5, job.host);
+                    statement.bindString(6, job.tempName);
+                    statement.bindString(7, job.fileName);
+                    statement.bindString(8, job.albumArtUrl.toString());
+                    statement.bindLong(9, DownloadJob.QUEUED);
+                });
+        int added = 0;
+        for (int i = 0; i < ids.length; i++) {
+            DownloadJob job = jobs.get(i);
+            job.id = ids[i];
+            job.state = DownloadJob.QUEUED;
+            job.bytes = 0;
+            job.total = -1;
+            job.attempts = 0;
+            job.retryAt = 0;
+            if (job.id != -1) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Store the state, byte offset, size, number of attempts and retry time of the job.
+     */
+    @Override
+    public void updateJob(@NonNull DownloadJob job) {
+        updateJobs(Collections.singletonList(job));
+    }
+
+    /**
+     * Store the state, byte offset, size, number of attempts and retry time of the jobs, in one
+     * transaction.
+     */
+    public void updateJobs(@NonNull List<DownloadJob> jobs) {
+        BatchWriter.updateDelete(batchDatabase, "update " + DOWNLOAD_DATABASE.JOB.TABLE + " set " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?, " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.BYTES + "=?, " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.TOTAL + "=?, " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.ATTEMPTS + "=?, " +
+                        DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + "=?" +
+                        " where " + DOWNLOAD_DATABASE.JOB.COLUMNS.ID + "=?",
+                jobs, (statement, job) -> {
+                    statement.bindLong(1, job.state);
+                    statement.bindLong(2, job.bytes);
+                    statement.bindLong(3, job.total);
+                    statement.bindLong(4, job.attempts);
+                    statement.bindLong(5, job.retryAt);
+                    statement.bindLong(6, job.id);
+                });
+    }
+
+    private static void bindString(BatchWriter.Statement statement, int index, @Nullable String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * @return Up to limit jobs in the supplied state, in the order they were added
+     */
+    public List<DownloadJob> getJobs(int state, int limit) {
+        List<DownloadJob> jobs = new ArrayList<>();
+        Cursor cursor = db.rawQuery("select * from " + DOWNLOAD_DATABASE.JOB.TABLE +
+                " where " + DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?" +
+                " order by " + DOWNLOAD_DATABASE.JOB.COLUMNS.ID + " limit " + limit,
+                new String[]{String.valueOf(state)});
+        try {
+            while (cursor.moveToNext()) {
+                jobs.add(getDownloadJob(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return jobs;
+    }
+
+    @Override
+    public List<DownloadJob> getStartableJobs(long now, Collection<String> busyHosts, int limit) {
+        List<String> args = new ArrayList<>(busyHosts.size() + 2);
+        args.add(String.valueOf(DownloadJob.QUEUED));
+        args.add(String.valueOf(now));
+        StringBuilder hosts = new StringBuilder();
+        for (String host : busyHosts) {
+            hosts.append(hosts.length() == 0 ? "?" : ", ?");
+            args.add(host);
+        }
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        Cursor cursor = db.rawQuery("select * from " + DOWNLOAD_DATABASE.JOB.TABLE +
+                " where " + DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?" +
+                " and " + DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + "<=?" +
+                (hosts.length() > 0 ? " and ifnull(" + DOWNLOAD_DATABASE.JOB.COLUMNS.HOST + ", '') not in (" + hosts + ")" : "") +
+                " order by " + DOWNLOAD_DATABASE.JOB.COLUMNS.ID + " limit " + limit,
+                args.toArray(new String[0]));
+        try {
+            while (cursor.moveToNext()) {
+                jobs.add(getDownloadJob(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return jobs;
+    }
+
+    @Override
+    public long getNextRetry(long now) {
+        Cursor cursor = db.rawQuery("select min(" + DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + ")" +
+                " from " + DOWNLOAD_DATABASE.JOB.TABLE +
+                " where " + DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?" +
+                " and " + DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT + ">?",
+                new String[]{String.valueOf(DownloadJob.QUEUED), String.valueOf(now)});
+        try {
+            return (cursor.moveToNext() && !cursor.isNull(0) ? cursor.getLong(0) : -1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Let the queued jobs which wait for a retry start now.
+     */
+    public void clearRetries() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT, 0);
+        db.update(DOWNLOAD_DATABASE.JOB.TABLE, contentValues, DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?",
+                new String[]{String.valueOf(DownloadJob.QUEUED)});
+    }
+
+    /**
+     * Move the jobs in one state to another state. Used to queue the jobs which were active
+     * when the app stopped, and to retry failed jobs. The byte offsets are kept, so the jobs
+     * resume where they stopped.
+     *
+     * @return The number of jobs moved
+     */
+    public int moveJobs(int fromState, int toState) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(DOWNLOAD_DATABASE.JOB.COLUMNS.STATE, toState);
+        if (toState == DownloadJob.QUEUED) {
+            contentValues.put(DOWNLOAD_DATABASE.JOB.COLUMNS.ATTEMPTS, 0);
+            contentValues.put(DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT, 0);
+        }
+        return db.update(DOWNLOAD_DATABASE.JOB.TABLE, contentValues, DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?",
+                new String[]{String.valueOf(fromState)});
+    }
+
+    /**
+     * Remove all the jobs in the supplied states, and return them.
+     */
+    public List<DownloadJob> removeJobs(int... states) {
+        List<DownloadJob> jobs = new ArrayList<>();
         db.beginTransaction();
         try {
-            for (long downloadId : downloadIds) {
-                db.delete(DOWNLOAD_DATABASE.SONG.TABLE, DOWNLOAD_DATABASE.SONG.COLUMNS.DOWNLOAD_ID + "=?",
-                        new String[]{String.valueOf(downloadId)});
+            for (int state : states) {
+                jobs.addAll(getJobs(state, Integer.MAX_VALUE));
+                db.delete(DOWNLOAD_DATABASE.JOB.TABLE, DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=?",
+                        new String[]{String.valueOf(state)});
             }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        return jobs;
+    }
+
+    /**
+     * @return The progress of each album with jobs, in the order the albums were added. Albums
+     *     are identified by their id, and by their name for jobs without an album id.
+     */
+    public List<AlbumProgress> getAlbumProgress() {
+        List<AlbumProgress> albums = new ArrayList<>();
+        Cursor cursor = db.rawQuery("select min(" + DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM + "), count(*)" +
+                ", sum(" + DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=" + DownloadJob.DONE + ")" +
+                ", sum(" + DOWNLOAD_DATABASE.JOB.COLUMNS.STATE + "=" + DownloadJob.FAILED + ")" +
+                ", sum(" + DOWNLOAD_DATABASE.JOB.COLUMNS.BYTES + ")" +
+                ", sum(max(" + DOWNLOAD_DATABASE.JOB.COLUMNS.TOTAL + ", 0))" +
+                " from " + DOWNLOAD_DATABASE.JOB.TABLE +
+                " group by " + DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ID + ", " +
+                "case when " + DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ID + " is null then " + DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM + " end" +
+                " order by min(" + DOWNLOAD_DATABASE.JOB.COLUMNS.ID + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                AlbumProgress album = new AlbumProgress();
+                album.album = cursor.getString(0);
+                album.tracks = cursor.getInt(1);
+                album.done = cursor.getInt(2);
+                album.failed = cursor.getInt(3);
+                album.bytes = cursor.getLong(4);
+                album.total = cursor.getLong(5);
+                albums.add(album);
+            }
+        } finally {
+            cursor.close();
+        }
+        return albums;
+    }
+
+    private DownloadJob getDownloadJob(Cursor cursor) {
+        DownloadJob job = new DownloadJob();
+        job.id = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.ID));
+        job.url = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.URL));
+        job.title = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.TITLE));
+        job.album = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM));
+        job.albumId = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ID));
+        job.host = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.HOST));
+        job.tempName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.TEMP_NAME));
+        job.fileName = cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.FILE_NAME));
+        job.albumArtUrl = Uri.parse(cursor.getString(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.ALBUM_ART)));
+        job.state = cursor.getInt(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.STATE));
+        job.bytes = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.BYTES));
+        job.total = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.TOTAL));
+        job.attempts = cursor.getInt(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.ATTEMPTS));
+        job.retryAt = cursor.getLong(cursor.getColumnIndex(DOWNLOAD_DATABASE.JOB.COLUMNS.RETRY_AT));
+        return job;
+    }
+
+    /**
+     * Gives {@link BatchWriter} access to the database.
+     */
+    private static class BatchDatabase implements BatchWriter.Database {
+        private final SQLiteDatabase db;
+
+        private BatchDatabase(SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        @Override
+        public void beginTransaction() {
+            db.beginTransaction();
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            db.setTransactionSuccessful();
+        }
+
+        @Override
+        public void endTransaction() {
+            db.endTransaction();
+        }
+
+        @Override
+        public BatchWriter.Statement compileStatement(String sql) {
+            final SQLiteStatement statement = db.compileStatement(sql);
+            return new BatchWriter.Statement() {
+                @Override
+                public void bindLong(int index, long value) {
+                    statement.bindLong(index, value);
+                }
+
+                @Override
+                public void bindString(int index, String value) {
+                    statement.bindString(index, value);
+                }
+
+                @Override
+                public void clearBindings() {
+                    statement.clearBindings();
+                }
+
+                @Override
+                public long executeInsert() {
+                    return statement.executeInsert();
+                }
+
+                @Override
+                public int executeUpdateDelete() {
+                    return statement.executeUpdateDelete();
+                }
+
+                @Override
+                public void close() {
+                    statement.close();
+                }
+            };
+        }
     }
 
     public static class DownloadEntry {
@@ -196,6 +631,63 @@ public class DownloadDatabase {
         public Uri albumArtUrl;
     }
 
+    /**
+     * A download handled by {@link DownloadEngine}.
+     */
+    public static class DownloadJob {
+        public static final int QUEUED = 0;
+        public static final int ACTIVE = 1;
+        public static final int DONE = 2;
+        public static final int FAILED = 3;
+
+        public long id;
+        public String url;
+        public String title;
+        public String album;
+        /** Id of the album on the server, or null if not known. */
+        @Nullable public String albumId;
+        /** Host the job is downloaded from, see {@link DownloadScheduler}. */
+        public String host;
+        public String tempName;
+        public String fileName;
+        public Uri albumArtUrl;
+        public int state;
+        /** Number of bytes downloaded to the temporary file. */
+        public long bytes;
+        /** Size of the file, or -1 if not known yet. */
+        public long total = -1;
+        /** Number of failed attempts since the job was last queued. */
+        public int attempts;
+        /** Time before which the job must not be retried, see {@link DownloadScheduler.Clock}. */
+        public long retryAt;
+
+        @Override
+        public String toString() {
+            return "DownloadJob{" +
+                    "id=" + id +
+                    ", title='" + title + '\'' +
+                    ", state=" + state +
+                    ", bytes=" + bytes +
+                    ", total=" + total +
+                    ", attempts=" + attempts +
+                    ", retryAt=" + retryAt +
+                    '}';
+        }
+    }
+
+    /**
+     * Aggregated progress of the download jobs for an album.
+     */
+    public static class AlbumProgress {
+        public String album;
+        public int tracks;
+        public int done;
+        public int failed;
+        /** Bytes downloaded, and the total size of the tracks with a known size. */
+        public long bytes;
+        public long total;
+    }
+
     public interface DownloadHandler {
         void handle(DownloadEntry entry);
     }
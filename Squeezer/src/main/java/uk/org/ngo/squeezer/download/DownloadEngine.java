@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.download;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.Util;
+import uk.org.ngo.squeezer.service.SqueezeService;
+
+/**
+ * Downloads songs from the server to the local music library.
+ * <p>
+ * Downloads are stored as jobs in {@link DownloadDatabase}, and run by a
+ * {@link DownloadScheduler}, with a bounded number of workers and connections to each server.
+ * Each job records how many bytes it has downloaded, so a download which fails, or is interrupted
+ * when the app stops, resumes from that offset with an HTTP range request. Failed jobs are retried
+ * a number of times with an increasing delay, and then kept in the failed state until
+ * {@link #resume()} is called again.
+ * <p>
+ * The progress is aggregated per album, and shown in a notification.
+ */
+public class DownloadEngine {
+    private static final String TAG = DownloadEngine.class.getSimpleName();
+
+    /** Delay before the first retry of a job, doubled for each following attempt. */
+    private static final long RETRY_DELAY_MS = 5_000;
+
+    /** Minimum time between updates of the progress notification. */
+    private static final long NOTIFICATION_INTERVAL_MS = 1000;
+
+    private static final Object sInstanceLock = new Object();
+    private static DownloadEngine sInstance;
+
+    private final Context mContext;
+    private final DownloadDatabase mDatabase;
+    /** Runs the downloads, and one more thread for the bookkeeping, so it isn't held up by them. */
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(DownloadScheduler.MAX_WORKERS + 1);
+    private final DownloadScheduler mScheduler;
+
+    /** Serializes the updates of the progress notification. */
+    private final Object mNotificationLock = new Object();
+
+    private final AtomicLong mNotificationUpdated = new AtomicLong();
+
+    public static DownloadEngine getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new DownloadEngine(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private DownloadEngine(Context context) {
+        mContext = context;
+        mDatabase = new DownloadDatabase(context);
+        mScheduler = new DownloadScheduler(mDatabase, new DownloadScheduler.Callbacks() {
+            @Override
+            public File getTempFile(DownloadDatabase.DownloadJob job) {
+                return DownloadEngine.this.getTempFile(job);
+            }
+
+            @Override
+            public void onDownloaded(DownloadDatabase.DownloadJob job) throws IOException {
+                complete(job);
+            }
+
+            @Override
+            public void onAttemptFailed(DownloadDatabase.DownloadJob job, IOException e) {
+                Log.w(TAG, "Download attempt " + job.attempts + " failed for " + job, e);
+            }
+
+            @Override
+            public void onProgress(boolean force) {
+                updateNotification(force);
+            }
+        }, mExecutor, System::currentTimeMillis, RETRY_DELAY_MS);
+    }
+
+    /**
+     * Set the credentials used to authenticate with the server.
+     */
+    public void setCredentials(@Nullable String username, @Nullable String password) {
+        String credentials = username + ":" + password;
+        mScheduler.setAuthorization("Basic " + Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP));
+    }
+
+    /**
+     * Add a download job.
+     *
+     * @param url URL to download the song from
+     * @param title Title of the song
+     * @param album Album the progress of the download is aggregated in
+     * @param albumId Id of the album on the server, or null if not known
+     * @param fileName Path of the file relative to the download directory
+     * @param albumArtUrl URL of the album art
+     */
+    public void enqueue(@NonNull Uri url, String title, String album, @Nullable String albumId, @NonNull String fileName, @NonNull Uri albumArtUrl) {
+        enqueue(Collections.singletonList(newJob(url, title, album, albumId, fileName, albumArtUrl)));
+    }
+
+    /**
+     * Add download jobs. The jobs are stored in one transaction, so a large album or playlist
+     * doesn't cost a database commit per track.
+     *
+     * @see #newJob(Uri, String, String, String, String, Uri)
+     */
+    public void enqueue(@NonNull final List<DownloadDatabase.DownloadJob> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        mExecutor.execute(() -> {
+            int added = mDatabase.addJobs(jobs);
+            if (added < jobs.size()) {
+                Log.w(TAG, "Could only add " + added + " of " + jobs.size() + " download jobs");
+            }
+            mScheduler.schedule();
+        });
+    }
+
+    /**
+     * Create a download job, to be added with {@link #enqueue(List)}.
+     *
+     * @see #enqueue(Uri, String, String, String, String, Uri)
+     */
+    public static DownloadDatabase.DownloadJob newJob(@NonNull Uri url, String title, String album, @Nullable String albumId, @NonNull String fileName, @NonNull Uri albumArtUrl) {
+        DownloadDatabase.DownloadJob job = new DownloadDatabase.DownloadJob();
+        job.url = url.toString();
+        job.host = url.getHost();
+        job.title = title;
+        job.album = (album != null ? album : "");
+        job.albumId = albumId;
+        job.fileName = fileName;
+        job.albumArtUrl = albumArtUrl;
+        job.tempName = UUID.randomUUID().toString();
+        return job;
+    }
+
+    /**
+     * Queue the jobs which were interrupted when the app stopped, and the jobs which failed, and
+     * start downloading.
+     */
+    public void resume() {
+        mExecutor.execute(() -> {
+            mScheduler.runExclusive(() -> {
+                if (mScheduler.isIdle()) {
+                    mDatabase.moveJobs(DownloadDatabase.DownloadJob.ACTIVE, DownloadDatabase.DownloadJob.QUEUED);
+                }
+                mDatabase.clearRetries();
+            });
+            mDatabase.moveJobs(DownloadDatabase.DownloadJob.FAILED, DownloadDatabase.DownloadJob.QUEUED);
+            mScheduler.schedule();
+        });
+    }
+
+    /**
+     * Cancel all downloads which haven't completed, and delete their temporary files.
+     */
+    public void cancelAll() {
+        mScheduler.cancel();
+        mExecutor.execute(() -> {
+            List<DownloadDatabase.DownloadJob> jobs = mDatabase.removeJobs(
+                    DownloadDatabase.DownloadJob.QUEUED, DownloadDatabase.DownloadJob.ACTIVE,
+                    DownloadDatabase.DownloadJob.FAILED, DownloadDatabase.DownloadJob.DONE);
+            for (DownloadDatabase.DownloadJob job : jobs) {
+                getTempFile(job).delete();
+            }
+            updateNotification(true);
+        });
+    }
+
+    /**
+     * Move the downloaded file to the download directory and add it to the media database.
+     */
+    private void complete(DownloadDatabase.DownloadJob job) throws IOException {
+        File localFile = new File(new DownloadStorage(mContext).getDownloadDir(), job.fileName);
+        Util.moveFile(getTempFile(job), localFile);
+        MediaScannerConnection.scanFile(
+                mContext,
+                new String[]{localFile.getAbsolutePath()},
+                null,
+                new DownloadStatusReceiver.DownloadOnScanCompletedListener(mContext, job.fileName)
+        );
+    }
+
+    private File getTempFile(DownloadDatabase.DownloadJob job) {
+        return new File(mContext.getExternalFilesDir(Environment.DIRECTORY_MUSIC), job.tempName);
+    }
+
+    /**
+     * Show the progress of the first album with unfinished jobs. When all the jobs have finished
+     * the notification is removed, and the finished jobs are forgotten.
+     * <p>
+     * Runs on the threads of the downloads, without holding the lock of the scheduler.
+     *
+     * @param force Update even if the notification was updated recently
+     */
+    private void updateNotification(boolean force) {
+        long now = SystemClock.uptimeMillis();
+        if (force) {
+            mNotificationUpdated.set(now);
+        } else {
+            // Only one of the downloads updates the notification when it is due
+            long updated = mNotificationUpdated.get();
+            if (now - updated < NOTIFICATION_INTERVAL_MS || !mNotificationUpdated.compareAndSet(updated, now)) {
+                return;
+            }
+        }
+
+        synchronized (mNotificationLock) {
+            showProgress();
+        }
+    }
+
+    private void showProgress() {
+        NotificationManagerCompat nm = NotificationManagerCompat.from(mContext);
+        DownloadDatabase.AlbumProgress current = null;
+        int remainingAlbums = 0;
+        for (DownloadDatabase.AlbumProgress album : mDatabase.getAlbumProgress()) {
+            if (album.done + album.failed < album.tracks) {
+                if (current == null) {
+                    current = album;
+                } else {
+                    remainingAlbums++;
+                }
+            }
+        }
+
+        if (current == null) {
+            if (mScheduler.isIdle()) {
+                mDatabase.removeJobs(DownloadDatabase.DownloadJob.DONE);
+            }
+            nm.cancel(SqueezeService.DOWNLOAD_PROGRESS);
+            return;
+        }
+
+        Intent intent = new Intent(mContext, CancelDownloadsActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext, SqueezeService.NOTIFICATION_CHANNEL_ID)
+                .setContentIntent(PendingIntent.getActivity(mContext, 0, intent, 0))
+                .setSmallIcon(R.drawable.squeezer_notification)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentTitle(mContext.getString(R.string.download_progress_title, current.album))
+                .setContentText(mContext.getString(R.string.download_progress_text, current.done, current.tracks));
+        if (remainingAlbums > 0) {
+            builder.setSubText(mContext.getResources().getQuantityString(R.plurals.download_albums_remaining, remainingAlbums, remainingAlbums));
+        }
+        builder.setProgress(current.tracks, current.done, false);
+        nm.notify(SqueezeService.DOWNLOAD_PROGRESS, builder.build());
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.download;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.ngo.squeezer.Util;
+
+/**
+ * Runs the download jobs of {@link DownloadEngine}.
+ * <p>
+ * At most {@link #MAX_WORKERS} jobs are downloaded at a time, with at most
+ * {@link #MAX_CONNECTIONS_PER_HOST} connections to each host. A job which fails is retried
+ * {@link #MAX_ATTEMPTS} times, the first time after the retry delay, which is doubled for each
+ * following attempt. The jobs which can start are selected by the {@link JobStore}, so jobs
+ * which wait for a retry, or for a busy host, don't hold up the jobs behind them.
+ * <p>
+ * A download continues from the end of the temporary file of the job with an HTTP range request.
+ * If the server ignores the range, the download starts again from the beginning.
+ * <p>
+ * The store is never accessed while holding the lock that the downloads use to report that they
+ * have finished.
+ */
+class DownloadScheduler {
+    /** Maximum number of concurrent downloads. */
+    static final int MAX_WORKERS = 3;
+
+    /** Maximum number of concurrent downloads from the same host. */
+    static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+    /** Number of attempts before a job is marked as failed. */
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** How often the byte offset of an active job is stored. */
+    private static final long PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    /** Persistent storage of the jobs, see {@link DownloadDatabase}. */
+    interface JobStore {
+        /**
+         * @param now Current time, see {@link Clock}
+         * @param busyHosts Hosts which have no free connections
+         * @param limit Maximum number of jobs to return
+         * @return Queued jobs which may be retried at the supplied time, and aren't for one of the
+         *     busy hosts, in the order they were added
+         */
+        List<DownloadDatabase.DownloadJob> getStartableJobs(long now, Collection<String> busyHosts, int limit);
+
+        /**
+         * @return The earliest retry time after the supplied time of the queued jobs, or -1 if
+         *     no queued job waits for a retry
+         */
+        long getNextRetry(long now);
+
+        /** Store the state, progress and retry time of the job. */
+        void updateJob(DownloadDatabase.DownloadJob job);
+    }
+
+    /** The parts of the download which depend on the app. */
+    interface Callbacks {
+        /** @return The file the job is downloaded to */
+        File getTempFile(DownloadDatabase.DownloadJob job);
+
+        /** The job has been downloaded to its temporary file. */
+        void onDownloaded(DownloadDatabase.DownloadJob job) throws IOException;
+
+        /** An attempt to download the job failed. */
+        void onAttemptFailed(DownloadDatabase.DownloadJob job, IOException e);
+
+        /**
+         * The progress of the jobs changed.
+         *
+         * @param force False for progress within a download, which may be ignored if the
+         *     progress was shown recently
+         */
+        void onProgress(boolean force);
+    }
+
+    /** Source of the current time, stored as the retry time of the jobs. */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private final JobStore mStore;
+    private final Callbacks mCallbacks;
+    private final ScheduledExecutorService mExecutor;
+    private final Clock mClock;
+
+    /** Delay before the first retry of a job. */
+    private final long mRetryDelayMs;
+
+    /** Serializes the selection of jobs to start. */
+    private final Object mScheduleLock = new Object();
+
+    /** Time of the scheduled check for jobs to retry, or 0 if none is scheduled. */
+    private long mRetryCheckAt;
+
+    /** Ids of the jobs which are being downloaded. */
+    private final Set<Long> mActiveJobs = new HashSet<>();
+
+    /** Number of active downloads per host. */
+    private final Map<String, Integer> mHostConnections = new HashMap<>();
+
+    /** Incremented when the downloads are cancelled, so active downloads can stop. */
+    private volatile int mGeneration;
+
+    @Nullable private volatile String mAuthorization;
+
+    DownloadScheduler(JobStore store, Callbacks callbacks, ScheduledExecutorService executor, Clock clock, long retryDelayMs) {
+        mStore = store;
+        mCallbacks = callbacks;
+        mExecutor = executor;
+        mClock = clock;
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Set the value of the Authorization header of the requests.
+     */
+    void setAuthorization(@Nullable String authorization) {
+        mAuthorization = authorization;
+    }
+
+    /**
+     * @return True if no jobs are being downloaded
+     */
+    synchronized boolean isIdle() {
+        return mActiveJobs.isEmpty();
+    }
+
+    /**
+     * Run the supplied task while no jobs are started, e.g. to queue jobs which are stored as
+     * active, but aren't being downloaded.
+     */
+    void runExclusive(Runnable task) {
+        synchronized (mScheduleLock) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stop the active downloads. They don't update their jobs after this.
+     */
+    void cancel() {
+        synchronized (this) {
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Start downloading queued jobs, while there are free workers, and the hosts of the jobs
+     * have free connections.
+     */
+    void schedule() {
+        synchronized (mScheduleLock) {
+            long now = mClock.currentTimeMillis();
+            while (true) {
+                int freeWorkers;
+                Set<String> busyHosts = new HashSet<>();
+                synchronized (this) {
+                    freeWorkers = MAX_WORKERS - mActiveJobs.size();
+                    for (Map.Entry<String, Integer> entry : mHostConnections.entrySet()) {
+                        if (entry.getValue() >= MAX_CONNECTIONS_PER_HOST) {
+                            busyHosts.add(entry.getKey());
+                        }
+                    }
+                }
+                if (freeWorkers <= 0) {
+                    break;
+                }
+
+                // A host can become busy by the jobs started from this batch. Its remaining jobs
+                // are skipped, and the next batch excludes it.
+                boolean skipped = false;
+                for (DownloadDatabase.DownloadJob job : mStore.getStartableJobs(now, busyHosts, freeWorkers)) {
+                    if (!start(job)) {
+                        skipped = true;
+                    }
+                }
+                if (!skipped) {
+                    break;
+                }
+            }
+
+            long nextRetry = mStore.getNextRetry(now);
+            if (nextRetry >= 0 && (mRetryCheckAt == 0 || nextRetry < mRetryCheckAt)) {
+                mRetryCheckAt = nextRetry;
+                mExecutor.schedule(() -> {
+                    synchronized (mScheduleLock) {
+                        if (mRetryCheckAt == nextRetry) {
+                            mRetryCheckAt = 0;
+                        }
+                    }
+                    schedule();
+                }, nextRetry - now, TimeUnit.MILLISECONDS);
+            }
+        }
+        mCallbacks.onProgress(true);
+    }
+
+    /**
+     * Start downloading the job, if its host has a free connection.
+     *
+     * @return False if the host is busy
+     */
+    private boolean start(final DownloadDatabase.DownloadJob job) {
+        final String host = getHost(job);
+        final int generation;
+        synchronized (this) {
+            Integer connections = mHostConnections.get(host);
+            if (connections != null && connections >= MAX_CONNECTIONS_PER_HOST) {
+                return false;
+            }
+            mActiveJobs.add(job.id);
+            mHostConnections.put(host, (connections != null ? connections : 0) + 1);
+            generation = mGeneration;
+        }
+
+        job.state = DownloadDatabase.DownloadJob.ACTIVE;
+        mStore.updateJob(job);
+        mExecutor.execute(() -> run(job, host, generation));
+        return true;
+    }
+
+    private void run(DownloadDatabase.DownloadJob job, String host, int generation) {
+        try {
+            download(job, generation);
+            if (generation == mGeneration) {
+                mCallbacks.onDownloaded(job);
+                job.state = DownloadDatabase.DownloadJob.DONE;
+                job.attempts = 0;
+            }
+        } catch (IOException e) {
+            job.attempts++;
+            mCallbacks.onAttemptFailed(job, e);
+            if (job.attempts < MAX_ATTEMPTS) {
+                job.state = DownloadDatabase.DownloadJob.QUEUED;
+                job.retryAt = mClock.currentTimeMillis() + (mRetryDelayMs << (job.attempts - 1));
+            } else {
+                job.state = DownloadDatabase.DownloadJob.FAILED;
+            }
+        } finally {
+            synchronized (this) {
+                mActiveJobs.remove(job.id);
+                Integer connections = mHostConnections.get(host);
+                if (connections != null && connections > 1) {
+                    mHostConnections.put(host, connections - 1);
+                } else {
+                    mHostConnections.remove(host);
+                }
+            }
+            if (generation == mGeneration) {
+                mStore.updateJob(job);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Download the job to its temporary file, continuing from the end of the file if it exists.
+     */
+    private void download(DownloadDatabase.DownloadJob job, int generation) throws IOException {
+        File tempFile = mCallbacks.getTempFile(job);
+        long offset = (tempFile.exists() ? tempFile.length() : 0);
+        if (job.total >= 0 && offset == job.total) {
+            return;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(job.url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            String authorization = mAuthorization;
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            int responseCode = connection.getResponseCode();
+            boolean append = (responseCode == HttpURLConnection.HTTP_PARTIAL);
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range, start from the beginning
+                offset = 0;
+            } else if (!append) {
+                if (responseCode == 416) {
+                    // Range not satisfiable, the temporary file is not usable
+                    tempFile.delete();
+                }
+                throw new IOException("Unexpected response " + responseCode + " for " + job.url);
+            }
+
+            long length = Util.parseDecimalInt(connection.getHeaderField("Content-Length"), -1);
+            job.bytes = offset;
+            job.total = (length >= 0 ? offset + length : -1);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long stored = offset;
+            try (InputStream in = connection.getInputStream();
+                 OutputStream out = new FileOutputStream(tempFile, append)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    out.write(buffer, 0, read);
+                    job.bytes += read;
+                    if (job.bytes - stored >= PROGRESS_INTERVAL_BYTES) {
+                        stored = job.bytes;
+                        mStore.updateJob(job);
+                        mCallbacks.onProgress(false);
+                    }
+                }
+            }
+
+            if (job.total >= 0 && job.bytes != job.total) {
+                throw new IOException("Incomplete download of " + job.url + ": " + job.bytes + " of " + job.total);
+            }
+            job.total = job.bytes;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return The host the job is downloaded from, as stored with the job
+     */
+    private static String getHost(DownloadDatabase.DownloadJob job) {
+        return (job.host != null ? job.host : "");
+    }
+}
@@ -107,7 +107,7 @@ public class DownloadStatusReceiver extends BroadcastReceiver {
                         context.getApplicationContext(),
                         new String[]{localFile.getAbsolutePath()},
                         null,
-                        new DownloadOnScanCompletedListener(context, downloadEntry)
+                        new DownloadOnScanCompletedListener(context, downloadEntry.fileName)
                 );
             } catch (IOException e) {
                 // TODO remote logging
@@ -121,13 +121,13 @@ public class DownloadStatusReceiver extends BroadcastReceiver {
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static class DownloadOnScanCompletedListener implements MediaScannerConnection.OnScanCompletedListener {
+    static class DownloadOnScanCompletedListener implements MediaScannerConnection.OnScanCompletedListener {
         private final Context context;
-        private final DownloadDatabase.DownloadEntry downloadEntry;
+        private final String fileName;
 
-        DownloadOnScanCompletedListener(Context context, DownloadDatabase.DownloadEntry downloadEntry) {
+        DownloadOnScanCompletedListener(Context context, String fileName) {
             this.context = context;
-            this.downloadEntry = downloadEntry;
+            this.fileName = fileName;
         }
 
         @Override
@@ -140,7 +140,7 @@ public class DownloadStatusReceiver extends BroadcastReceiver {
                     // TODO remote logging
                     Log.e(TAG, "Could not delete '" + path + "', which could not be added to the media database");
                 }
-                notifyFailedMediaScan(downloadEntry.fileName);
+                notifyFailedMediaScan(fileName);
             }
         }
 
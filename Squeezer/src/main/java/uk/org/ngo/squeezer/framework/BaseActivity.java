@@ -211,14 +211,25 @@ public abstract class BaseActivity extends AppCompatActivity {
     }
 
     /**
-     * Clear the image memory cache if memory gets low.
+     * Shrink the image memory cache if memory gets low.
      */
     @Override
     @CallSuper
     public void onLowMemory() {
+        super.onLowMemory();
         ImageFetcher.onLowMemory();
     }
 
+    /**
+     * Shrink the image memory cache according to the trim level.
+     */
+    @Override
+    @CallSuper
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ImageFetcher.onTrimMemory(level);
+    }
+
     @Override
     @CallSuper
     public void onDestroy() {
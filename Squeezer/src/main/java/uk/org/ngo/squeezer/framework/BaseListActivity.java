@@ -194,6 +194,11 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
         getItemAdapter().clear();
     }
 
+    @Override
+    protected void invalidateItemAdapter() {
+        getItemAdapter().invalidate();
+    }
+
     protected ItemAdapter<T> createItemListAdapter(ItemView<T> itemView) {
         return new ItemAdapter<>(itemView);
     }
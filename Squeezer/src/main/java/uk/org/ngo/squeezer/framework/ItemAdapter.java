@@ -16,12 +16,15 @@
 
 package uk.org.ngo.squeezer.framework;
 
-import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.model.Item;
@@ -53,7 +56,33 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
      */
     private int count;
 
-    private final SparseArray<T[]> pages = new SparseArray<>();
+    /**
+     * Pages of items in least recently used order. When more than {@link #maxResidentPages}
+     * pages are held, the least recently used page is evicted, and will be ordered again when it
+     * is shown.
+     * <p>
+     * Only pages which hold received items are added, and a page is only marked as used when it's
+     * received or shown, see {@link #touchPage(int)}. Other lookups use {@link Map#get(Object)},
+     * which doesn't change the order as the map is in insertion order, so walking the list
+     * doesn't evict the pages which are shown.
+     */
+    private final Map<Integer, T[]> pages = new LinkedHashMap<Integer, T[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, T[]> eldest) {
+            if (size() > maxResidentPages) {
+                stalePages.remove(eldest.getKey());
+                onPageEvicted(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Pages which may be out of date, see {@link #invalidate()}. They are shown until they are
+     * received again.
+     */
+    private final Set<Integer> stalePages = new HashSet<>();
 
     /**
      * This is set if the list shall start with an empty item.
@@ -70,6 +99,11 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
      */
     private final int pageSize;
 
+    /**
+     * Maximum number of pages to keep in memory
+     */
+    private int maxResidentPages;
+
     /**
      * Index of the latest selected item see {@link #onItemSelected(View, int)}
      */
@@ -88,6 +122,7 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
         mEmptyItem = emptyItem;
         loadingText = itemView.getActivity().getString(R.string.loading_text);
         pageSize = itemView.getActivity().getResources().getInteger(R.integer.PageSize);
+        maxResidentPages = itemView.getActivity().getResources().getInteger(R.integer.MaxResidentPages);
         pages.clear();
     }
 
@@ -102,18 +137,46 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
         return position / pageSize;
     }
 
+    public int getMaxResidentPages() {
+        return maxResidentPages;
+    }
+
+    /**
+     * Set the maximum number of pages to keep in memory. Must be large enough to hold the pages
+     * which are visible at the same time.
+     */
+    public void setMaxResidentPages(int maxResidentPages) {
+        this.maxResidentPages = Math.max(2, maxResidentPages);
+    }
+
     /**
      * Removes all items from this adapter leaving it empty.
      */
     public void clear() {
         count = (mEmptyItem ? 1 : 0);
         pages.clear();
+        stalePages.clear();
         notifyDataSetChanged();
     }
 
+    /**
+     * Marks all the items in this adapter as out of date. The items are still shown, so the list
+     * keeps its contents and scroll position, but their pages are ordered again when they are
+     * shown, and replaced when they are received.
+     */
+    public void invalidate() {
+        stalePages.addAll(pages.keySet());
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         T item = getItem(position);
+        int pageNumber = pageNumber(position);
+        touchPage(pageNumber);
+        // Only order pages which are shown, lookups of other items must not order their pages
+        if (item == null || stalePages.contains(pageNumber)) {
+            orderPage(mEmptyItem ? position - 1 : position);
+        }
         if (item != null) {
             return mItemView.getAdapterView(convertView, parent, position, item, position == selectedIndex);
         }
@@ -157,17 +220,54 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
         return count;
     }
 
-    private T[] getPage(int position) {
+    /**
+     * Mark the page as the most recently used, if it's held.
+     */
+    private void touchPage(int pageNumber) {
+        T[] page = pages.remove(pageNumber);
+        if (page != null) {
+            pages.put(pageNumber, page);
+        }
+    }
+
+    /**
+     * @return The page which holds the item at the supplied position, added as the most recently
+     *     used page if it's not held. Only call this to store received items.
+     */
+    private T[] receivePage(int position) {
         int pageNumber = pageNumber(position);
-        T[] page = pages.get(pageNumber);
+        T[] page = pages.remove(pageNumber);
         if (page == null) {
-            pages.put(pageNumber, page = arrayInstance(pageSize));
+            page = arrayInstance(pageSize);
         }
+        pages.put(pageNumber, page);
+        stalePages.remove(pageNumber);
         return page;
     }
 
+    /**
+     * Order the page of the item at the supplied position from the server. Called when an item is
+     * shown, which isn't received or may be out of date.
+     *
+     * @param position Position of the item in the list from the server, i.e. without the empty item
+     */
+    protected void orderPage(int position) {
+        getActivity().maybeOrderPage(Math.max(0, pageNumber(position)) * pageSize);
+    }
+
+    /**
+     * Tell the activity that the items of the evicted page are gone, so they are ordered again
+     * if they are shown.
+     */
+    private void onPageEvicted(int pageNumber) {
+        int offset = (mEmptyItem ? 1 : 0);
+        int start = Math.max(0, pageNumber * pageSize - offset);
+        int end = (pageNumber + 1) * pageSize - 1 - offset;
+        getActivity().onItemsEvicted(start, end);
+    }
+
     private void setItems(int start, List<T> items) {
-        T[] page = getPage(start);
+        T[] page = receivePage(start);
         int offset = start % pageSize;
         for (T item : items) {
             if (mItemView.isSelected(item)) {
@@ -175,23 +275,21 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
             }
             if (offset >= pageSize) {
                 start += offset;
-                page = getPage(start);
+                page = receivePage(start);
                 offset = 0;
             }
             page[offset++] = item;
         }
     }
 
+    /**
+     * @return The item at the supplied position, or null if it's not received or it's evicted.
+     *     This doesn't order missing items, they are ordered when they are shown.
+     */
     @Override
     public T getItem(int position) {
-        T item = getPage(position)[position % pageSize];
-        if (item == null) {
-            if (mEmptyItem) {
-                position--;
-            }
-            getActivity().maybeOrderPage(pageNumber(position) * pageSize);
-        }
-        return item;
+        T[] page = pages.get(pageNumber(position));
+        return (page != null ? page[position % pageSize] : null);
     }
 
     @Override
@@ -252,20 +350,20 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
 
     /**
      * Remove the item at the specified position, update the count and notify the change.
+     * <p>
+     * The following items are moved within the held pages, without adding or evicting pages. An
+     * item which moves in from a page which isn't held is unknown, and is ordered when it's shown.
      */
     public void removeItem(int position) {
-        T[] page = getPage(position);
         int offset = position % pageSize;
-        while (position++ <= count) {
-            if (offset == pageSize - 1) {
-                T[] nextPage = getPage(position);
-                page[offset] = nextPage[0];
-                offset = 0;
-                page = nextPage;
-            } else {
-                page[offset] = page[offset+1];
-                offset++;
+        for (int pageNumber = pageNumber(position); pageNumber <= pageNumber(count); pageNumber++) {
+            T[] page = pages.get(pageNumber);
+            if (page != null) {
+                System.arraycopy(page, offset + 1, page, offset, pageSize - 1 - offset);
+                T[] nextPage = pages.get(pageNumber + 1);
+                page[pageSize - 1] = (nextPage != null ? nextPage[0] : null);
             }
+            offset = 0;
         }
 
         count--;
@@ -273,22 +371,34 @@ public class ItemAdapter<T extends Item> extends BaseAdapter {
         notifyDataSetChanged();
     }
 
+    /**
+     * Insert the item at the specified position, update the count and notify the change.
+     * <p>
+     * The following items are moved within the held pages, as for {@link #removeItem(int)}. A
+     * page is added for the last item if it moves to a new page, before the items are moved, and
+     * for the new item after they are moved, if it isn't held.
+     */
     public void insertItem(int position, T item) {
-        int n = count;
-        T[] page = getPage(n);
-        int offset = n % pageSize;
-        while (n-- > position) {
-            if (offset == 0) {
-                T[] nextPage = getPage(n);
-                offset = pageSize - 1;
-                page[0] = nextPage[offset];
-                page = nextPage;
-            } else {
-                page[offset] = page[offset-1];
-                offset--;
+        if (count > position && count % pageSize == 0 && pages.get(pageNumber(count) - 1) != null) {
+            receivePage(count);
+        }
+        int firstPage = pageNumber(position);
+        for (int pageNumber = pageNumber(count); pageNumber >= firstPage; pageNumber--) {
+            T[] page = pages.get(pageNumber);
+            if (page != null) {
+                int offset = (pageNumber == firstPage ? position % pageSize : 0);
+                System.arraycopy(page, offset, page, offset + 1, pageSize - 1 - offset);
+                if (pageNumber > firstPage) {
+                    T[] previousPage = pages.get(pageNumber - 1);
+                    page[0] = (previousPage != null ? previousPage[pageSize - 1] : null);
+                }
             }
         }
-        page[offset] = item;
+        T[] page = pages.get(firstPage);
+        if (page == null) {
+            page = receivePage(position);
+        }
+        page[position % pageSize] = item;
 
         count++;
         onCountUpdated();
@@ -18,6 +18,7 @@ package uk.org.ngo.squeezer.framework;
 
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import androidx.annotation.MainThread;
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
@@ -30,6 +31,7 @@ import android.widget.AbsListView.OnScrollListener;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -57,6 +59,22 @@ public abstract class ItemListActivity extends BaseActivity {
 
     private static final String TAG = ItemListActivity.class.getName();
 
+    /**
+     * Maximum number of pages to order ahead of the visible rows while the list is scrolling.
+     */
+    private static final int MAX_PREFETCH_PAGES = 4;
+
+    /**
+     * Maximum number of pages which may be ordered from the server without being received.
+     */
+    private static final int MAX_OUTSTANDING_PAGES = 6;
+
+    /**
+     * Order the pages the list will reach within this many milliseconds at the current scroll
+     * velocity.
+     */
+    private static final long PREFETCH_LOOKAHEAD_MS = 1000;
+
     /**
      * The list is being actively scrolled by the user
      */
@@ -69,8 +87,11 @@ public abstract class ItemListActivity extends BaseActivity {
 
     /**
      * The pages that have been requested from the server.
+     * <p>
+     * Pages are removed from the thread which receives the items, so iterate in a block
+     * synchronized on the set.
      */
-    private final Set<Integer> mOrderedPages = new HashSet<>();
+    private final Set<Integer> mOrderedPages = Collections.synchronizedSet(new HashSet<>());
 
     /**
      * The pages that have been received from the server
@@ -84,6 +105,19 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     private final Stack<Integer> mOrderedPagesBeforeHandshake = new Stack<>();
 
+    /**
+     * First visible position and time of the previous scroll callback, used to estimate the
+     * scroll velocity.
+     */
+    private int mPrevFirstVisibleItem;
+    private long mPrevScrollTime;
+
+    /**
+     * Estimated scroll velocity in items per millisecond, negative when scrolling towards the
+     * start of the list.
+     */
+    private float mScrollVelocity;
+
     /**
      * Progress bar (spinning) while items are loading.
      */
@@ -144,7 +178,8 @@ public abstract class ItemListActivity extends BaseActivity {
         //noinspection unchecked
         mReceivedPages = (Set<Integer>) getRetainedValue(TAG_RECEIVED_PAGES);
         if (mReceivedPages == null) {
-            mReceivedPages = new HashSet<>();
+            // Pages are received on the service thread, and evicted on the UI thread
+            mReceivedPages = Collections.synchronizedSet(new HashSet<>());
             putRetainedValue(TAG_RECEIVED_PAGES, mReceivedPages);
         }
     }
@@ -227,6 +262,14 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     protected abstract void clearItemAdapter();
 
+    /**
+     * Called by {@link #refreshItems()} to mark the items in the adapters as out of date, while
+     * they are still shown. The default implementation clears the adapters.
+     */
+    protected void invalidateItemAdapter() {
+        clearItemAdapter();
+    }
+
     /**
      * Call back from {@link #onItemsReceived(int, int, List, Class)}
      */
@@ -240,7 +283,14 @@ public abstract class ItemListActivity extends BaseActivity {
      * @return True if the page needed to be ordered (even if the order failed), false otherwise.
      */
     public boolean maybeOrderPage(int pagePosition) {
-        if (!mListScrolling && !mReceivedPages.contains(pagePosition) && !mOrderedPages
+        return !mListScrolling && orderPageIfNeeded(pagePosition);
+    }
+
+    /**
+     * As {@link #maybeOrderPage(int)}, but also orders while the list is scrolling.
+     */
+    private boolean orderPageIfNeeded(int pagePosition) {
+        if (!mReceivedPages.contains(pagePosition) && !mOrderedPages
                 .contains(pagePosition) && !mOrderedPagesBeforeHandshake.contains(pagePosition)) {
             ISqueezeService service = getService();
 
@@ -307,6 +357,91 @@ public abstract class ItemListActivity extends BaseActivity {
         }
     }
 
+    /**
+     * Orders pages ahead of the visible rows while the list is scrolling.
+     * <p>
+     * The number of pages to order is derived from the scroll velocity, so a fast fling orders
+     * further ahead than a slow drag, and pages are ordered in the direction of the scroll,
+     * nearest first. Orders for pages which are no longer in range are cancelled, and at most
+     * {@link #MAX_OUTSTANDING_PAGES} pages are ordered at any time, so a long fling doesn't flood
+     * the server with requests for pages which will never be shown.
+     *
+     * @param firstVisibleItem Position of the first visible row
+     * @param visibleItemCount Number of visible rows
+     * @param totalItemCount Number of items in the list
+     */
+    private void prefetchPages(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mPrevScrollTime;
+        if (firstVisibleItem == mPrevFirstVisibleItem && elapsed < PREFETCH_LOOKAHEAD_MS) {
+            // Scrolled within the same row, wait for a measurable movement
+            return;
+        }
+        if (elapsed > 0 && elapsed < PREFETCH_LOOKAHEAD_MS) {
+            mScrollVelocity = (float) (firstVisibleItem - mPrevFirstVisibleItem) / elapsed;
+        } else {
+            mScrollVelocity = 0;
+        }
+        mPrevFirstVisibleItem = firstVisibleItem;
+        mPrevScrollTime = now;
+
+        int lookahead = Math.round(Math.abs(mScrollVelocity) * PREFETCH_LOOKAHEAD_MS / mPageSize);
+        int pages = Math.max(1, Math.min(MAX_PREFETCH_PAGES, lookahead));
+        int firstPage = (firstVisibleItem / mPageSize) * mPageSize;
+        int lastPage = ((firstVisibleItem + visibleItemCount - 1) / mPageSize) * mPageSize;
+
+        int rangeStart;
+        int rangeEnd;
+        int step;
+        if (mScrollVelocity >= 0) {
+            rangeStart = firstPage;
+            rangeEnd = lastPage + pages * mPageSize;
+            step = mPageSize;
+        } else {
+            rangeStart = Math.max(0, firstPage - pages * mPageSize);
+            rangeEnd = lastPage;
+            step = -mPageSize;
+        }
+        cancelOrdersOutside(rangeStart, rangeEnd);
+
+        for (int pos = (step > 0 ? rangeStart : rangeEnd); pos >= rangeStart && pos <= rangeEnd; pos += step) {
+            if (mOrderedPages.size() >= MAX_OUTSTANDING_PAGES) {
+                break;
+            }
+            if (pos < totalItemCount) {
+                orderPageIfNeeded(pos);
+            }
+        }
+    }
+
+    /**
+     * Cancels the outstanding orders if all of them are for pages outside the supplied range.
+     * <p>
+     * Requests can only be cancelled for the activity as a whole, so while any ordered page is
+     * still in range the orders are left to complete. Otherwise a page which is in range could be
+     * cancelled and ordered again repeatedly, when the list scrolls past a page faster than the
+     * server responds.
+     */
+    private void cancelOrdersOutside(int rangeStart, int rangeEnd) {
+        ISqueezeService service = getService();
+        if (service == null) {
+            return;
+        }
+        synchronized (mOrderedPages) {
+            if (mOrderedPages.isEmpty()) {
+                return;
+            }
+            for (int page : mOrderedPages) {
+                if (page >= rangeStart && page <= rangeEnd) {
+                    return;
+                }
+            }
+            mOrderedPages.clear();
+        }
+        Log.v(TAG, "Cancel orders out of range " + rangeStart + ".." + rangeEnd);
+        service.cancelItemListRequests(this);
+    }
+
     /**
      * Tracks items that have been received from the server.
      * <p>
@@ -345,6 +480,20 @@ public abstract class ItemListActivity extends BaseActivity {
         });
     }
 
+    /**
+     * Called by the adapter when it has released the items in the supplied range to bound its
+     * memory use. The pages overlapping the range are no longer considered received, so
+     * {@link #maybeOrderPage(int)} orders them again when they are shown.
+     *
+     * @param start Position of the first released item
+     * @param end Position of the last released item
+     */
+    public void onItemsEvicted(int start, int end) {
+        for (int pos = (start / mPageSize) * mPageSize; pos <= end; pos += mPageSize) {
+            mReceivedPages.remove(pos);
+        }
+    }
+
     /**
      * Empties the variables that track which pages have been requested, and orders page 0.
      */
@@ -356,6 +505,26 @@ public abstract class ItemListActivity extends BaseActivity {
         }
     }
 
+    /**
+     * Orders the items again without clearing the list first, so it keeps its contents and
+     * scroll position while the new items arrive. The visible pages are ordered now, and the
+     * other pages when they are shown.
+     */
+    public void refreshItems() {
+        ISqueezeService service = getService();
+        if (service == null || (needPlayer() && service.getActivePlayer() == null)) {
+            return;
+        }
+
+        // Items already ordered may be out of date when they arrive
+        service.cancelItemListRequests(this);
+        mOrderedPagesBeforeHandshake.clear();
+        mOrderedPages.clear();
+        mReceivedPages.clear();
+        invalidateItemAdapter();
+        maybeOrderVisiblePages(getListView());
+    }
+
     /** Empty the variables that track which pages have been requested. */
     public void clearItems() {
         mOrderedPagesBeforeHandshake.clear();
@@ -374,7 +543,8 @@ public abstract class ItemListActivity extends BaseActivity {
     /**
      * Tracks scrolling activity.
      * <p>
-     * When the list is idle, new pages of data are fetched from the server.
+     * When the list is idle, new pages of data are fetched from the server. While the list is
+     * scrolling, pages ahead of the scroll are prefetched.
      * <p>
      * Use a TouchListener to work around an Android bug where SCROLL_STATE_IDLE messages are not
      * delivered after SCROLL_STATE_TOUCH_SCROLL messages.
@@ -417,6 +587,10 @@ public abstract class ItemListActivity extends BaseActivity {
 
                 case OnScrollListener.SCROLL_STATE_FLING:
                 case OnScrollListener.SCROLL_STATE_TOUCH_SCROLL:
+                    if (!mListScrolling) {
+                        mPrevFirstVisibleItem = listView.getFirstVisiblePosition();
+                        mPrevScrollTime = SystemClock.uptimeMillis();
+                    }
                     mListScrolling = true;
                     break;
             }
@@ -424,11 +598,14 @@ public abstract class ItemListActivity extends BaseActivity {
             mPrevScrollState = scrollState;
         }
 
-        // Do not use: is not called when the scroll completes, appears to be
-        // called multiple time during a scroll, including during flinging.
+        // Is not called when the scroll completes, but is called multiple times
+        // during a scroll, including during flinging, so use it to prefetch pages.
         @Override
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                 int totalItemCount) {
+            if (mListScrolling && visibleItemCount > 0) {
+                prefetchPages(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
         }
 
         /**
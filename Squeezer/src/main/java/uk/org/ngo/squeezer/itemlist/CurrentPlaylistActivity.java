@@ -38,6 +38,7 @@ import androidx.core.view.GestureDetectorCompat;
 import java.util.Map;
 
 import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.ItemAdapter;
 import uk.org.ngo.squeezer.framework.ItemView;
 import uk.org.ngo.squeezer.itemlist.dialog.PlaylistSaveDialog;
@@ -100,6 +101,18 @@ public class CurrentPlaylistActivity extends JiveItemListActivity {
      */
     private Handler playlistIndexUpdateHandler = new Handler();
 
+    /**
+     * Timestamp of the playlist shown, or 0 if it's not known yet. Received items from an older
+     * version of the playlist are discarded.
+     */
+    private volatile long playlistTimestamp;
+
+    /**
+     * Set when the playlist is refreshed after a change, so the list keeps its scroll position
+     * instead of moving to the current song.
+     */
+    private volatile boolean keepPosition;
+
     /**
      * A list adapter that highlights the view that's currently playing.
      */
@@ -146,6 +159,13 @@ public class CurrentPlaylistActivity extends JiveItemListActivity {
         service.pluginItems(start, "status", this);
     }
 
+    @Override
+    protected void clearItemAdapter() {
+        super.clearItemAdapter();
+        playlistTimestamp = 0;
+        keepPosition = false;
+    }
+
     @Override
     protected boolean needPlayer() {
         return true;
@@ -245,13 +265,28 @@ public class CurrentPlaylistActivity extends JiveItemListActivity {
             return;
         }
         if (event.player.equals(getService().getActivePlayer())) {
-            clearAndReOrderItems();
-            getItemAdapter().notifyDataSetChanged();
+            long timestamp = event.player.getPlayerState().getCurrentPlaylistTimestamp();
+            if (playlistTimestamp == 0) {
+                clearAndReOrderItems();
+            } else if (timestamp != playlistTimestamp) {
+                // Keep the list as it is, and order the pages again as they are shown
+                playlistTimestamp = timestamp;
+                keepPosition = true;
+                refreshItems();
+            }
         }
     }
 
     @Override
     public void onItemsReceived(int count, int start, Map<String, Object> parameters, List<JiveItem> items, Class<JiveItem> dataType) {
+        long timestamp = Util.getLong(parameters, "playlist_timestamp");
+        if (playlistTimestamp == 0) {
+            playlistTimestamp = timestamp;
+        } else if (timestamp != 0 && timestamp < playlistTimestamp) {
+            Log.d(getTag(), "Discard items from playlist " + timestamp + ", current " + playlistTimestamp);
+            return;
+        }
+
         List<JiveItem> playlistItems = new ArrayList<>();
         for (JiveItem item : items) {
             // Skip special items (global actions) as there are handled locally
@@ -277,7 +312,7 @@ public class CurrentPlaylistActivity extends JiveItemListActivity {
         // Do it again once it has loaded because the newly displayed items
         // may push the current song outside the displayed area
         int selectedIndex = getItemAdapter().getSelectedIndex();
-        if (start == 0 || (start <= selectedIndex && selectedIndex < start + playlistItems.size())) {
+        if (!keepPosition && (start == 0 || (start <= selectedIndex && selectedIndex < start + playlistItems.size()))) {
             selectCurrentSong(selectedIndex, start);
         }
     }
@@ -21,6 +21,8 @@ import androidx.annotation.NonNull;
 
 import java.util.Map;
 
+import uk.org.ngo.squeezer.Util;
+
 
 public class CurrentPlaylistItem extends JiveItem {
 
@@ -47,7 +49,11 @@ public class CurrentPlaylistItem extends JiveItem {
     }
 
     public CurrentPlaylistItem(Map<String, Object> record) {
-        super(record);
+        this(record, Util.getRecord(record, "base"));
+    }
+
+    public CurrentPlaylistItem(Map<String, Object> record, Map<String, Object> baseRecord) {
+        super(record, baseRecord);
         track = getStringOrEmpty(record, "track");
         artist = getStringOrEmpty(record, "artist");
         album = getStringOrEmpty(record, "album");
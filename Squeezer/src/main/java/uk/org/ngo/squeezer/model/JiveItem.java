@@ -50,6 +50,7 @@ public class JiveItem extends Item {
      * <p>
      * a:artist artist name<br/>
      * C:compilation (1 if true, missing otherwise)<br/>
+     * e:album_id album id<br/>
      * j:coverart (1 if available, missing otherwise)<br/>
      * J:artwork_track_id (if available, missing otherwise)<br/>
      * K:artwork_url URL to remote artwork<br/>
@@ -58,7 +59,7 @@ public class JiveItem extends Item {
      * u:url Song file url<br/>
      * x:remote 1, if this is a remote track<br/>
      */
-    private static final String SONG_TAGS = "aCjJKltux";
+    private static final String SONG_TAGS = "aCejJKltux";
 
     public static final Creator<JiveItem> CREATOR = new Creator<JiveItem>() {
         @Override
@@ -263,13 +264,23 @@ public class JiveItem extends Item {
 
 
     public JiveItem(Map<String, Object> record) {
+        this(record, Util.getRecord(record, "base"));
+    }
+
+    /**
+     * Create an item from a record in an item list.
+     *
+     * @param record Item data from Squeezebox Server
+     * @param baseRecord The "base" record of the list, shared by all the items in the list
+     *                   instead of being copied into each item record. May be null.
+     */
+    public JiveItem(Map<String, Object> record, Map<String, Object> baseRecord) {
         setId(getString(record, record.containsKey("cmd") ? "cmd" : "id"));
         splitItemText(getStringOrEmpty(record, record.containsKey("name") ? "name" : "text"));
         icon = getImageUrl(record, record.containsKey("icon-id") ? "icon-id" : "icon");
         node = getString(record, "node");
         weight = getInt(record, "weight");
         type = getString(record, "type");
-        Map<String, Object> baseRecord = getRecord(record, "base");
         Map<String, Object> baseActions = (baseRecord != null ? getRecord(baseRecord, "actions") : null);
         Map<String, Object> baseWindow = (baseRecord != null ? getRecord(baseRecord, "window") : null);
         Map<String, Object> actionsRecord = getRecord(record, "actions");
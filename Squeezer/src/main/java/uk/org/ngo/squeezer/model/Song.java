@@ -13,6 +13,7 @@ public class Song {
     public int trackNum;
     public String artist;
     public String album;
+    public String albumId;
     public String albumArtist;
     public String url;
     public String icon;
@@ -23,6 +24,7 @@ public class Song {
         trackNum = Util.getInt(record, "tracknum", 1);
         artist = Util.getString(record, "artist");
         album = Util.getString(record, "album");
+        albumId = Util.getString(record, "album_id");
         boolean compilation = (Util.getInt(record, "compilation", 0) == 1);
         albumArtist = (compilation ? "Various" : artist); // TODO maybe use the artist role tag ("A")
         url = Util.getString(record, "url");
@@ -41,6 +43,7 @@ public class Song {
                 ", trackNum=" + trackNum +
                 ", artist='" + artist + '\'' +
                 ", album='" + album + '\'' +
+                ", albumId='" + albumId + '\'' +
                 ", albumArtist='" + albumArtist + '\'' +
                 ", url='" + url + '\'' +
                 ", icon='" + icon + '\'' +
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.net.ConnectivityManagerCompat;
+
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.model.JiveItem;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.util.ImageFetcher;
+
+/**
+ * Loads the artwork for the tracks following the current track of the active player in to the
+ * image cache, so the notification and the now playing screen can show the new cover as soon as
+ * the track changes.
+ * <p>
+ * The upcoming tracks are requested from the server when the current track or the playlist
+ * changes, and their artwork is loaded at the sizes used by the notification, and at the size of
+ * the now playing screen once it's known. On a metered network only the artwork for the next
+ * track is loaded, and only for the notification.
+ */
+class ArtworkPrefetcher {
+    private static final String TAG = "ArtworkPrefetcher";
+
+    /** Number of upcoming tracks to load artwork for. */
+    private static final int PREFETCH_TRACKS = 3;
+
+    /** Number of upcoming tracks to load artwork for on a metered network. */
+    private static final int PREFETCH_TRACKS_METERED = 1;
+
+    private final Context mContext;
+
+    private final SlimDelegate mDelegate;
+
+    /** Size of the artwork on the now playing screen, or 0 if it's not known yet. */
+    private volatile int mFullScreenWidth;
+    private volatile int mFullScreenHeight;
+
+    /**
+     * Identifies the player, playlist and position of the last prefetch, so it's only requested
+     * once for each position.
+     */
+    private volatile String mLastPrefetch;
+
+    ArtworkPrefetcher(Context context, SlimDelegate delegate) {
+        mContext = context;
+        mDelegate = delegate;
+    }
+
+    /**
+     * Remember the size of the artwork on the now playing screen, so upcoming artwork can be
+     * loaded at that size too.
+     */
+    void setFullScreenSize(int width, int height) {
+        if (width != mFullScreenWidth || height != mFullScreenHeight) {
+            mFullScreenWidth = width;
+            mFullScreenHeight = height;
+            mLastPrefetch = null;
+        }
+    }
+
+    /** Forget the last prefetch, e.g. when the active player changes. */
+    void reset() {
+        mLastPrefetch = null;
+    }
+
+    /**
+     * Load the artwork for the tracks following the current track of the given player.
+     */
+    void prefetch(Player player) {
+        PlayerState playerState = player.getPlayerState();
+        final int start = playerState.getCurrentPlaylistIndex() + 1;
+        final boolean metered = isActiveNetworkMetered();
+        final int count = Math.min(metered ? PREFETCH_TRACKS_METERED : PREFETCH_TRACKS,
+                playerState.getCurrentPlaylistTracksNum() - start);
+        if (count <= 0) {
+            return;
+        }
+
+        String prefetch = player.getId() + ':' + playerState.getCurrentPlaylistTimestamp() + ':'
+                + start + ':' + metered;
+        if (prefetch.equals(mLastPrefetch)) {
+            return;
+        }
+        mLastPrefetch = prefetch;
+
+        Log.v(TAG, "prefetch " + count + " from " + start + (metered ? " (metered)" : ""));
+        mDelegate.requestItems(player, start, count, new IServiceItemListCallback<JiveItem>() {
+            @Override
+            public void onItemsReceived(int total, int first, Map<String, Object> parameters, List<JiveItem> items, Class<JiveItem> dataType) {
+                // The response may be followed by the rest of the page, ignore that.
+                for (int i = 0; i < items.size() && first + i < start + count; i++) {
+                    JiveItem item = items.get(i);
+                    if (item.hasArtwork()) {
+                        prefetch(item, metered);
+                    }
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return ArtworkPrefetcher.this;
+            }
+        }).cmd("status").param("menu", "menu").exec();
+    }
+
+    private void prefetch(JiveItem item, boolean metered) {
+        ImageFetcher imageFetcher = ImageFetcher.getInstance(mContext);
+        Resources resources = mContext.getResources();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            imageFetcher.prefetchImage(item.getIcon(),
+                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height));
+        } else {
+            imageFetcher.prefetchImage(item.getIcon(),
+                    resources.getDimensionPixelSize(R.dimen.album_art_icon_normal_notification_width),
+                    resources.getDimensionPixelSize(R.dimen.album_art_icon_normal_notification_height));
+            imageFetcher.prefetchImage(item.getIcon(),
+                    resources.getDimensionPixelSize(R.dimen.album_art_icon_expanded_notification_width),
+                    resources.getDimensionPixelSize(R.dimen.album_art_icon_expanded_notification_height));
+        }
+
+        int width = mFullScreenWidth;
+        int height = mFullScreenHeight;
+        if (!metered && width > 0 && height > 0) {
+            imageFetcher.prefetchImage(item.getIcon(), width, height);
+        }
+    }
+
+    private boolean isActiveNetworkMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager == null || ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+}
@@ -18,9 +18,11 @@ package uk.org.ngo.squeezer.service;
 
 import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.common.base.Splitter;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -56,6 +58,14 @@ abstract class BaseClient implements SlimClient {
     /** The prefix for URLs for downloads and cover art. */
     String mUrlPrefix;
 
+    /** The last status received for each player. */
+    private final StatusSnapshots mStatusSnapshots = new StatusSnapshots();
+
+    /** Rate limits the commands of continuous controls. */
+    final ControlCommands mControlCommands = new ControlCommands(
+            (player, cmd) -> command(player, cmd, Collections.emptyMap()),
+            this::onControlExpired);
+
     BaseClient(@NonNull EventBus eventBus) {
         mEventBus = eventBus;
         mConnectionState = new ConnectionState(eventBus);
@@ -66,6 +76,11 @@ abstract class BaseClient implements SlimClient {
         return mConnectionState;
     }
 
+    @Override
+    public void controlCommand(Player player, String control, int value, String[] cmd) {
+        mControlCommands.submit(player, control, value, cmd);
+    }
+
     @Override
     public <T> void requestItems(Player player, String[] cmd, Map<String, Object> params, int start, int pageSize, IServiceItemListCallback<T> callback) {
         final BaseClient.BrowseRequest<T> browseRequest = new BaseClient.BrowseRequest<>(player, cmd, params, start, pageSize, callback);
@@ -89,54 +104,145 @@ abstract class BaseClient implements SlimClient {
         return mUrlPrefix;
     }
 
-    void parseStatus(final Player player, CurrentPlaylistItem currentSong, Map<String, Object> tokenMap) {
+    /**
+     * A control was not confirmed by the server in time. Apply the last value the server
+     * reported, which was ignored while the control was unconfirmed, and which won't be reported
+     * again unless it changes.
+     */
+    private void onControlExpired(Player player, String control, int reportedValue) {
+        PlayerState playerState = player.getPlayerState();
+        if (ControlCommands.VOLUME.equals(control)) {
+            if (playerState.setCurrentVolume(reportedValue)) {
+                postPlayerStateChanged(player, PlayerStateChanged.VOLUME);
+                mEventBus.post(new PlayerVolume(reportedValue, player));
+            }
+        } else if (ControlCommands.TIME.equals(control)) {
+            playerState.statusSeen = SystemClock.elapsedRealtime() / 1000.0;
+            playerState.setCurrentTimeSecond(reportedValue);
+            postPlayerStateChanged(player, PlayerStateChanged.SONG_TIME);
+            postSongTimeChanged(player);
+        }
+    }
+
+    protected void postSongTimeChanged(Player player) {
+        mEventBus.post(player.getTrackElapsed());
+    }
+
+    protected void postPlayerStateChanged(Player player, int changes) {
+        mEventBus.post(new PlayerStateChanged(player, changes));
+    }
+
+    /**
+     * Update the state of the player from a status message.
+     * <p>
+     * Fields are compared to the previous status message for the player, and only the fields
+     * which changed are parsed. A single {@link PlayerStateChanged} event with the combined
+     * changes is posted, followed by the specific events for the changes. Nothing is posted if
+     * the status doesn't change the state.
+     *
+     * @param player Player the status is for
+     * @param songRecord The current song, or null if the status doesn't contain it separately
+     * @param baseRecord Data shared by the items of the status, or null
+     * @param tokenMap The status
+     */
+    void parseStatus(final Player player, @Nullable Map<String, Object> songRecord, @Nullable Map<String, Object> baseRecord, Map<String, Object> tokenMap) {
         PlayerState playerState = player.getPlayerState();
+        double previousSeen = playerState.statusSeen;
+        double previousRate = playerState.rate;
         playerState.statusSeen = SystemClock.elapsedRealtime() / 1000.0;
 
-        boolean changedPower = playerState.setPoweredOn(Util.getInt(tokenMap, "power") == 1);
-        boolean changedShuffleStatus = playerState.setShuffleStatus(Util.getString(tokenMap, "playlist shuffle"));
-        boolean changedRepeatStatus = playerState.setRepeatStatus(Util.getString(tokenMap, "playlist repeat"));
-        boolean changedPlaylist = playerState.setCurrentPlaylistTimestamp(Util.getLong(tokenMap, "playlist_timestamp"));
+        int changed = mStatusSnapshots.update(player.getId(), playerState, tokenMap, songRecord, baseRecord);
+
+        int changes = 0;
+        if ((changed & PlayerStateChanged.POWER) != 0 && playerState.setPoweredOn(Util.getInt(tokenMap, "power") == 1)) {
+            changes |= PlayerStateChanged.POWER;
+        }
+        if ((changed & PlayerStateChanged.SHUFFLE) != 0 && playerState.setShuffleStatus(Util.getString(tokenMap, "playlist shuffle"))) {
+            changes |= PlayerStateChanged.SHUFFLE;
+        }
+        if ((changed & PlayerStateChanged.REPEAT) != 0 && playerState.setRepeatStatus(Util.getString(tokenMap, "playlist repeat"))) {
+            changes |= PlayerStateChanged.REPEAT;
+        }
+        if ((changed & PlayerStateChanged.PLAYLIST) != 0 && playerState.setCurrentPlaylistTimestamp(Util.getLong(tokenMap, "playlist_timestamp"))) {
+            changes |= PlayerStateChanged.PLAYLIST;
+        }
         playerState.setCurrentPlaylistTracksNum(Util.getInt(tokenMap, "playlist_tracks"));
         playerState.setCurrentPlaylistIndex(Util.getInt(tokenMap, "playlist_cur_index"));
         playerState.setCurrentPlaylist(Util.getString(tokenMap, "playlist_name"));
-        boolean changedSleep = playerState.setSleep(Util.getInt(tokenMap, "will_sleep_in"));
-        boolean changedSleepDuration = playerState.setSleepDuration(Util.getInt(tokenMap, "sleep"));
-        if (currentSong == null) currentSong = new CurrentPlaylistItem(tokenMap);
-        boolean changedSong = playerState.setCurrentSong(currentSong);
+        if ((changed & PlayerStateChanged.SLEEP) != 0) {
+            if (playerState.setSleep(Util.getInt(tokenMap, "will_sleep_in"))) {
+                changes |= PlayerStateChanged.SLEEP;
+            }
+            if (playerState.setSleepDuration(Util.getInt(tokenMap, "sleep"))) {
+                changes |= PlayerStateChanged.SLEEP;
+            }
+        }
+        if ((changed & PlayerStateChanged.SONG) != 0) {
+            CurrentPlaylistItem song = (songRecord != null ? new CurrentPlaylistItem(songRecord, baseRecord) : new CurrentPlaylistItem(tokenMap));
+            if (playerState.setCurrentSong(song)) {
+                changes |= PlayerStateChanged.SONG;
+            }
+        }
         playerState.setRemote(Util.getInt(tokenMap, "remote") == 1);
         playerState.waitingToPlay = Util.getInt(tokenMap, "waitingToPlay") == 1;
         playerState.rate = Util.getDouble(tokenMap, "rate");
-        boolean changedSongDuration = playerState.setCurrentSongDuration(Util.getInt(tokenMap, "duration"));
-        boolean changedSongTime = playerState.setCurrentTimeSecond(Util.getDouble(tokenMap, "time"));
-        boolean changedVolume = playerState.setCurrentVolume(Util.getInt(tokenMap, "mixer volume"));
-        boolean changedSyncMaster = playerState.setSyncMaster(Util.getString(tokenMap, "sync_master"));
-        boolean changedSyncSlaves = playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Util.getStringOrEmpty(tokenMap, "sync_slaves")));
+        if ((changed & PlayerStateChanged.SONG_TIME) != 0) {
+            if (playerState.setCurrentSongDuration(Util.getInt(tokenMap, "duration"))) {
+                changes |= PlayerStateChanged.SONG_TIME;
+            }
+            // While seeking, keep the position last set by the user, moved on by the time passed
+            // since the previous status.
+            double time = Util.getDouble(tokenMap, "time");
+            if (mControlCommands.isUnconfirmed(player, ControlCommands.TIME, (int) time)) {
+                time = playerState.getCurrentTimeSecond() + Math.max(0, previousRate * (playerState.statusSeen - previousSeen));
+            }
+            if (playerState.setCurrentTimeSecond(time)) {
+                changes |= PlayerStateChanged.SONG_TIME;
+            }
+        }
+        // While the volume is being changed, keep the volume last set by the user.
+        if ((changed & PlayerStateChanged.VOLUME) != 0) {
+            int volume = Util.getInt(tokenMap, "mixer volume");
+            if (!mControlCommands.isUnconfirmed(player, ControlCommands.VOLUME, volume) && playerState.setCurrentVolume(volume)) {
+                changes |= PlayerStateChanged.VOLUME;
+            }
+        }
+        if ((changed & PlayerStateChanged.SYNC) != 0) {
+            if (playerState.setSyncMaster(Util.getString(tokenMap, "sync_master"))) {
+                changes |= PlayerStateChanged.SYNC;
+            }
+            if (playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Util.getStringOrEmpty(tokenMap, "sync_slaves")))) {
+                changes |= PlayerStateChanged.SYNC;
+            }
+        }
+        if ((changed & PlayerStateChanged.PLAY_STATUS) != 0 && updatePlayStatus(player, Util.getString(tokenMap, "mode"))) {
+            changes |= PlayerStateChanged.PLAY_STATUS;
+        }
 
         player.setPlayerState(playerState);
 
-        // Kept as its own method because other methods call it, unlike the explicit
-        // calls to the callbacks below.
-        updatePlayStatus(player, Util.getString(tokenMap, "mode"));
+        if (changes == 0) {
+            return;
+        }
+        postPlayerStateChanged(player, changes);
 
         // Current playlist
-        if (changedPlaylist) {
+        if ((changes & PlayerStateChanged.PLAYLIST) != 0) {
             mEventBus.post(new PlaylistChanged(player));
         }
 
-        if (changedPower || changedSleep || changedSleepDuration || changedVolume
-                || changedSong || changedSongDuration || changedSongTime
-                || changedSyncMaster || changedSyncSlaves) {
-            postPlayerStateChanged(player);
+        // Play status
+        if ((changes & PlayerStateChanged.PLAY_STATUS) != 0) {
+            mEventBus.post(new PlayStatusChanged(playerState.getPlayStatus(), player));
         }
 
         // Volume
-        if (changedVolume) {
+        if ((changes & PlayerStateChanged.VOLUME) != 0) {
             mEventBus.post(new PlayerVolume(playerState.getCurrentVolume(), player));
         }
 
         // Power status
-        if (changedPower) {
+        if ((changes & PlayerStateChanged.POWER) != 0) {
             mEventBus.post(new PowerStatusChanged(
                     player,
                     !playerState.isPoweredOn(),
@@ -144,47 +250,38 @@ abstract class BaseClient implements SlimClient {
         }
 
         // Current song
-        if (changedSong) {
+        if ((changes & PlayerStateChanged.SONG) != 0) {
             mEventBus.postSticky(new MusicChanged(player, playerState));
         }
 
         // Shuffle status.
-        if (changedShuffleStatus) {
+        if ((changes & PlayerStateChanged.SHUFFLE) != 0) {
             mEventBus.post(new ShuffleStatusChanged(player, playerState.getShuffleStatus()));
         }
 
         // Repeat status.
-        if (changedRepeatStatus) {
+        if ((changes & PlayerStateChanged.REPEAT) != 0) {
             mEventBus.post(new RepeatStatusChanged(player, playerState.getRepeatStatus()));
         }
 
         // Position in song
-        if (changedSongDuration || changedSongTime) {
+        if ((changes & PlayerStateChanged.SONG_TIME) != 0) {
             postSongTimeChanged(player);
         }
     }
 
-    protected void postSongTimeChanged(Player player) {
-        mEventBus.post(player.getTrackElapsed());
-    }
-
-    protected void postPlayerStateChanged(Player player) {
-        mEventBus.post(new PlayerStateChanged(player));
-    }
-
-    private void updatePlayStatus(Player player, String playStatus) {
+    /**
+     * @return True if the play status changed
+     */
+    private boolean updatePlayStatus(Player player, String playStatus) {
         // Handle unknown states.
         if (!playStatus.equals(PlayerState.PLAY_STATE_PLAY) &&
                 !playStatus.equals(PlayerState.PLAY_STATE_PAUSE) &&
                 !playStatus.equals(PlayerState.PLAY_STATE_STOP)) {
-            return;
+            return false;
         }
 
-        PlayerState playerState = player.getPlayerState();
-
-        if (playerState.setPlayStatus(playStatus)) {
-            mEventBus.post(new PlayStatusChanged(playStatus, player));
-        }
+        return player.getPlayerState().setPlayStatus(playStatus);
     }
 
     protected static class BrowseRequest<T> extends SlimCommand {
@@ -193,6 +290,7 @@ abstract class BaseClient implements SlimClient {
         private int start;
         private int itemsPerResponse;
         private final IServiceItemListCallback<T> callback;
+        private String cacheKey;
 
         BrowseRequest(Player player, String[] cmd, Map<String, Object> params, int start, int itemsPerResponse, IServiceItemListCallback<T> callback) {
             this.player = player;
@@ -229,5 +327,14 @@ abstract class BaseClient implements SlimClient {
         public IServiceItemListCallback<T> getCallback() {
             return callback;
         }
+
+        /** @return The key of the current page in the browse cache, or null if it isn't cached */
+        String getCacheKey() {
+            return cacheKey;
+        }
+
+        void setCacheKey(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
     }
 }
@@ -2,7 +2,6 @@ package uk.org.ngo.squeezer.service;
 
 import androidx.fragment.app.Fragment.InstantiationException;
 
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -24,7 +23,7 @@ abstract class BaseListHandler<T> implements ListHandler<T> {
     private final Class<T> dataType = (Class<T>) Reflection
             .getGenericClass(this.getClass(), ListHandler.class, 0);
 
-    private Constructor<T> constructor;
+    private final ItemFactory<T> factory = ItemFactory.forType(dataType);
 
     @Override
     public Class<T> getDataType() {
@@ -44,20 +43,19 @@ abstract class BaseListHandler<T> implements ListHandler<T> {
     }
 
     @Override
-    public void add(Map<String, Object> record) {
-        if (constructor == null) {
-            try {
-                constructor = dataType.getDeclaredConstructor(Map.class);
-            } catch (Exception e) {
-                throw new InstantiationException(
-                        "Unable to create constructor for " + dataType.getName(), e);
-            }
-        }
-        try {
-            items.add(constructor.newInstance(record));
-        } catch (Exception e) {
-            throw new InstantiationException("Unable to create new " + dataType.getName(), e);
+    public void add(Map<String, Object> record, Map<String, Object> baseRecord) {
+        items.add(newItem(record, baseRecord));
+    }
+
+    /**
+     * Create an item without adding it to the list, e.g. while the list is still being read.
+     * Safe to call from any thread.
+     */
+    protected T newItem(Map<String, Object> record, Map<String, Object> baseRecord) {
+        if (factory == null) {
+            throw new InstantiationException("No item factory registered for " + dataType.getName(), null);
         }
+        return factory.create(record, baseRecord);
     }
 
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.org.ngo.squeezer.util.DiskLruCache;
+import uk.org.ngo.squeezer.util.ImageCache;
+
+/**
+ * Persistent cache of the responses to library browse requests.
+ * <p>
+ * The library only changes when the server rescans it, so pages are keyed by the server, the
+ * complete request (player, command, paging and parameters) and the time of the last scan as
+ * reported in serverstatus. When the server rescans, its cached pages are never hit again, and
+ * are evicted by the LRU policy of the underlying {@link DiskLruCache}.
+ * <p>
+ * All methods perform disk I/O and must not be called on the main thread.
+ */
+class BrowseCache {
+    private static final String TAG = BrowseCache.class.getSimpleName();
+
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 1;
+    private static final int DISK_CACHE_INDEX = 0;
+    private static final long DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+
+    /** Commands which browse the music library, the results of which only change on a rescan. */
+    private static final Set<String> LIBRARY_COMMANDS = ImmutableSet.of(
+            "browselibrary", "artists", "albums", "genres", "years", "titles", "musicfolder");
+
+    @Nullable
+    private DiskLruCache mDiskLruCache;
+
+    /**
+     * Receives the outcome of {@link #lookup(String, ConcurrentMap, String, LookupCallback)}.
+     *
+     * @param <R> Type of the request
+     */
+    interface LookupCallback<R> {
+        /** The response to the request is in the cache, and no request must be sent. */
+        void onHit(R request, Map<String, Object> data);
+
+        /** The response is not in the cache, and must be requested from the server. */
+        void onMiss(R request);
+    }
+
+    /**
+     * Open the cache in the supplied directory, if it's not already open.
+     */
+    synchronized void open(File directory) {
+        if (mDiskLruCache != null) {
+            return;
+        }
+        try {
+            mDiskLruCache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, DISK_CACHE_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open browse cache in " + directory, e);
+        }
+    }
+
+    /**
+     * @param urlPrefix The server the request is sent to
+     * @param libraryStamp Time of the last library scan on the server, or null if not known
+     * @param cmd The command terms of the request
+     * @param slimRequest The complete request as sent to the server
+     *
+     * @return The key for the response to the request, or null if the response must not be cached
+     */
+    @Nullable
+    static String key(String urlPrefix, @Nullable String libraryStamp, List<String> cmd, List<Object> slimRequest) {
+        if (libraryStamp == null || cmd.isEmpty() || !LIBRARY_COMMANDS.contains(cmd.get(0))) {
+            return null;
+        }
+        return ImageCache.hashKeyForDisk(urlPrefix + " " + libraryStamp + " " + slimRequest);
+    }
+
+    /**
+     * @return The cached response data for the supplied key, or null if it is not in the cache.
+     */
+    @Nullable
+    synchronized Map<String, Object> get(String key) {
+        if (mDiskLruCache == null) {
+            return null;
+        }
+        try {
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+            if (snapshot != null) {
+                try {
+                    //noinspection unchecked
+                    return (Map<String, Object>) JSON.parse(snapshot.getString(DISK_CACHE_INDEX));
+                } finally {
+                    snapshot.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read " + key + " from browse cache", e);
+        }
+        return null;
+    }
+
+    /**
+     * Look up the cached response to a request, which is registered in <code>pending</code> under
+     * <code>token</code> while the cache is read. The request is cancelled by removing it from
+     * <code>pending</code>, and then neither callback is called.
+     * <p>
+     * On a hit the request is removed from <code>pending</code> before it's delivered. On a miss
+     * it's still registered when the callback is called, so the callback can register it for the
+     * response from the server before it removes the token, and it can be cancelled all along.
+     */
+    <R> void lookup(String key, ConcurrentMap<String, R> pending, String token, LookupCallback<R> callback) {
+        R request = pending.get(token);
+        if (request == null) {
+            return;
+        }
+        Map<String, Object> data = get(key);
+        if (data != null) {
+            if (pending.remove(token, request)) {
+                callback.onHit(request, data);
+            }
+        } else if (pending.get(token) == request) {
+            callback.onMiss(request);
+        }
+    }
+
+    /**
+     * Store the response data (as JSON) for the supplied key.
+     */
+    synchronized void put(String key, String json) {
+        if (mDiskLruCache == null) {
+            return;
+        }
+        try {
+            DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+            if (editor != null) {
+                editor.set(DISK_CACHE_INDEX, json);
+                editor.commit();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + key + " to browse cache", e);
+        }
+    }
+}
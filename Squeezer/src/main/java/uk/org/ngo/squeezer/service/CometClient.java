@@ -32,14 +32,15 @@ import org.cometd.bayeux.Channel;
 import org.cometd.bayeux.Message;
 import org.cometd.bayeux.client.ClientSessionChannel;
 import org.cometd.client.BayeuxClient;
-import org.cometd.client.transport.ClientTransport;
 import org.cometd.client.transport.HttpClientTransport;
 import org.cometd.client.transport.TransportListener;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.util.B64Code;
+import org.eclipse.jetty.util.ajax.JSON;
 
+import java.io.File;
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
 import java.net.URI;
@@ -48,11 +49,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import de.greenrobot.event.EventBus;
@@ -63,7 +64,6 @@ import uk.org.ngo.squeezer.model.DisplayMessage;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.model.Alarm;
 import uk.org.ngo.squeezer.model.AlarmPlaylist;
-import uk.org.ngo.squeezer.model.CurrentPlaylistItem;
 import uk.org.ngo.squeezer.model.JiveItem;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
@@ -74,8 +74,10 @@ import uk.org.ngo.squeezer.service.event.DisplayEvent;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
 import uk.org.ngo.squeezer.model.MenuStatusMessage;
 import uk.org.ngo.squeezer.service.event.PlayerPrefReceived;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
 import uk.org.ngo.squeezer.service.event.PlayerVolume;
 import uk.org.ngo.squeezer.service.event.RegisterSqueezeNetwork;
+import uk.org.ngo.squeezer.util.Record;
 import uk.org.ngo.squeezer.util.Reflection;
 
 class CometClient extends BaseClient {
@@ -114,14 +116,33 @@ class CometClient extends BaseClient {
     // Maximum time for wait replies for server capabilities
     private static final long HANDSHAKE_TIMEOUT = 4000;
 
+    /** Maximum time to wait for the server to acknowledge a publish, before freeing its slot. */
+    private static final long PUBLISH_TIMEOUT = 30_000;
+
+    /** Time to collect publishes, so they can be sent to the server in a single Bayeux batch. */
+    private static final long PUBLISH_BATCH_DELAY = 5;
+
+    /** Prefix of the keys in {@link #mPendingBrowseRequests} for requests which are looked up in the cache. */
+    private static final String CACHE_LOOKUP_PREFIX = "cache-lookup-";
+
 
     /** Handler for off-main-thread work. */
     @NonNull
     private final Handler mBackgroundHandler;
 
+    /**
+     * Handler for reads and writes of {@link #mBrowseCache}, so slow disk I/O doesn't hold up
+     * publishes on {@link #mBackgroundHandler}.
+     */
+    @NonNull
+    private final Handler mCacheHandler;
+
     /** Map from an item request command ("players") to the listener class for responses. */
     private final Map<Class<?>, ItemListener<?>> mItemRequestMap;
 
+    /** Cache of the listener for each callback class, filled on demand from {@link #mItemRequestMap}. */
+    private final Map<Class<?>, ItemListener<?>> mCallbackListeners = new ConcurrentHashMap<>();
+
     /** Map from a request to the listener class for responses. */
     private  final Map<String, ResponseHandler> mRequestMap;
 
@@ -132,11 +153,29 @@ class CometClient extends BaseClient {
     private final Map<String, Request> mPendingRequests
             = new ConcurrentHashMap<>();
 
-    private final Map<String, BrowseRequest<?>> mPendingBrowseRequests
+    /**
+     * Browse requests waiting for a response, by response channel. Requests which are looked up
+     * in {@link #mBrowseCache} are registered under a lookup token until the server is asked.
+     */
+    private final ConcurrentMap<String, BrowseRequest<?>> mPendingBrowseRequests
             = new ConcurrentHashMap<>();
 
-    private final Queue<PublishMessage> mCommandQueue = new LinkedList<>();
-    private boolean mCurrentCommand;
+    private final AtomicInteger mCacheLookupId = new AtomicInteger();
+
+    /** Items of browse responses which are created while the response is read, by response channel. */
+    private final Map<String, StreamedItems<?>> mStreamedItems = new ConcurrentHashMap<>();
+
+    /** Persistent cache of library browse responses. */
+    private final BrowseCache mBrowseCache = new BrowseCache();
+
+    /** Time of the last library scan on the server, or null while scanning or not known yet. */
+    private volatile String mLibraryStamp;
+
+    /** Publishes to the server, bounded by the configured number of outstanding requests. */
+    private final PublishWindow<PublishMessage> mPublishWindow = new PublishWindow<>(this::_publish, 1);
+
+    /** Publishes waiting for the current batch window to close. */
+    private final List<PublishMessage> mPublishBatch = new ArrayList<>();
 
     private final PublishListener mPublishListener = new PublishListener();
 
@@ -151,6 +190,10 @@ class CometClient extends BaseClient {
         handlerThread.start();
         mBackgroundHandler = new CliHandler(handlerThread.getLooper());
 
+        HandlerThread cacheThread = new HandlerThread(SqueezeService.class.getSimpleName() + " cache");
+        cacheThread.start();
+        mCacheHandler = new Handler(cacheThread.getLooper());
+
         List<ItemListener<?>> itemListeners = Arrays.asList(
                 new AlarmsListener(),
                 new AlarmPlaylistsListener(),
@@ -174,8 +217,10 @@ class CometClient extends BaseClient {
                         String volume = (String) message.getDataAsMap().get("_volume");
                         if (volume != null) {
                             int newVolume = Integer.valueOf(volume);
-                            player.getPlayerState().setCurrentVolume(newVolume);
-                            mEventBus.post(new PlayerVolume(newVolume, player));
+                            if (!mControlCommands.isUnconfirmed(player, ControlCommands.VOLUME, newVolume)) {
+                                player.getPlayerState().setCurrentVolume(newVolume);
+                                mEventBus.post(new PlayerVolume(newVolume, player));
+                            }
                         } else {
                             command(player, new String[]{"mixer", "volume", "?"}, Collections.emptyMap());
                         }
@@ -197,6 +242,8 @@ class CometClient extends BaseClient {
                 final String username = preferences.getUsername(serverAddress);
                 final String password = preferences.getPassword(serverAddress);
                 Log.i(TAG, "Connecting to: " + username + "@" + serverAddress.address());
+                mPublishWindow.setSize(preferences.getPublishWindow());
+                mCacheHandler.post(() -> mBrowseCache.open(new File(service.getCacheDir(), "browse")));
 
                 if (!mEventBus.isRegistered(CometClient.this)) {
                     mEventBus.register(CometClient.this);
@@ -245,7 +292,7 @@ class CometClient extends BaseClient {
 
                 Map<String, Object> options = new HashMap<>();
                 options.put(HttpClientTransport.MAX_NETWORK_DELAY_OPTION, LONG_POLLING_TIMEOUT);
-                ClientTransport clientTransport;
+                HttpStreamingTransport clientTransport;
                 if (!isSqueezeNetwork) {
                     clientTransport = new HttpStreamingTransport(url, options, httpClient) {
                         @Override
@@ -273,6 +320,7 @@ class CometClient extends BaseClient {
                         }
                     };
                 }
+                clientTransport.setItemSink(CometClient.this::onStreamedItem);
                 mBayeuxClient = new SqueezerBayeuxClient(url, clientTransport);
                 mBayeuxClient.addExtension(new SqueezerBayeuxExtension());
                 mBayeuxClient.getChannel(Channel.META_HANDSHAKE).addListener((ClientSessionChannel.MessageListener) (channel, message) -> {
@@ -310,7 +358,8 @@ class CometClient extends BaseClient {
 
             private void onConnected(boolean isSqueezeNetwork) {
                 Log.i(TAG, "Connected, start learning server capabilities");
-                mCurrentCommand = false;
+                mBackgroundHandler.removeMessages(MSG_PUBLISH_TIMEOUT);
+                mPublishWindow.resetInFlight();
                 mConnectionState.setConnectionState(ConnectionState.CONNECTION_COMPLETED);
 
                 String clientId = mBayeuxClient.getId();
@@ -367,6 +416,7 @@ class CometClient extends BaseClient {
 
         getConnectionState().setMediaDirs(Util.getStringArray(data, Player.Pref.MEDIA_DIRS));
         getConnectionState().setServerVersion((String) data.get("version"));
+        mLibraryStamp = (Util.getInt(data, "rescan") == 0 ? Util.getString(data, "lastscan") : null);
         Object[] item_data = (Object[]) data.get("players_loop");
         final HashMap<String, Player> players = new HashMap<>();
         if (item_data != null) {
@@ -389,7 +439,7 @@ class CometClient extends BaseClient {
                 PlayerState currentPlayerState = currentPlayers.get(player.getId()).getPlayerState();
                 if (!player.getPlayerState().prefs.equals(currentPlayerState.prefs)) {
                     currentPlayerState.prefs = player.getPlayerState().prefs;
-                    postPlayerStateChanged(player);
+                    postPlayerStateChanged(player, PlayerStateChanged.PREFS);
                 }
             }
         }
@@ -407,17 +457,13 @@ class CometClient extends BaseClient {
 
         Map<String, Object> messageData = message.getDataAsMap();
 
-        CurrentPlaylistItem currentSong = null;
+        Map<String, Object> songRecord = null;
         Object[] item_data = (Object[]) messageData.get("item_loop");
         if (item_data != null && item_data.length > 0) {
-            Map<String, Object> record = (Map<String, Object>) item_data[0];
-
-            patchUrlPrefix(record);
-            record.put("base", messageData.get("base"));
-            currentSong = new CurrentPlaylistItem(record);
-            record.remove("base");
+            songRecord = (Map<String, Object>) item_data[0];
+            patchUrlPrefix(songRecord);
         }
-        parseStatus(player, currentSong, messageData);
+        parseStatus(player, songRecord, Util.getRecord(messageData, "base"), messageData);
     }
 
     @Override
@@ -430,8 +476,8 @@ class CometClient extends BaseClient {
     }
 
     @Override
-    protected void postPlayerStateChanged(Player player) {
-        super.postPlayerStateChanged(player);
+    protected void postPlayerStateChanged(Player player, int changes) {
+        super.postPlayerStateChanged(player, changes);
         if (player.getPlayerState().getSleepDuration() > 0) {
             android.os.Message message = mBackgroundHandler.obtainMessage(MSG_STATE_UPDATE, player);
             mBackgroundHandler.removeMessages(MSG_STATE_UPDATE);
@@ -497,12 +543,25 @@ class CometClient extends BaseClient {
                 // TODO remote logging and possible other handling
                 Log.e(TAG, channel + ": " + message.getJSON());
             }
-            mBackgroundHandler.sendEmptyMessage(MSG_PUBLISH_RESPONSE_RECIEVED);
         }
     }
 
     private abstract class ItemListener<T> extends BaseListHandler<T> implements ResponseHandler {
-        void parseMessage(String countName, String itemLoopName, Message message) {
+        private final String itemLoopName;
+
+        ItemListener(String itemLoopName) {
+            this.itemLoopName = itemLoopName;
+        }
+
+        /** @return True if the items need the base record of the response */
+        boolean usesBaseRecord() {
+            return false;
+        }
+
+        @Override
+        public void onResponse(Player player, Request request, Message message) {
+            @SuppressWarnings("unchecked")
+            StreamedItems<T> streamedItems = (StreamedItems<T>) mStreamedItems.remove(message.getChannel());
             @SuppressWarnings("unchecked")
             BrowseRequest<T> browseRequest = (BrowseRequest<T>) mPendingBrowseRequests.get(message.getChannel());
             if (browseRequest == null) {
@@ -510,31 +569,60 @@ class CometClient extends BaseClient {
             }
 
             mPendingBrowseRequests.remove(message.getChannel());
-            clear();
             Map<String, Object> data = message.getDataAsMap();
-            int count = Util.getInt(data.get(countName));
-            Map<String, Object> baseRecord = (Map<String, Object>) data.get("base");
-            if (baseRecord != null) {
-                patchUrlPrefix(baseRecord);
+
+            final String cacheKey = browseRequest.getCacheKey();
+            if (cacheKey != null && !data.containsKey("networkerror")) {
+                // Serialize before parsing, which modifies the data. Streamed items are no longer
+                // in the data, so their JSON is put back.
+                final String json;
+                if (streamedItems != null && streamedItems.json != null) {
+                    Map<String, Object> cached = new HashMap<>(data);
+                    cached.put(itemLoopName, new JSON.Literal(streamedItems.json.append(']').toString()));
+                    json = JSON.toString(cached);
+                } else {
+                    json = JSON.toString(data);
+                }
+                mCacheHandler.post(() -> mBrowseCache.put(cacheKey, json));
             }
-            Object[] item_data = (Object[]) data.get(itemLoopName);
-            if (item_data != null) {
-                for (Object item_d : item_data) {
-                    Map<String, Object> record = (Map<String, Object>) item_d;
-                    patchUrlPrefix(record);
-                    if (baseRecord != null) record.put("base", baseRecord);
-                    add(record);
-                    record.remove("base");
+
+            parseItems(browseRequest, data, streamedItems != null ? streamedItems.items : null);
+        }
+
+        /**
+         * Create items from the supplied response data, and deliver them to the callback of the
+         * browse request.
+         *
+         * @param streamedItems Items which were created while the response was read, or null to
+         *     create the items from the response data.
+         */
+        synchronized void parseItems(BrowseRequest<T> browseRequest, Map<String, Object> data, @Nullable List<T> streamedItems) {
+            int count = Util.getInt(data.get("count"));
+            List<T> items = streamedItems;
+            if (items == null) {
+                clear();
+                Map<String, Object> baseRecord = (Map<String, Object>) data.get("base");
+                if (baseRecord != null) {
+                    patchUrlPrefix(baseRecord);
+                }
+                Object[] item_data = (Object[]) data.get(itemLoopName);
+                if (item_data != null) {
+                    for (Object item_d : item_data) {
+                        Map<String, Object> record = (Map<String, Object>) item_d;
+                        patchUrlPrefix(record);
+                        add(record, baseRecord);
+                    }
                 }
+                items = getItems();
             }
 
             // Process the lists for all the registered handlers
             final boolean fullList = browseRequest.isFullList();
             final int start = browseRequest.getStart();
-            final int end = start + getItems().size();
+            final int end = start + items.size();
             int max = 0;
             patchUrlPrefix(data);
-            browseRequest.getCallback().onItemsReceived(count, start, data, getItems(), getDataType());
+            browseRequest.getCallback().onItemsReceived(count, start, data, items, getDataType());
             if (count > max) {
                 max = count;
             }
@@ -546,40 +634,103 @@ class CometClient extends BaseClient {
                 internalRequestItems(browseRequest.update(end, itemsPerResponse));
             }
         }
-
-        void parseMessage(String itemLoopName, Message message) {
-            parseMessage("count", itemLoopName, message);
-        }
     }
 
     private class AlarmsListener extends ItemListener<Alarm> {
-        @Override
-        public void onResponse(Player player, Request request, Message message) {
-            parseMessage("alarms_loop", message);
+        AlarmsListener() {
+            super("alarms_loop");
         }
     }
 
     private class AlarmPlaylistsListener extends ItemListener<AlarmPlaylist> {
-        @Override
-        public void onResponse(Player player, Request request, Message message) {
-            parseMessage("item_loop", message);
+        AlarmPlaylistsListener() {
+            super("item_loop");
         }
     }
 
     private class SongListener extends ItemListener<Song> {
-        @Override
-        public void onResponse(Player player, Request request, Message message) {
-            parseMessage("titles_loop", message);
+        SongListener() {
+            super("titles_loop");
         }
     }
 
     private class JiveItemListener extends ItemListener<JiveItem> {
+        JiveItemListener() {
+            super("item_loop");
+        }
+
         @Override
-        public void onResponse(Player player, Request request, Message message) {
-            parseMessage("item_loop", message);
+        boolean usesBaseRecord() {
+            return true;
+        }
+    }
+
+    /**
+     * Items of a browse response, which are created while the response is read, so the records of
+     * all the items are not kept until the end of the response.
+     */
+    private class StreamedItems<T> {
+        private final ItemListener<T> listener;
+        @Nullable
+        private final Map<String, Object> baseRecord;
+        private final List<T> items = new ArrayList<>();
+        /** JSON of the items for {@link #mBrowseCache}, or null if the response is not cached. */
+        @Nullable
+        private final StringBuilder json;
+
+        StreamedItems(ItemListener<T> listener, @Nullable Map<String, Object> baseRecord, boolean cached) {
+            this.listener = listener;
+            this.baseRecord = baseRecord;
+            json = (cached ? new StringBuilder("[") : null);
+            if (baseRecord != null) {
+                patchUrlPrefix(baseRecord);
+            }
+        }
+
+        void add(Record record) {
+            if (json != null) {
+                if (!items.isEmpty()) {
+                    json.append(',');
+                }
+                JSON.getDefault().append(json, record);
+            }
+            patchUrlPrefix(record);
+            items.add(listener.newItem(record, baseRecord));
         }
     }
 
+    /**
+     * Receives the items of responses while they are read by the transport. The items of pending
+     * browse requests are created right away, instead of being kept until the whole response is
+     * read and parsed.
+     *
+     * @return True if the item is handled here, false to keep it in the response
+     */
+    @SuppressWarnings("unchecked")
+    private boolean onStreamedItem(Record message, Record data, String loopName, Record item) {
+        String channel = (String) message.get(Message.CHANNEL_FIELD);
+        if (channel == null) {
+            return false;
+        }
+        StreamedItems<?> streamedItems = mStreamedItems.get(channel);
+        if (streamedItems == null) {
+            // This decides for the whole list, as the channel and the base record come before
+            // the list if they are present
+            BrowseRequest<?> browseRequest = mPendingBrowseRequests.get(channel);
+            if (browseRequest == null) {
+                return false;
+            }
+            ItemListener<?> listener = getItemListener(browseRequest.getCallback().getClass());
+            if (!listener.itemLoopName.equals(loopName) || (listener.usesBaseRecord() && !data.containsKey("base"))) {
+                return false;
+            }
+            streamedItems = new StreamedItems<>(listener, (Map<String, Object>) data.get("base"), browseRequest.getCacheKey() != null);
+            mStreamedItems.put(channel, streamedItems);
+        }
+        streamedItems.add(item);
+        return true;
+    }
+
     public void onEvent(@SuppressWarnings("unused") HandshakeComplete event) {
         mBackgroundHandler.removeMessages(MSG_HANDSHAKE_TIMEOUT);
     }
@@ -590,11 +741,15 @@ class CometClient extends BaseClient {
     }
 
     private void disconnect(@ConnectionState.ConnectionStates int connectionState) {
+        mControlCommands.clear();
+        mStreamedItems.clear();
         if (mBayeuxClient != null) mBackgroundHandler.sendEmptyMessage(MSG_DISCONNECT);
         mConnectionState.setConnectionState(connectionState);
     }
 
     private void disconnect(ConnectionError connectionError) {
+        mControlCommands.clear();
+        mStreamedItems.clear();
         if (mBayeuxClient != null) mBackgroundHandler.sendEmptyMessage(MSG_DISCONNECT);
         mConnectionState.setConnectionError(connectionError);
     }
@@ -632,34 +787,138 @@ class CometClient extends BaseClient {
 
     }
 
-    /** This may only be called from the handler thread */
+    /**
+     * Publish the message right away if it would go alone anyway, i.e. if the publish window has
+     * room for at most one more message, otherwise collect it for the next batch.
+     * <p>
+     * This may only be called from the handler thread
+     */
     private void _publishMessage(Request request, String channel, String responseChannel, PublishListener publishListener) {
-        if (!mCurrentCommand) {
-            mCurrentCommand = true;
-            Map<String, Object> data = new HashMap<>();
-            if (request != null) {
-                data.put("request", request.slimRequest());
-                data.put("response", responseChannel);
-            } else {
-                data.put("unsubscribe", responseChannel);
+        PublishMessage publishMessage = new PublishMessage(request, channel, responseChannel, publishListener);
+        if (mPublishBatch.isEmpty() && mPublishWindow.getFreeCount() <= 1) {
+            mPublishWindow.offer(publishMessage);
+            return;
+        }
+
+        mPublishBatch.add(publishMessage);
+        if (!mBackgroundHandler.hasMessages(MSG_PUBLISH_BATCH)) {
+            mBackgroundHandler.sendEmptyMessageDelayed(MSG_PUBLISH_BATCH, PUBLISH_BATCH_DELAY);
+        }
+    }
+
+    /**
+     * Free the slot of a message in the publish window. The queued messages which are published
+     * in to the free slots go in a single Bayeux batch.
+     * <p>
+     * This may only be called from the handler thread
+     *
+     * @return true if the message was in flight
+     */
+    private boolean _completePublish(final PublishMessage publishMessage) {
+        final boolean[] completed = new boolean[1];
+        if (mBayeuxClient != null) {
+            mBayeuxClient.batch(() -> completed[0] = mPublishWindow.complete(publishMessage));
+        } else {
+            completed[0] = mPublishWindow.complete(publishMessage);
+        }
+        return completed[0];
+    }
+
+    /**
+     * Hand the publishes collected during the last {@link #PUBLISH_BATCH_DELAY} ms to the publish
+     * window in a single Bayeux batch, so the ones which fit in the window are sent to the server
+     * in one message frame. The replies are dispatched to each message's listener as usual.
+     * <p>
+     * This may only be called from the handler thread
+     */
+    private void _publishBatch() {
+        final List<PublishMessage> batch = new ArrayList<>(mPublishBatch);
+        mPublishBatch.clear();
+        mBayeuxClient.batch(() -> {
+            for (PublishMessage publishMessage : batch) {
+                mPublishWindow.offer(publishMessage);
             }
-            mBayeuxClient.getChannel(channel).publish(data, publishListener != null ? publishListener : this.mPublishListener);
-        } else
-            mCommandQueue.add(new PublishMessage(request, channel, responseChannel, publishListener));
+        });
+    }
+
+    /**
+     * Publish a message which has been granted a slot in {@link #mPublishWindow}.
+     * <p>
+     * The slot is freed when the server acknowledges the publish, or after {@link #PUBLISH_TIMEOUT}
+     * so a lost reply can't stall the remaining requests.
+     * <p>
+     * This may only be called from the handler thread
+     */
+    private void _publish(final PublishMessage publishMessage) {
+        Map<String, Object> data = new HashMap<>();
+        if (publishMessage.request != null) {
+            data.put("request", publishMessage.request.slimRequest());
+            data.put("response", publishMessage.responseChannel);
+        } else {
+            data.put("unsubscribe", publishMessage.responseChannel);
+        }
+        final PublishListener publishListener = (publishMessage.publishListener != null ? publishMessage.publishListener : mPublishListener);
+        mBackgroundHandler.sendMessageDelayed(mBackgroundHandler.obtainMessage(MSG_PUBLISH_TIMEOUT, publishMessage), PUBLISH_TIMEOUT);
+        mBayeuxClient.getChannel(publishMessage.channel).publish(data, (channel, message) -> {
+            publishListener.onMessage(channel, message);
+            mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(MSG_PUBLISH_RESPONSE_RECIEVED, publishMessage));
+        });
     }
 
     @Override
     protected  <T> void internalRequestItems(final BrowseRequest<T> browseRequest) {
-        Class<?> callbackClass = Reflection.getGenericClass(browseRequest.getCallback().getClass(), IServiceItemListCallback.class, 0);
-        ItemListener listener = mItemRequestMap.get(callbackClass);
-        if (listener == null) {
-            throw new RuntimeException("No handler defined for '" + browseRequest.getCallback().getClass() + "'");
-        }
+        @SuppressWarnings("unchecked")
+        final ItemListener<T> listener = (ItemListener<T>) getItemListener(browseRequest.getCallback().getClass());
 
-        Request request = request(browseRequest.getPlayer(), listener, browseRequest.cmd())
+        final Request request = request(browseRequest.getPlayer(), listener, browseRequest.cmd())
                 .page(browseRequest.getStart(), browseRequest.getItemsPerResponse())
                 .params(browseRequest.params);
-        mPendingBrowseRequests.put(exec(request), browseRequest);
+        final String cacheKey = BrowseCache.key(mUrlPrefix, mLibraryStamp, request.cmd, request.slimRequest());
+        browseRequest.setCacheKey(cacheKey);
+        if (cacheKey == null) {
+            mPendingBrowseRequests.put(exec(request), browseRequest);
+        } else {
+            // The key changes when the library is rescanned, so a cached page is served as is,
+            // and the server is only asked on a miss. The request is registered while the cache
+            // is read, so it can be cancelled.
+            final String token = CACHE_LOOKUP_PREFIX + mCacheLookupId.incrementAndGet();
+            mPendingBrowseRequests.put(token, browseRequest);
+            mCacheHandler.post(() -> mBrowseCache.lookup(cacheKey, mPendingBrowseRequests, token, new BrowseCache.LookupCallback<BrowseRequest<?>>() {
+                @Override
+                public void onHit(BrowseRequest<?> pending, Map<String, Object> data) {
+                    listener.parseItems(browseRequest, data, null);
+                }
+
+                @Override
+                public void onMiss(BrowseRequest<?> pending) {
+                    String responseChannel = exec(request);
+                    mPendingBrowseRequests.put(responseChannel, browseRequest);
+                    if (mPendingBrowseRequests.remove(token) == null) {
+                        // Cancelled while the request was sent
+                        mPendingBrowseRequests.remove(responseChannel);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Find the listener for the item type of the supplied callback class.
+     * <p>
+     * Resolving the generic type of the callback is expensive, so the result is cached per callback
+     * class.
+     */
+    private ItemListener<?> getItemListener(Class<?> callbackClass) {
+        ItemListener<?> listener = mCallbackListeners.get(callbackClass);
+        if (listener == null) {
+            Class<?> dataType = Reflection.getGenericClass(callbackClass, IServiceItemListCallback.class, 0);
+            listener = mItemRequestMap.get(dataType);
+            if (listener == null) {
+                throw new RuntimeException("No handler defined for '" + callbackClass + "'");
+            }
+            mCallbackListeners.put(callbackClass, listener);
+        }
+        return listener;
     }
 
     @Override
@@ -729,6 +988,8 @@ class CometClient extends BaseClient {
     private static final int MSG_PUBLISH_RESPONSE_RECIEVED = 4;
     private static final int MSG_TIME_UPDATE = 5;
     private static final int MSG_STATE_UPDATE = 6;
+    private static final int MSG_PUBLISH_TIMEOUT = 7;
+    private static final int MSG_PUBLISH_BATCH = 8;
     private class CliHandler extends Handler {
         CliHandler(Looper looper) {
             super(looper);
@@ -750,10 +1011,19 @@ class CometClient extends BaseClient {
                     disconnect();
                     break;
                 case MSG_PUBLISH_RESPONSE_RECIEVED: {
-                    mCurrentCommand = false;
-                    PublishMessage message = mCommandQueue.poll();
-                    if (message != null)
-                        _publishMessage(message.request, message.channel, message.responseChannel, message.publishListener);
+                    PublishMessage message = (PublishMessage) msg.obj;
+                    removeMessages(MSG_PUBLISH_TIMEOUT, message);
+                    _completePublish(message);
+                    break;
+                }
+                case MSG_PUBLISH_BATCH:
+                    _publishBatch();
+                    break;
+                case MSG_PUBLISH_TIMEOUT: {
+                    PublishMessage message = (PublishMessage) msg.obj;
+                    if (_completePublish(message)) {
+                        Log.w(TAG, "Timeout waiting for publish response on " + message.responseChannel);
+                    }
                     break;
                 }
                 case MSG_TIME_UPDATE: {
@@ -765,7 +1035,7 @@ class CometClient extends BaseClient {
                 }
                 case MSG_STATE_UPDATE: {
                     Player player = (Player) msg.obj;
-                    postPlayerStateChanged(player);
+                    postPlayerStateChanged(player, PlayerStateChanged.SLEEP);
                     break;
                 }
             }
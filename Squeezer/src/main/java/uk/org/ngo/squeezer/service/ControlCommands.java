@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.ngo.squeezer.model.Player;
+
+/**
+ * Sends the commands of continuous controls, like the volume knob, where only the latest value
+ * matters.
+ * <p>
+ * At most one command per {@link #MIN_INTERVAL_MS} is sent for each control of a player. A value
+ * submitted in the meantime is held back, and replaced if another value is submitted before it
+ * is sent, so dragging a control doesn't queue a command for every step.
+ * <p>
+ * Until the server reports the last submitted value, or {@link #CONFIRM_TIMEOUT_MS} has passed,
+ * the control is unconfirmed, and values reported by the server are from commands which have
+ * been superseded. Clients should keep showing the submitted value, see
+ * {@link #isUnconfirmed(Player, String, int)}. If the control expires without being confirmed,
+ * the last value the server reported meanwhile is passed to the {@link Listener}, because the
+ * server may not report it again.
+ */
+class ControlCommands {
+    /** Controls of a player. */
+    static final String VOLUME = "volume";
+    static final String TIME = "time";
+
+    /** Minimum time between commands for the same control. */
+    private static final long MIN_INTERVAL_MS = 150;
+
+    /** How long to wait for the server to report the last submitted value. */
+    private static final long CONFIRM_TIMEOUT_MS = 2000;
+
+    /**
+     * How far a reported song position may be from the submitted position, for the position to
+     * be confirmed. The song keeps playing after a seek.
+     */
+    private static final int TIME_TOLERANCE = 2;
+
+    /** Sends the command to the server. */
+    interface Sender {
+        void send(Player player, String[] cmd);
+    }
+
+    /** Notified when a control expires without the server reporting the submitted value. */
+    interface Listener {
+        /**
+         * @param player The player of the control
+         * @param control Name of the control
+         * @param reportedValue The last value the server reported while the control was
+         *     unconfirmed
+         */
+        void onExpired(Player player, String control, int reportedValue);
+    }
+
+    /** Runs the delayed sends and expiries, on the main thread in the app. */
+    interface Scheduler {
+        void postDelayed(Runnable runnable, long delayMillis);
+    }
+
+    /** Source of the current time, see {@link SystemClock#uptimeMillis()}. */
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    private final Sender mSender;
+    private final Listener mListener;
+    private final Scheduler mScheduler;
+    private final Clock mClock;
+
+    /** State of the controls, keyed by player and control. */
+    private final Map<String, Control> mControls = new HashMap<>();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+
+    ControlCommands(Sender sender, Listener listener) {
+        this(sender, listener, new Handler(Looper.getMainLooper())::postDelayed, SystemClock::uptimeMillis);
+    }
+
+    ControlCommands(Sender sender, Listener listener, Scheduler scheduler, Clock clock) {
+        mSender = sender;
+        mListener = listener;
+        mScheduler = scheduler;
+        mClock = clock;
+    }
+
+    /**
+     * Send the command for the new value of the control, or hold it back if a command was sent
+     * for the control less than {@link #MIN_INTERVAL_MS} ago.
+     *
+     * @param player Player to send the command to
+     * @param control Name of the control, e.g. {@link #VOLUME}
+     * @param value The new value of the control
+     * @param cmd Command which sets the control to the new value
+     */
+    synchronized void submit(Player player, String control, int value, String... cmd) {
+        mSubmitted.incrementAndGet();
+        String key = player.getId() + ':' + control;
+        Control state = mControls.get(key);
+        if (state == null) {
+            mControls.put(key, state = new Control(key, player, control));
+        }
+
+        long now = mClock.uptimeMillis();
+        state.value = value;
+        state.pending = cmd;
+        state.confirmDeadline = now + CONFIRM_TIMEOUT_MS;
+
+        long wait = state.lastSent + MIN_INTERVAL_MS - now;
+        if (wait <= 0) {
+            send(state, now);
+        } else if (!state.sendScheduled) {
+            state.sendScheduled = true;
+            final Control scheduled = state;
+            mScheduler.postDelayed(() -> flush(scheduled), wait);
+        }
+    }
+
+    /**
+     * Check a value reported by the server against the last value submitted for the control.
+     * The control is confirmed, and forgotten, when the server reports the submitted value, or
+     * when it hasn't done so within {@link #CONFIRM_TIMEOUT_MS}.
+     *
+     * @return True if the reported value should be ignored, because a later value has been
+     *     submitted and the server hasn't reported it yet
+     */
+    synchronized boolean isUnconfirmed(Player player, String control, int reportedValue) {
+        String key = player.getId() + ':' + control;
+        Control state = mControls.get(key);
+        if (state == null) {
+            return false;
+        }
+
+        if (state.pending == null && (Math.abs(reportedValue - state.value) <= tolerance(control)
+                || mClock.uptimeMillis() > state.confirmDeadline)) {
+            mControls.remove(key);
+            return false;
+        }
+        state.reported = true;
+        state.reportedValue = reportedValue;
+        return true;
+    }
+
+    private static int tolerance(String control) {
+        return TIME.equals(control) ? TIME_TOLERANCE : 0;
+    }
+
+    /** Forget all controls, e.g. when the connection to the server is lost. */
+    synchronized void clear() {
+        // Scheduled sends and expiries find that their control is gone
+        mControls.clear();
+    }
+
+    private synchronized void flush(Control state) {
+        state.sendScheduled = false;
+        if (mControls.get(state.key) == state && state.pending != null) {
+            send(state, mClock.uptimeMillis());
+        }
+    }
+
+    private void send(Control state, long now) {
+        String[] cmd = state.pending;
+        state.pending = null;
+        state.lastSent = now;
+        state.confirmDeadline = now + CONFIRM_TIMEOUT_MS;
+        if (!state.expiryScheduled) {
+            state.expiryScheduled = true;
+            final Control scheduled = state;
+            mScheduler.postDelayed(() -> expire(scheduled), CONFIRM_TIMEOUT_MS);
+        }
+        mSent.incrementAndGet();
+        mSender.send(state.player, cmd);
+    }
+
+    /**
+     * Forget the control if it is still unconfirmed after {@link #CONFIRM_TIMEOUT_MS}, and
+     * notify the listener of the last value reported meanwhile.
+     */
+    private void expire(Control state) {
+        synchronized (this) {
+            state.expiryScheduled = false;
+            if (mControls.get(state.key) != state || state.pending != null) {
+                // Confirmed or cleared, or a new command will schedule a new expiry
+                return;
+            }
+
+            long remaining = state.confirmDeadline - mClock.uptimeMillis();
+            if (remaining > 0) {
+                // Another command was sent since this was scheduled
+                state.expiryScheduled = true;
+                mScheduler.postDelayed(() -> expire(state), remaining);
+                return;
+            }
+
+            mControls.remove(state.key);
+            mExpired.incrementAndGet();
+            if (!state.reported) {
+                return;
+            }
+        }
+        mListener.onExpired(state.player, state.control, state.reportedValue);
+    }
+
+    @Override
+    public String toString() {
+        return "ControlCommands{" +
+                "submitted=" + mSubmitted +
+                ", sent=" + mSent +
+                ", expired=" + mExpired +
+                '}';
+    }
+
+    private static class Control {
+        final String key;
+        final Player player;
+        final String control;
+
+        /** The last submitted value. */
+        int value;
+
+        /** Command for the last submitted value, if it hasn't been sent yet. */
+        String[] pending;
+
+        /** Time the last command was sent. */
+        long lastSent = -MIN_INTERVAL_MS;
+
+        /** Time after which the value is considered confirmed. */
+        long confirmDeadline;
+
+        /** True if the server reported a value while the control was unconfirmed. */
+        boolean reported;
+
+        /** The last value reported while the control was unconfirmed. */
+        int reportedValue;
+
+        /** A send of the pending command is scheduled. */
+        boolean sendScheduled;
+
+        /** An expiry check is scheduled. */
+        boolean expiryScheduled;
+
+        Control(String key, Player player, String control) {
+            this.key = key;
+            this.player = player;
+            this.control = control;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.service.event.MusicChanged;
+import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+import uk.org.ngo.squeezer.service.event.PlayerVolume;
+import uk.org.ngo.squeezer.service.event.PlaylistChanged;
+import uk.org.ngo.squeezer.service.event.PowerStatusChanged;
+import uk.org.ngo.squeezer.service.event.RepeatStatusChanged;
+import uk.org.ngo.squeezer.service.event.ShuffleStatusChanged;
+import uk.org.ngo.squeezer.service.event.SongTimeChanged;
+
+/**
+ * Coalesces the frequent player events posted to the service's event bus.
+ * <p>
+ * Player events are held for up to one frame, and then delivered on the main thread. If another
+ * event of a coalesced type ({@link PlayerStateChanged}, {@link SongTimeChanged},
+ * {@link PlayerVolume} and {@link PlayStatusChanged}) for the same player is posted in the
+ * meantime, it supersedes the held event, so subscribers only see the latest state.
+ * {@link PlayerStateChanged} events are merged, so the combined changes are delivered.
+ * <p>
+ * The other player events are never superseded, but they are held too, so all the events for a
+ * player are delivered on the same thread, in the order they were posted. A superseding event
+ * takes the place of the last event it supersedes in this order. Events which are not for a
+ * player are not held, and are not ordered relative to the held events.
+ */
+class EventCoalescer {
+    /** How long to hold events before delivering them. */
+    private static final long FRAME_MS = 16;
+
+    /** Delivers events to the subscribers. */
+    interface Dispatcher {
+        void dispatch(Object event, boolean sticky);
+    }
+
+    /** Runs the delivery of the held events after a delay, on the main thread in the app. */
+    interface Scheduler {
+        void postDelayed(Runnable runnable, long delayMillis);
+    }
+
+    private final Scheduler mScheduler;
+    private final Dispatcher mDispatcher;
+
+    /**
+     * Events waiting to be delivered, in the order they are to be delivered. Coalesced events are
+     * keyed by type and player, other events by a unique sequence number.
+     */
+    private final Map<String, PendingEvent> mPending = new LinkedHashMap<>();
+    private long mSequence;
+    private boolean mFlushScheduled;
+
+    private final AtomicLong mPosted = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+
+    private final Runnable mFlush = this::flush;
+
+    EventCoalescer(Dispatcher dispatcher) {
+        this(dispatcher, new Handler(Looper.getMainLooper())::postDelayed);
+    }
+
+    EventCoalescer(Dispatcher dispatcher, Scheduler scheduler) {
+        mDispatcher = dispatcher;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Hold the event for delivery, if it is for a player.
+     *
+     * @param event The event
+     * @param sticky Whether the event is to be posted as a sticky event
+     * @return True if the event will be delivered by this, false if the caller must deliver it
+     */
+    boolean offer(Object event, boolean sticky) {
+        Player player = getPlayer(event);
+        if (player == null) {
+            return false;
+        }
+
+        mPosted.incrementAndGet();
+        synchronized (this) {
+            String key;
+            if (!sticky && isCoalesced(event)) {
+                key = event.getClass().getName() + ':' + player.getId();
+                // Remove, so the event is delivered after the events posted before it
+                PendingEvent previous = mPending.remove(key);
+                if (previous != null) {
+                    mCoalesced.incrementAndGet();
+                    if (event instanceof PlayerStateChanged) {
+                        event = new PlayerStateChanged(player,
+                                ((PlayerStateChanged) previous.event).changes | ((PlayerStateChanged) event).changes);
+                    }
+                }
+            } else {
+                key = String.valueOf(mSequence++);
+            }
+            mPending.put(key, new PendingEvent(event, sticky));
+
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mScheduler.postDelayed(mFlush, FRAME_MS);
+            }
+        }
+        return true;
+    }
+
+    /** Number of events offered to this. */
+    long getPostedCount() {
+        return mPosted.get();
+    }
+
+    /** Number of events which were superseded by a later event before they were delivered. */
+    long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /** Number of events delivered to the subscribers. */
+    long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /** Deliver the held events. Runs on the thread of the {@link Scheduler}. */
+    void flush() {
+        List<PendingEvent> events;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<>(mPending.values());
+            mPending.clear();
+        }
+
+        for (PendingEvent pending : events) {
+            mDelivered.incrementAndGet();
+            mDispatcher.dispatch(pending.event, pending.sticky);
+        }
+    }
+
+    private static boolean isCoalesced(Object event) {
+        return event instanceof PlayerStateChanged
+                || event instanceof SongTimeChanged
+                || event instanceof PlayerVolume
+                || event instanceof PlayStatusChanged;
+    }
+
+    @Nullable
+    private static Player getPlayer(Object event) {
+        if (event instanceof PlayerStateChanged) {
+            return ((PlayerStateChanged) event).player;
+        }
+        if (event instanceof SongTimeChanged) {
+            return ((SongTimeChanged) event).player;
+        }
+        if (event instanceof PlayerVolume) {
+            return ((PlayerVolume) event).player;
+        }
+        if (event instanceof PlayStatusChanged) {
+            return ((PlayStatusChanged) event).player;
+        }
+        if (event instanceof MusicChanged) {
+            return ((MusicChanged) event).player;
+        }
+        if (event instanceof PlaylistChanged) {
+            return ((PlaylistChanged) event).player;
+        }
+        if (event instanceof PowerStatusChanged) {
+            return ((PowerStatusChanged) event).player;
+        }
+        if (event instanceof ShuffleStatusChanged) {
+            return ((ShuffleStatusChanged) event).player;
+        }
+        if (event instanceof RepeatStatusChanged) {
+            return ((RepeatStatusChanged) event).player;
+        }
+        return null;
+    }
+
+    /** An event waiting to be delivered. */
+    private static class PendingEvent {
+        final Object event;
+        final boolean sticky;
+
+        PendingEvent(Object event, boolean sticky) {
+            this.event = event;
+            this.sticky = sticky;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EventCoalescer{" +
+                "posted=" + mPosted +
+                ", coalesced=" + mCoalesced +
+                ", delivered=" + mDelivered +
+                '}';
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the lines and the content of HTTP responses from a stream, including content with chunked
+ * transfer encoding.
+ * <p>
+ * Content is returned as a stream of the bytes of the current chunk (or of the declared content
+ * length), so it can be parsed while it arrives, without collecting it in a buffer first.
+ */
+class HttpChunkReader {
+    private final InputStream mInput;
+    private final StringBuilder mLine = new StringBuilder();
+    private final ContentStream mContent = new ContentStream();
+
+    /** Number of bytes of the current content which are not read yet. */
+    private long mRemaining;
+
+    /** True while reading a chunk, which is terminated by a CRLF after the content. */
+    private boolean mInChunk;
+
+    HttpChunkReader(InputStream input) {
+        mInput = input;
+    }
+
+    /**
+     * Read a line of the HTTP protocol (status line, headers and chunk sizes), which are
+     * plain ASCII terminated by CRLF.
+     */
+    String readLine() throws IOException {
+        mLine.setLength(0);
+        int c;
+        while ((c = mInput.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                mLine.append((char) c);
+            }
+        }
+        return mLine.toString();
+    }
+
+    /** Parse the hexadecimal size of a chunk, ignoring any chunk extensions. */
+    static int parseChunkSize(String chunkSizeLine) throws IOException {
+        int pos = chunkSizeLine.indexOf(';');
+        String size = (pos == -1 ? chunkSizeLine : chunkSizeLine.substring(0, pos)).trim();
+        try {
+            int chunkSize = Integer.parseInt(size, 16);
+            if (chunkSize < 0 || size.startsWith("+")) {
+                throw new NumberFormatException();
+            }
+            return chunkSize;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: '" + chunkSizeLine + "'");
+        }
+    }
+
+    /**
+     * Start reading content of the supplied length, e.g. from a Content-Length header.
+     *
+     * @return Stream of the bytes of the content. Content which is not read from the stream is
+     *     skipped by the next call to this class.
+     */
+    InputStream content(long size) throws IOException {
+        skipContent();
+        mRemaining = size;
+        return mContent;
+    }
+
+    /**
+     * Start reading the next chunk of content with chunked transfer encoding.
+     *
+     * @return Stream of the bytes of the chunk, or null after the last chunk and any trailers are
+     *     read. Content which is not read from the stream is skipped by the next call to this
+     *     class.
+     */
+    @Nullable
+    InputStream nextChunk() throws IOException {
+        skipContent();
+        int chunkSize = parseChunkSize(readLine());
+        if (chunkSize == 0) {
+            // Skip trailers up to the empty line which ends the response
+            while (!readLine().isEmpty()) {
+            }
+            return null;
+        }
+        mRemaining = chunkSize;
+        mInChunk = true;
+        return mContent;
+    }
+
+    /** Skip the unread part of the current content, and the CRLF which ends a chunk. */
+    private void skipContent() throws IOException {
+        while (mRemaining > 0) {
+            // Skip may not make progress before the end of the stream, read fails there
+            if (mContent.skip(mRemaining) == 0) {
+                mContent.read();
+            }
+        }
+        if (mInChunk) {
+            mInChunk = false;
+            if (!readLine().isEmpty()) {
+                throw new IOException("Missing CRLF after chunk data");
+            }
+        }
+    }
+
+    /** Stream of the remaining bytes of the current content. */
+    private class ContentStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int c = mInput.read();
+            if (c < 0) {
+                throw new EOFException("Expected " + mRemaining + " more bytes");
+            }
+            mRemaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int count = mInput.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (count < 0) {
+                throw new EOFException("Expected " + mRemaining + " more bytes");
+            }
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = mInput.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mInput.available(), mRemaining);
+        }
+
+        /** Leaves the underlying stream open, it's shared by all responses of the connection. */
+        @Override
+        public void close() {
+        }
+    }
+}
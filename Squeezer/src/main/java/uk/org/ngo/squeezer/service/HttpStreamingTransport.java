@@ -4,11 +4,14 @@ import android.annotation.TargetApi;
 import android.os.Build;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.cometd.bayeux.Channel;
 import org.cometd.bayeux.Message;
 import org.cometd.client.transport.HttpClientTransport;
 import org.cometd.client.transport.MessageClientTransport;
 import org.cometd.client.transport.TransportListener;
+import org.cometd.common.HashMapMessage;
 import org.cometd.common.TransportException;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpDestination;
@@ -26,13 +29,12 @@ import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpScheme;
 import org.eclipse.jetty.http.HttpStatus;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.HttpCookie;
@@ -56,6 +58,10 @@ import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import uk.org.ngo.squeezer.util.JsonRecordReader;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 
 public class HttpStreamingTransport extends HttpClientTransport implements MessageClientTransport {
     public static final String NAME = "streaming";
@@ -75,6 +81,7 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
     private volatile int _maxBufferSize;
     private volatile boolean _appendMessageType;
     private volatile CookieManager _cookieManager;
+    private volatile JsonRecordReader.ItemSink _itemSink;
 
     public HttpStreamingTransport(Map<String, Object> options, HttpClient httpClient) {
         this(null, options, httpClient);
@@ -488,10 +495,12 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
             }
         }
 
-        private void onData(String data) {
+        /**
+         * Parse and handle the messages in the supplied content, which is read while it's parsed.
+         */
+        private void onData(InputStream data) throws IOException {
             try {
-                List<Message.Mutable> messages = parseMessages (data);
-                //Log.v(TAG,"Received messages " + data);
+                List<Message.Mutable> messages = parseMessages(new InputStreamReader(data, UTF_8));
                 onMessages(messages);
             } catch (ParseException x) {
                 fail(x, "Exception");
@@ -612,24 +621,24 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
     }
 
     private static class ListeningThread extends Thread {
-        private Delegate delegate;
-        private final BufferedReader reader;
+        private final Delegate delegate;
+        private final HttpChunkReader reader;
 
-        public ListeningThread(Delegate delegate, InputStream inputStream) throws UnsupportedEncodingException {
+        public ListeningThread(Delegate delegate, InputStream inputStream) {
             this.delegate = delegate;
-            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            reader = new HttpChunkReader(new BufferedInputStream(inputStream));
         }
 
         @Override
         public void run() {
             while (delegate.connected) {
                 try {
-                    int status = parseHttpStatus(readLine());
+                    int status = parseHttpStatus(reader.readLine());
 
                     boolean chunked = false;
                     int contentSize = 0;
                     String headerLine;
-                    while (!"".equals(headerLine = readLine())) {
+                    while (!"".equals(headerLine = reader.readLine())) {
                         if ("Transfer-Encoding: chunked".equals(headerLine))
                             chunked = true;
                         int pos = headerLine.indexOf("Content-Length: ");
@@ -639,8 +648,8 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
                     }
 
                     if (!chunked) {
-                        String content = read(contentSize);
-                        if (content.length() > 0) {
+                        InputStream content = reader.content(contentSize);
+                        if (contentSize > 0) {
                             if (status == HttpStatus.OK_200) {
                                 delegate.onData(content);
                             }
@@ -652,13 +661,13 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
                             delegate.fail(x, "No content");
                         }
                     } else {
-                        while (!"0".equals(readLine())) {
-                            String data = readLine();
+                        // Each chunk holds a complete list of messages, which is parsed as it's read
+                        InputStream chunk;
+                        while ((chunk = reader.nextChunk()) != null) {
                             if (status == HttpStatus.OK_200) {
-                                delegate.onData(data);
+                                delegate.onData(chunk);
                             }
                         }
-                        readLine();//Read final/empty chunk
                         delegate.disconnect("End of chunks");
                     }
 
@@ -689,25 +698,50 @@ public class HttpStreamingTransport extends HttpClientTransport implements Messa
             return -1;
         }
 
-        private String readLine() throws IOException {
-            String inputLine = reader.readLine();
-            if (inputLine == null) {
-                throw new EOFException();
-            }
-            return inputLine;
-        }
+    }
 
-        private String read(int size) throws IOException {
-            char[] buffer = new char[size];
-            int length = reader.read(buffer);
-            if (length != size) {
-                throw new EOFException("Expected " + size + " characters, but got " + length);
+    /**
+     * Receive the items of lists in the data of messages, while the messages are read.
+     * <p>
+     * Items are only offered to the sink if the channel of their message comes before the data,
+     * otherwise they are kept in the data as usual.
+     */
+    public void setItemSink(@Nullable JsonRecordReader.ItemSink itemSink) {
+        _itemSink = itemSink;
+    }
+
+    /**
+     * Parse messages with {@link JsonRecordReader}, so the data of the messages, e.g. the items of
+     * a browse response, are read in to compact records instead of hash maps.
+     */
+    @Override
+    protected List<Message.Mutable> parseMessages(String content) throws ParseException {
+        return toMessages(JsonRecordReader.parse(content, _itemSink));
+    }
+
+    /**
+     * Parse messages while they are read from the supplied reader, so large responses are not
+     * collected in a string before they are parsed.
+     */
+    protected List<Message.Mutable> parseMessages(Reader content) throws IOException, ParseException {
+        return toMessages(JsonRecordReader.parse(content, _itemSink));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Message.Mutable> toMessages(Object parsed) throws ParseException {
+        Object[] objects = (parsed instanceof Object[]) ? (Object[]) parsed : new Object[]{parsed};
+        List<Message.Mutable> messages = new ArrayList<>(objects.length);
+        for (Object object : objects) {
+            if (!(object instanceof Map)) {
+                throw new ParseException("Expected a message, got " + object, 0);
             }
-            return new String(buffer);
+            HashMapMessage message = new HashMapMessage();
+            message.putAll((Map<String, Object>) object);
+            messages.add(message);
         }
+        return messages;
     }
 
-
     private static String getAdviceAction(Map<String, Object> advice)
     {
         String action = null;
@@ -120,6 +120,12 @@ public interface ISqueezeService {
     PlayerState getPlayerState();
     String getCurrentPlaylist();
 
+    /**
+     * Tell the service the size of the artwork on the now playing screen, so it can load the
+     * artwork of the upcoming tracks at that size ahead of time.
+     */
+    void setNowPlayingArtworkSize(int width, int height);
+
     /**
      * Sets the volume to the absolute volume in newVolume, which will be clamped to the
      * interval [0, 100].
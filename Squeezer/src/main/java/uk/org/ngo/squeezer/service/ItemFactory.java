@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Alarm;
+import uk.org.ngo.squeezer.model.AlarmPlaylist;
+import uk.org.ngo.squeezer.model.JiveItem;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.Song;
+
+/**
+ * Creates model objects from records received from the server.
+ * <p>
+ * Use {@link #forType(Class)} to look up the factory for a model class, this avoids
+ * reflective construction for each received item.
+ *
+ * @param <T> Type of model object
+ */
+interface ItemFactory<T> {
+    /**
+     * @param record Item data from Squeezebox Server
+     * @param baseRecord Data shared by all items in the list, or null
+     * @return A new model object holding the data from the supplied record
+     */
+    T create(Map<String, Object> record, Map<String, Object> baseRecord);
+
+    /** Factories for the model classes which may be received in item lists. */
+    Map<Class<?>, ItemFactory<?>> FACTORIES = ImmutableMap.<Class<?>, ItemFactory<?>>builder()
+            .put(JiveItem.class, (ItemFactory<JiveItem>) JiveItem::new)
+            .put(Song.class, (ItemFactory<Song>) (record, baseRecord) -> new Song(record))
+            .put(Alarm.class, (ItemFactory<Alarm>) (record, baseRecord) -> new Alarm(record))
+            .put(AlarmPlaylist.class, (ItemFactory<AlarmPlaylist>) (record, baseRecord) -> new AlarmPlaylist(record))
+            .put(Player.class, (ItemFactory<Player>) (record, baseRecord) -> new Player(record))
+            .build();
+
+    /**
+     * @return The registered factory for the supplied model class or null
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ItemFactory<T> forType(Class<T> dataType) {
+        return (ItemFactory<T>) FACTORIES.get(dataType);
+    }
+}
@@ -44,6 +44,7 @@ interface ListHandler<T> {
      * Called for each item received in the current reply. Just store this internally.
      *
      * @param record Item data from Squeezebox Server
+     * @param baseRecord Data shared by all items in the current reply, or null
      */
-    void add(Map<String, Object> record);
+    void add(Map<String, Object> record, Map<String, Object> baseRecord);
 }
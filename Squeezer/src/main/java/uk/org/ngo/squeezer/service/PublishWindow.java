@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Bounded window of outstanding publish messages.
+ * <p>
+ * At most {@link #getSize()} messages are in flight at any time. Further messages are queued
+ * until a response (or a timeout) for an in flight message frees a slot, which applies
+ * backpressure to the callers instead of flooding the server. A window size of 1 gives the
+ * classic one command at a time behaviour.
+ * <p>
+ * This class is not thread safe, all calls must be made from the same thread.
+ *
+ * @param <M> The type of message to publish
+ */
+class PublishWindow<M> {
+
+    /** Performs the actual publish of a message to the server. */
+    interface Publisher<M> {
+        void publish(M message);
+    }
+
+    private final Publisher<M> mPublisher;
+    private final Queue<M> mQueue = new LinkedList<>();
+    private final Set<M> mInFlight = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int mSize;
+
+    PublishWindow(Publisher<M> publisher, int size) {
+        mPublisher = publisher;
+        setSize(size);
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Change the maximum number of outstanding messages. If the window grows, queued messages
+     * are published immediately; if it shrinks, in flight messages are allowed to complete.
+     */
+    void setSize(int size) {
+        mSize = Math.max(1, size);
+        drain();
+    }
+
+    /** Publish the message if there is a free slot in the window, otherwise queue it. */
+    void offer(M message) {
+        if (mInFlight.size() < mSize) {
+            publish(message);
+        } else {
+            mQueue.add(message);
+        }
+    }
+
+    /**
+     * Mark the supplied message as done, and publish queued messages into the free slot.
+     *
+     * @return true if the message was in flight, false if it has already been completed, e.g.
+     * because it timed out.
+     */
+    boolean complete(M message) {
+        if (!mInFlight.remove(message)) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Forget the in flight messages, f.e. after a reconnect where their responses will never
+     * arrive. Queued messages are kept, and published as new messages are completed.
+     */
+    void resetInFlight() {
+        mInFlight.clear();
+    }
+
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /** Number of messages which can be published before the window is full. */
+    int getFreeCount() {
+        return Math.max(0, mSize - mInFlight.size());
+    }
+
+    private void drain() {
+        M message;
+        while (mInFlight.size() < mSize && (message = mQueue.poll()) != null) {
+            publish(message);
+        }
+    }
+
+    private void publish(M message) {
+        mInFlight.add(message);
+        mPublisher.publish(message);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the service uses for work which must not run on the main thread, or on the thread
+ * which delivers events from the server.
+ * <ul>
+ *     <li>{@link #io()} for work which blocks on the disk, databases, the network or IPC</li>
+ *     <li>{@link #cpu()} for work which is only computation, like decoding bitmaps</li>
+ *     <li>{@link #state()} for work which must run in order, like updating the notification
+ *     and writing preferences</li>
+ * </ul>
+ * The threads run below normal priority, so they don't compete with the main thread and the
+ * connection to the server, and time out when idle.
+ */
+class ServiceExecutors {
+    static final int IO_THREADS = 4;
+    static final int CPU_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    private final ThreadPoolExecutor mIo;
+    private final ThreadPoolExecutor mCpu;
+    private final ScheduledThreadPoolExecutor mState;
+
+    ServiceExecutors(String name) {
+        mIo = newPool(name + " io", IO_THREADS);
+        mCpu = newPool(name + " cpu", CPU_THREADS);
+        mState = new ScheduledThreadPoolExecutor(1, newThreadFactory(name + " state"),
+                new ThreadPoolExecutor.DiscardPolicy());
+        mState.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mState.allowCoreThreadTimeOut(true);
+    }
+
+    /** Executor for blocking I/O. Tasks may run concurrently and in any order. */
+    Executor io() {
+        return mIo;
+    }
+
+    /** Executor for computation. Tasks may run concurrently and in any order. */
+    Executor cpu() {
+        return mCpu;
+    }
+
+    /** Executor which runs one task at a time, in the order they were submitted. */
+    ScheduledExecutorService state() {
+        return mState;
+    }
+
+    /**
+     * Stop accepting new work. Tasks which are already submitted still run, so e.g. a preference
+     * write is not lost.
+     * <p>
+     * Work submitted afterwards, f.e. by a callback which completes after the service is
+     * destroyed, or by a task which was already queued, is silently discarded.
+     */
+    void shutdown() {
+        mIo.shutdown();
+        mCpu.shutdown();
+        mState.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceExecutors{" +
+                "io=" + mIo.getCompletedTaskCount() + "/" + mIo.getQueue().size() +
+                ", cpu=" + mCpu.getCompletedTaskCount() + "/" + mCpu.getQueue().size() +
+                ", state=" + mState.getCompletedTaskCount() + "/" + mState.getQueue().size() +
+                '}';
+    }
+
+    private static ThreadPoolExecutor newPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), newThreadFactory(name), new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+    }
+}
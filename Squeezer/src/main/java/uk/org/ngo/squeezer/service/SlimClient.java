@@ -52,6 +52,18 @@ interface SlimClient {
      */
     void command(Player player, String[] cmd, Map<String, Object> params);
 
+    /**
+     * Execute the supplied command for a continuous control, like the volume, where only the
+     * latest value matters. Commands are sent at a bounded rate, and a command which hasn't been
+     * sent yet is replaced by the next one for the same control.
+     *
+     * @param player the player to control
+     * @param control name of the control, f.e. "volume"
+     * @param value the new value of the control
+     * @param cmd Array of command terms which set the control to the new value
+     */
+    void controlCommand(Player player, String control, int value, String[] cmd);
+
     /**
      * Send an asynchronous request to the SqueezeboxServer for the specified items.
      * <p>
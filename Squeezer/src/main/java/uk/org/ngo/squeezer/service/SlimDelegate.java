@@ -82,6 +82,11 @@ class SlimDelegate {
         return new Command(mClient, player);
     }
 
+    /** See {@link SlimClient#controlCommand(Player, String, int, String[])} */
+    void controlCommand(Player player, String control, int value, String... cmd) {
+        mClient.controlCommand(player, control, value, cmd);
+    }
+
     Command command() {
         return new Command(mClient);
     }
@@ -95,6 +100,10 @@ class SlimDelegate {
         return new Request<>(mClient, player, start, callback);
     }
 
+    <T> Request requestItems(Player player, int start, int pageSize, IServiceItemListCallback<T> callback) {
+        return new Request<>(mClient, player, start, pageSize, callback);
+    }
+
     <T> Request requestItems(Player player, IServiceItemListCallback<T> callback) {
         return new Request<>(mClient, player, 0, 200, callback);
     }
@@ -17,7 +17,6 @@
 package uk.org.ngo.squeezer.service;
 
 import android.annotation.TargetApi;
-import android.app.DownloadManager;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -35,9 +34,9 @@ import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Environment;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
@@ -49,17 +48,15 @@ import androidx.core.app.NotificationManagerCompat;
 
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
-import android.util.Base64;
 import android.util.Log;
 import android.widget.RemoteViews;
 
 import com.google.common.io.Files;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import uk.org.ngo.squeezer.NowPlayingActivity;
 import uk.org.ngo.squeezer.Preferences;
@@ -67,6 +64,7 @@ import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Squeezer;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.download.DownloadDatabase;
+import uk.org.ngo.squeezer.download.DownloadEngine;
 import uk.org.ngo.squeezer.model.Action;
 import uk.org.ngo.squeezer.model.Item;
 import uk.org.ngo.squeezer.model.JiveItem;
@@ -84,6 +82,7 @@ import uk.org.ngo.squeezer.service.event.MusicChanged;
 import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
 import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
 import uk.org.ngo.squeezer.service.event.PlayersChanged;
+import uk.org.ngo.squeezer.service.event.PlaylistChanged;
 import uk.org.ngo.squeezer.service.event.SongTimeChanged;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 import uk.org.ngo.squeezer.util.ImageWorker;
@@ -112,13 +111,14 @@ public class SqueezeService extends Service {
     public static final String NOTIFICATION_CHANNEL_ID = "channel_squeezer_1";
     private static final int PLAYBACKSERVICE_STATUS = 1;
     public static final int DOWNLOAD_ERROR = 2;
+    public static final int DOWNLOAD_PROGRESS = 3;
 
     /** Service-specific eventbus. All events generated by the service will be sent here. */
     private final EventBus mEventBus = new EventBus();
 
-    /** Executor for off-main-thread work. */
+    /** Executors for off-main-thread work. */
     @NonNull
-    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+    private final ServiceExecutors mExecutors = new ServiceExecutors(TAG);
 
     /** True if the handshake with the server has completed, otherwise false. */
     private volatile boolean mHandshakeComplete = false;
@@ -130,10 +130,13 @@ public class SqueezeService extends Service {
     private volatile boolean foreGround;
 
     /** The most recent notifcation. */
-    private NotificationState ongoingNotification;
+    private volatile NotificationState ongoingNotification;
 
     private final SlimDelegate mDelegate = new SlimDelegate(mEventBus);
 
+    /** Loads the artwork of the upcoming tracks of the active player. */
+    private final ArtworkPrefetcher mArtworkPrefetcher = new ArtworkPrefetcher(this, mDelegate);
+
     /**
      * Is scrobbling enabled?
      */
@@ -258,6 +261,9 @@ public class SqueezeService extends Service {
         super.onDestroy();
         disconnect();
         mEventBus.unregister(this);
+        Log.i(TAG, "Event bus: " + mEventBus.getEventCoalescer());
+        Log.i(TAG, "Executors: " + mExecutors);
+        mExecutors.shutdown();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             try {
@@ -269,6 +275,12 @@ public class SqueezeService extends Service {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ImageFetcher.onTrimMemory(level);
+    }
+
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         disconnect();
@@ -322,6 +334,7 @@ public class SqueezeService extends Service {
         }
 
         mDelegate.setActivePlayer(newActivePlayer);
+        mArtworkPrefetcher.reset();
         if (prevActivePlayer != null) {
             mDelegate.subscribeDisplayStatus(prevActivePlayer, false);
             mDelegate.subscribeMenuStatus(prevActivePlayer, false);
@@ -356,8 +369,8 @@ public class SqueezeService extends Service {
 
         // NOTE: this involves a write and can block (sqlite lookup via binder call), so
         // should be done off-thread, so we can process service requests & send our callback
-        // as quickly as possible.
-        mExecutor.execute(new Runnable() {
+        // as quickly as possible. The state executor keeps the writes in order.
+        mExecutors.state().execute(new Runnable() {
             @Override
             public void run() {
                 final SharedPreferences preferences = Squeezer.getContext().getSharedPreferences(Preferences.NAME,
@@ -424,20 +437,33 @@ public class SqueezeService extends Service {
 
     /**
      * Manages the state of any ongoing notification based on the player and connection state.
+     * <p>
+     * The notification is built on the state executor, so updates are applied in order without
+     * holding up the thread which delivered the event.
      */
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void updateOngoingNotification() {
-        PlayerState activePlayerState = getActivePlayerState();
+        mExecutors.state().execute(this::updateOngoingNotificationNow);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void updateOngoingNotificationNow() {
+        final PlayerState activePlayerState = getActivePlayerState();
 
         // Update scrobble state, if either we're currently scrobbling, or we
         // were (to catch the case where we started scrobbling a song, and the
         // user went in to settings to disable scrobbling).
         if (scrobblingEnabled || scrobblingPreviouslyEnabled) {
             scrobblingPreviouslyEnabled = scrobblingEnabled;
-            Scrobble.scrobbleFromPlayerState(this, activePlayerState);
+            // Looking up the scrobbling apps is IPC to the package manager
+            mExecutors.io().execute(() -> Scrobble.scrobbleFromPlayerState(this, activePlayerState));
+        }
+
+        // The service has stopped since the update was requested
+        if (!foreGround) {
+            return;
         }
 
-        NotificationState notificationState = notificationState();
+        final NotificationState notificationState = notificationState();
 
         // Compare the current state with the state when the notification was last updated.
         // If there are no changes (same song, same playing state) then there's nothing to do.
@@ -447,30 +473,39 @@ public class SqueezeService extends Service {
         ongoingNotification = notificationState;
 
         final NotificationManagerCompat nm = NotificationManagerCompat.from(this);
-        final NotificationData notificationData = new NotificationData(ongoingNotification);
+        final NotificationData notificationData = new NotificationData(notificationState);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             final MediaMetadataCompat.Builder metaBuilder = new MediaMetadataCompat.Builder();
-            metaBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, ongoingNotification.artistName);
-            metaBuilder.putString(MediaMetadata.METADATA_KEY_ALBUM, ongoingNotification.albumName);
-            metaBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, ongoingNotification.songName);
+            metaBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, notificationState.artistName);
+            metaBuilder.putString(MediaMetadata.METADATA_KEY_ALBUM, notificationState.albumName);
+            metaBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, notificationState.songName);
             mMediaSession.setMetadata(metaBuilder.build());
 
-            ImageFetcher.getInstance(this).loadImage(ongoingNotification.artworkUrl,
+            ImageFetcher.getInstance(this).loadImage(notificationState.artworkUrl,
                     getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
                     getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height),
                     new ImageWorker.ImageWorkerCallback() {
                         @Override
                         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-                        public void process(Object data, @Nullable Bitmap bitmap) {
-                            if (bitmap == null) {
-                                bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.icon_pending_artwork);
-                            }
-
-                            metaBuilder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, bitmap);
-                            metaBuilder.putBitmap(MediaMetadata.METADATA_KEY_ART, bitmap);
-                            mMediaSession.setMetadata(metaBuilder.build());
-                            notificationData.builder.setLargeIcon(bitmap);
-                            nm.notify(PLAYBACKSERVICE_STATUS, notificationData.builder.build());
+                        public void process(Object data, @Nullable final Bitmap artwork) {
+                            // Called on the main thread, decode the placeholder elsewhere
+                            mExecutors.cpu().execute(() -> {
+                                // Don't replace a newer notification
+                                if (notificationState != ongoingNotification) {
+                                    return;
+                                }
+
+                                Bitmap bitmap = artwork;
+                                if (bitmap == null) {
+                                    bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.icon_pending_artwork);
+                                }
+
+                                metaBuilder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, bitmap);
+                                metaBuilder.putBitmap(MediaMetadata.METADATA_KEY_ART, bitmap);
+                                mMediaSession.setMetadata(metaBuilder.build());
+                                notificationData.builder.setLargeIcon(bitmap);
+                                nm.notify(PLAYBACKSERVICE_STATUS, notificationData.builder.build());
+                            });
                         }
                     });
         } else {
@@ -481,11 +516,11 @@ public class SqueezeService extends Service {
 
             nm.notify(PLAYBACKSERVICE_STATUS, notification);
 
-            ImageFetcher.getInstance(this).loadImage(this, ongoingNotification.artworkUrl, notificationData.normalView, R.id.album,
+            ImageFetcher.getInstance(this).loadImage(this, notificationState.artworkUrl, notificationData.normalView, R.id.album,
                     getResources().getDimensionPixelSize(R.dimen.album_art_icon_normal_notification_width),
                     getResources().getDimensionPixelSize(R.dimen.album_art_icon_normal_notification_height),
                     nm, PLAYBACKSERVICE_STATUS, notification);
-            ImageFetcher.getInstance(this).loadImage(this, ongoingNotification.artworkUrl, notificationData.expandedView, R.id.album,
+            ImageFetcher.getInstance(this).loadImage(this, notificationState.artworkUrl, notificationData.expandedView, R.id.album,
                     getResources().getDimensionPixelSize(R.dimen.album_art_icon_expanded_notification_width),
                     getResources().getDimensionPixelSize(R.dimen.album_art_icon_expanded_notification_height),
                     nm, PLAYBACKSERVICE_STATUS, notification);
@@ -699,11 +734,26 @@ public class SqueezeService extends Service {
 
     public void onEvent(HandshakeComplete event) {
         mHandshakeComplete = true;
+
+        // Continue downloads which were interrupted or failed. The download engine opens its
+        // database when it's first used.
+        mExecutors.io().execute(() -> {
+            DownloadEngine downloadEngine = DownloadEngine.getInstance(this);
+            downloadEngine.setCredentials(mDelegate.getUsername(), mDelegate.getPassword());
+            downloadEngine.resume();
+        });
     }
 
     public void onEvent(MusicChanged event) {
         if (event.player.equals(mDelegate.getActivePlayer())) {
             updateOngoingNotification();
+            mArtworkPrefetcher.prefetch(event.player);
+        }
+    }
+
+    public void onEvent(PlaylistChanged event) {
+        if (event.player.equals(mDelegate.getActivePlayer())) {
+            mArtworkPrefetcher.prefetch(event.player);
         }
     }
 
@@ -738,13 +788,23 @@ public class SqueezeService extends Service {
         mDelegate.requestItems(-1, callback).params(command.params).cmd(command.cmd()).exec();
     }
 
-    /** A download request will be passed to the download manager for each song called back to this */
+    /** A download job will be added for each song called back to this, one batch for each page */
     private final IServiceItemListCallback<Song> songDownloadCallback = new IServiceItemListCallback<Song>() {
         @Override
-        public void onItemsReceived(int count, int start, Map<String, Object> parameters, List<Song> items, Class<Song> dataType) {
-            for (Song song : items) {
-                downloadSong(song);
-            }
+        public void onItemsReceived(int count, int start, Map<String, Object> parameters, final List<Song> items, Class<Song> dataType) {
+            // Reads preferences and may open the download database
+            mExecutors.io().execute(() -> {
+                List<DownloadDatabase.DownloadJob> jobs = new ArrayList<>(items.size());
+                for (Song song : items) {
+                    DownloadDatabase.DownloadJob job = downloadSong(song);
+                    if (job != null) {
+                        jobs.add(job);
+                    }
+                }
+                DownloadEngine downloadEngine = DownloadEngine.getInstance(SqueezeService.this);
+                downloadEngine.setCredentials(mDelegate.getUsername(), mDelegate.getPassword());
+                downloadEngine.enqueue(jobs);
+            });
         }
 
         @Override
@@ -772,58 +832,43 @@ public class SqueezeService extends Service {
 //        }
 //    };
 
-    private void downloadSong(Song song) {
+    @Nullable
+    private DownloadDatabase.DownloadJob downloadSong(Song song) {
         Log.i(TAG, "downloadSong(" + song + ")");
         Uri downloadUrl = Util.getDownloadUrl(mDelegate.getUrlPrefix(), song.id);
         Uri url = Uri.parse(song.url);
         Uri imageUrl = Util.getImageUrl(mDelegate.getUrlPrefix(), song.url);
         final Preferences preferences = new Preferences(this);
         if (preferences.isDownloadUseServerPath()) {
-            downloadSong(downloadUrl, song.title, url, imageUrl);
+            return downloadSong(downloadUrl, song.title, song.album, song.albumId, url, imageUrl);
         } else {
             final String lastPathSegment = url.getLastPathSegment();
             final String fileExtension = Files.getFileExtension(lastPathSegment);
             final String localPath = song.getLocalPath(preferences.getDownloadPathStructure(), preferences.getDownloadFilenameStructure());
-            downloadSong(downloadUrl, song.title, localPath + "." + fileExtension, imageUrl);
+            return downloadSong(downloadUrl, song.title, song.album, song.albumId, localPath + "." + fileExtension, imageUrl);
         }
     }
 
-    private void downloadSong(@NonNull Uri url, String title, @NonNull Uri serverUrl, @NonNull Uri albumArtUrl) {
-        downloadSong(url, title, getLocalFile(serverUrl), albumArtUrl);
+    @Nullable
+    private DownloadDatabase.DownloadJob downloadSong(@NonNull Uri url, String title, String album, String albumId, @NonNull Uri serverUrl, @NonNull Uri albumArtUrl) {
+        return downloadSong(url, title, album, albumId, getLocalFile(serverUrl), albumArtUrl);
     }
 
-    private void downloadSong(@NonNull Uri url, String title, String localPath, @NonNull Uri albumArtUrl) {
+    @Nullable
+    private DownloadDatabase.DownloadJob downloadSong(@NonNull Uri url, String title, String album, String albumId, String localPath, @NonNull Uri albumArtUrl) {
         Log.i(TAG, "downloadSong(" + title + "): " + url);
         if (url.equals(Uri.EMPTY)) {
-            return;
+            return null;
         }
 
         if (localPath == null) {
-            return;
+            return null;
         }
 
         // Convert VFAT-unfriendly characters to "_".
         localPath =  localPath.replaceAll("[?<>\\\\:*|\"]", "_");
 
-        // If running on Gingerbread or greater use the Download Manager
-        DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-        DownloadDatabase downloadDatabase = new DownloadDatabase(this);
-        String tempFile = UUID.randomUUID().toString();
-        String credentials = mDelegate.getUsername() + ":" + mDelegate.getPassword();
-        String base64EncodedCredentials = Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP);
-        DownloadManager.Request request = new DownloadManager.Request(url)
-                .setTitle(title)
-                .setDestinationInExternalFilesDir(this, Environment.DIRECTORY_MUSIC, tempFile)
-                .setVisibleInDownloadsUi(false)
-                .addRequestHeader("Authorization", "Basic " + base64EncodedCredentials);
-        long downloadId = downloadManager.enqueue(request);
-
-        Log.i(TAG, "download enqueued: " + downloadId);
-        if (!downloadDatabase.registerDownload(downloadId, tempFile, localPath, albumArtUrl)) {
-            // TODO external logging
-            Log.w(TAG, "Could not register download entry for: " + downloadId);
-            downloadManager.remove(downloadId);
-        }
+        return DownloadEngine.newJob(url, title, album, albumId, localPath, albumArtUrl);
     }
 
     /**
@@ -903,19 +948,36 @@ public class SqueezeService extends Service {
 
         @Override
         public void adjustVolumeTo(Player player, int newVolume) {
-            mDelegate.command(player).cmd("mixer", "volume", String.valueOf(Math.min(100, Math.max(0, newVolume)))).exec();
+            int volume = Math.min(100, Math.max(0, newVolume));
+
+            // Show the new volume until the server has caught up with the latest command
+            player.getPlayerState().setCurrentVolume(volume);
+            mDelegate.controlCommand(player, ControlCommands.VOLUME, volume, "mixer", "volume", String.valueOf(volume));
         }
 
         @Override
         public void adjustVolumeTo(int newVolume) {
-            mDelegate.activePlayerCommand().cmd("mixer", "volume", String.valueOf(Math.min(100, Math.max(0, newVolume)))).exec();
+            Player activePlayer = mDelegate.getActivePlayer();
+            if (activePlayer != null) {
+                adjustVolumeTo(activePlayer, newVolume);
+            }
         }
 
         @Override
         public void adjustVolumeBy(int delta) {
-            if (delta > 0) {
+            Player activePlayer = mDelegate.getActivePlayer();
+            if (activePlayer == null || delta == 0) {
+                return;
+            }
+
+            // Adjust from the volume shown, which includes commands the server hasn't reported
+            // yet, and send the result as an absolute volume so it can't race those commands.
+            int volume = activePlayer.getPlayerState().getCurrentVolume();
+            if (volume >= 0) {
+                adjustVolumeTo(activePlayer, volume + delta);
+            } else if (delta > 0) {
                 mDelegate.activePlayerCommand().cmd("mixer", "volume", "+" + delta).exec();
-            } else if (delta < 0) {
+            } else {
                 mDelegate.activePlayerCommand().cmd("mixer", "volume", String.valueOf(delta)).exec();
             }
         }
@@ -1238,6 +1300,15 @@ public class SqueezeService extends Service {
             return getActivePlayerState();
         }
 
+        @Override
+        public void setNowPlayingArtworkSize(int width, int height) {
+            mArtworkPrefetcher.setFullScreenSize(width, height);
+            Player activePlayer = mDelegate.getActivePlayer();
+            if (activePlayer != null) {
+                mArtworkPrefetcher.prefetch(activePlayer);
+            }
+        }
+
         /**
          * @return null if there is no active player, otherwise the name of the current playlist,
          *     which may be the empty string.
@@ -1262,7 +1333,16 @@ public class SqueezeService extends Service {
                 return false;
             }
 
-            mDelegate.activePlayerCommand().cmd("time", String.valueOf(seconds)).exec();
+            Player activePlayer = mDelegate.getActivePlayer();
+            if (activePlayer == null) {
+                return false;
+            }
+
+            // Show the new position until the server has caught up with the latest command
+            PlayerState playerState = activePlayer.getPlayerState();
+            playerState.statusSeen = SystemClock.elapsedRealtime() / 1000.0;
+            playerState.setCurrentTimeSecond(seconds);
+            mDelegate.controlCommand(activePlayer, ControlCommands.TIME, seconds, "time", String.valueOf(seconds));
 
             return true;
         }
@@ -1428,8 +1508,18 @@ public class SqueezeService extends Service {
      * <p>
      * For example, this ensures that if a new client subscribes and needs real
      * time updates, the player subscription states will be updated accordingly.
+     * <p>
+     * Player events are coalesced by an {@link EventCoalescer} and delivered on the main thread,
+     * in the order they were posted for each player. Activities unregister when they are paused,
+     * so only resumed subscribers receive them.
      */
     class EventBus extends de.greenrobot.event.EventBus {
+        private final EventCoalescer mEventCoalescer = new EventCoalescer(this::dispatch);
+
+        /** @return The counters of the coalesced events */
+        EventCoalescer getEventCoalescer() {
+            return mEventCoalescer;
+        }
 
         @Override
         public void register(Object subscriber) {
@@ -1445,14 +1535,26 @@ public class SqueezeService extends Service {
 
         @Override
         public void post(Object event) {
-            Log.v("EventBus", "post() " + event.getClass().getSimpleName() + ": " + event);
-            super.post(event);
+            if (!mEventCoalescer.offer(event, false)) {
+                dispatch(event, false);
+            }
         }
 
         @Override
         public void postSticky(Object event) {
-            Log.v("EventBus", "postSticky() " + event.getClass().getSimpleName() + ": " + event);
-            super.postSticky(event);
+            if (!mEventCoalescer.offer(event, true)) {
+                dispatch(event, true);
+            }
+        }
+
+        private void dispatch(Object event, boolean sticky) {
+            if (sticky) {
+                Log.v("EventBus", "postSticky() " + event.getClass().getSimpleName() + ": " + event);
+                super.postSticky(event);
+            } else {
+                Log.v("EventBus", "post() " + event.getClass().getSimpleName() + ": " + event);
+                super.post(event);
+            }
         }
 
         @Override
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+
+/**
+ * The last status received for each player, used to find the parts of a new status which
+ * differ from the previous status of the player.
+ */
+class StatusSnapshots {
+    /** The last status received for each player, keyed by player id. */
+    private final Map<String, Snapshot> mSnapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Store a status as the last status of a player.
+     *
+     * @param playerId Id of the player the status is for
+     * @param playerState The state the status is parsed into
+     * @param status The status
+     * @param songRecord The current song, or null if the status doesn't contain it separately
+     * @param baseRecord Data shared by the items of the status, or null
+     * @return Bitmask of the {@link PlayerStateChanged} parts with values which differ from the
+     *     previous status. All parts if there is no previous status for the supplied state.
+     */
+    int update(String playerId, PlayerState playerState, Map<String, Object> status, @Nullable Map<String, Object> songRecord, @Nullable Map<String, Object> baseRecord) {
+        Snapshot previous = mSnapshots.put(playerId, new Snapshot(playerState, status, songRecord, baseRecord));
+        if (previous == null || previous.playerState != playerState) {
+            // The player state has been replaced since the last status, parse everything
+            return PlayerStateChanged.ALL;
+        }
+
+        int changes = 0;
+        if (changed(previous, status, "power")) {
+            changes |= PlayerStateChanged.POWER;
+        }
+        if (changed(previous, status, "mode")) {
+            changes |= PlayerStateChanged.PLAY_STATUS;
+        }
+        if (changed(previous, status, "playlist shuffle")) {
+            changes |= PlayerStateChanged.SHUFFLE;
+        }
+        if (changed(previous, status, "playlist repeat")) {
+            changes |= PlayerStateChanged.REPEAT;
+        }
+        if (changed(previous, status, "playlist_timestamp")) {
+            changes |= PlayerStateChanged.PLAYLIST;
+        }
+        if (!rawEquals(previous.songRecord, songRecord) || !rawEquals(previous.baseRecord, baseRecord)) {
+            changes |= PlayerStateChanged.SONG;
+        }
+        if (changed(previous, status, "duration") || changed(previous, status, "time")) {
+            changes |= PlayerStateChanged.SONG_TIME;
+        }
+        if (changed(previous, status, "mixer volume")) {
+            changes |= PlayerStateChanged.VOLUME;
+        }
+        if (changed(previous, status, "will_sleep_in") || changed(previous, status, "sleep")) {
+            changes |= PlayerStateChanged.SLEEP;
+        }
+        if (changed(previous, status, "sync_master") || changed(previous, status, "sync_slaves")) {
+            changes |= PlayerStateChanged.SYNC;
+        }
+        return changes;
+    }
+
+    /**
+     * @return True if the value for the supplied key differs from the previous status
+     */
+    private static boolean changed(Snapshot previous, Map<String, Object> status, String key) {
+        return !Objects.equals(previous.status.get(key), status.get(key));
+    }
+
+    /**
+     * Compare values parsed from JSON. Unlike {@link Map#equals(Object)} this compares nested
+     * arrays by content.
+     */
+    private static boolean rawEquals(@Nullable Object a, @Nullable Object b) {
+        if (a instanceof Object[] && b instanceof Object[]) {
+            Object[] arrayA = (Object[]) a;
+            Object[] arrayB = (Object[]) b;
+            if (arrayA.length != arrayB.length) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.length; i++) {
+                if (!rawEquals(arrayA[i], arrayB[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> mapA = (Map<?, ?>) a;
+            Map<?, ?> mapB = (Map<?, ?>) b;
+            if (mapA.size() != mapB.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+                if (!mapB.containsKey(entry.getKey()) || !rawEquals(entry.getValue(), mapB.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(a, b);
+    }
+
+    /** The last status received for a player. */
+    private static class Snapshot {
+        /** The state the status was parsed into. */
+        final PlayerState playerState;
+        final Map<String, Object> status;
+        @Nullable final Map<String, Object> songRecord;
+        @Nullable final Map<String, Object> baseRecord;
+
+        Snapshot(PlayerState playerState, Map<String, Object> status, @Nullable Map<String, Object> songRecord, @Nullable Map<String, Object> baseRecord) {
+            this.playerState = playerState;
+            this.status = status;
+            this.songRecord = songRecord;
+            this.baseRecord = baseRecord;
+        }
+    }
+}
@@ -21,19 +21,51 @@ import androidx.annotation.NonNull;
 
 import uk.org.ngo.squeezer.model.Player;
 
-/** Event sent when a player's state has changed. */
+/**
+ * Event sent when a player's state has changed.
+ * <p>
+ * One event is sent for each status update received from the server, with {@link #changes}
+ * telling which parts of the state changed.
+ */
 public class PlayerStateChanged {
+    public static final int POWER = 1;
+    public static final int PLAY_STATUS = 1 << 1;
+    public static final int SHUFFLE = 1 << 2;
+    public static final int REPEAT = 1 << 3;
+    public static final int PLAYLIST = 1 << 4;
+    public static final int SONG = 1 << 5;
+    public static final int SONG_TIME = 1 << 6;
+    public static final int VOLUME = 1 << 7;
+    public static final int SLEEP = 1 << 8;
+    public static final int SYNC = 1 << 9;
+    public static final int PREFS = 1 << 10;
+    public static final int ALL = ~0;
+
     /** The player with changed state. */
     @NonNull public final Player player;
 
-    public PlayerStateChanged(@NonNull Player player) {
+    /** Bitmask of the parts of the state which changed. */
+    public final int changes;
+
+    public PlayerStateChanged(@NonNull Player player, int changes) {
         this.player = player;
+        this.changes = changes;
+    }
+
+    public PlayerStateChanged(@NonNull Player player) {
+        this(player, ALL);
+    }
+
+    /** @return True if any of the parts of the state in the supplied mask changed */
+    public boolean hasChanged(int mask) {
+        return (changes & mask) != 0;
     }
 
     @Override
     public String toString() {
         return "PlayerStateChanged{" +
                 "player=" + player +
+                ", changes=0x" + Integer.toHexString(changes) +
                 '}';
     }
 }
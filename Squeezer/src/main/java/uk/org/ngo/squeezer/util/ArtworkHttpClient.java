@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+/**
+ * HTTP client for artwork downloads.
+ * <p>
+ * Connections are returned to the platform's keep-alive pool after each download, so covers
+ * fetched from the same server reuse a connection: response bodies are always read to the end
+ * and closed, and connections are never disconnected explicitly.
+ * <p>
+ * The number of parallel downloads from each host is capped. The cap is kept below the number
+ * of idle connections the platform pool keeps per host (5 by default), so every connection can
+ * be returned to the pool.
+ */
+public class ArtworkHttpClient {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static final int TIMEOUT = 15000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final int mMaxConnectionsPerHost;
+
+    /** Permits for parallel connections, keyed by host and port. */
+    private final ConcurrentMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    public ArtworkHttpClient(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    public ArtworkHttpClient() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Download the supplied URL, following redirects.
+     * <p>
+     * Blocks while the maximum number of connections to the host are in use.
+     *
+     * @param url The URL to download
+     * @param sink If not null, the response body is also written to this as it is received
+     * @return The response body
+     * @throws IOException If the download failed, or the server responded with an error
+     */
+    public byte[] fetch(String url, @Nullable OutputStream sink) throws IOException {
+        Map<String, Integer> visited = new HashMap<>();
+
+        while (true) {
+            Integer times = visited.get(url);
+            if (times == null) times = 0;
+            visited.put(url, ++times);
+
+            if (times > 3)
+                throw new IOException("Stuck in redirect loop");
+
+            URL resourceUrl = new URL(url);
+            Semaphore permits = acquire(resourceUrl);
+            try {
+                HttpURLConnection urlConnection = (HttpURLConnection) resourceUrl.openConnection();
+                urlConnection.setConnectTimeout(TIMEOUT);
+                urlConnection.setReadTimeout(TIMEOUT);
+                urlConnection.setInstanceFollowRedirects(false);   // Make the logic below easier to detect redirections
+
+                int responseCode = urlConnection.getResponseCode();
+                switch (responseCode) {
+                    case HttpURLConnection.HTTP_MOVED_PERM:
+                    case HttpURLConnection.HTTP_MOVED_TEMP:
+                        String location = URLDecoder.decode(urlConnection.getHeaderField("Location"), "UTF-8");
+                        drain(urlConnection.getInputStream());
+                        url = new URL(resourceUrl, location).toExternalForm();  // Deal with relative URLs
+                        continue;
+                }
+
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    drain(urlConnection.getErrorStream());
+                    throw new IOException("HTTP " + responseCode + " for " + url);
+                }
+
+                return read(urlConnection.getInputStream(), urlConnection.getContentLength(), sink);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private Semaphore acquire(URL url) throws InterruptedIOException {
+        String host = url.getHost() + ':' + url.getPort();
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(mMaxConnectionsPerHost, true);
+            permits = mHostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + host);
+        }
+        return permits;
+    }
+
+    /**
+     * Read the stream to the end, and close it, so the connection can be reused.
+     */
+    private byte[] read(InputStream in, int contentLength, @Nullable OutputStream sink) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(contentLength > 0 ? contentLength : BUFFER_SIZE);
+        byte[] buffer = mBuffer.get();
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+                if (sink != null) {
+                    sink.write(buffer, 0, n);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Discard the rest of the stream, and close it, so the connection can be reused.
+     */
+    private void drain(@Nullable InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = mBuffer.get();
+        try {
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
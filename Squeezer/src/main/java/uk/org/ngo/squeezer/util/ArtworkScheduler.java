@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs artwork loads in priority lanes.
+ * <p>
+ * Work for images on screen runs first, then work for notifications and remote views, then
+ * prefetches. Each lane has its own limit on the number of jobs running at the same time, so
+ * lower priority work can never occupy all the threads.
+ * <p>
+ * The on-screen lane is last in, first out, so after a fling the most recently bound rows are
+ * loaded first. The other lanes are first in, first out.
+ * <p>
+ * Jobs are created with {@link #newJob(int)}, and started by passing a runnable to
+ * {@link Job#execute(Runnable)}. If the runnable is a {@link Future} which is cancelled before
+ * it starts, it's dropped from its lane without using a thread.
+ */
+public class ArtworkScheduler {
+    /** Images which are on screen. */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /** Images for notifications, remote views and callbacks. */
+    public static final int PRIORITY_NOTIFICATION = 1;
+
+    /** Images which are not shown yet. */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    private final Lane[] mLanes;
+
+    private final int mMaxThreads;
+
+    private int mRunning;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param maxThreads Maximum number of jobs running at the same time. The on-screen lane may
+     *     use all of them, the notification lane one, and prefetches half of them.
+     */
+    public ArtworkScheduler(int maxThreads) {
+        mMaxThreads = Math.max(1, maxThreads);
+        mLanes = new Lane[]{
+                new Lane(mMaxThreads, true),
+                new Lane(1, false),
+                new Lane(Math.max(1, mMaxThreads / 2), false),
+        };
+
+        mExecutor = new ThreadPoolExecutor(mMaxThreads, mMaxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ArtworkScheduler #" + mCount.getAndIncrement());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param priority One of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_NOTIFICATION} or
+     *     {@link #PRIORITY_PREFETCH}
+     *
+     * @return A new job, to be started by {@link Job#execute(Runnable)}
+     */
+    public Job newJob(int priority) {
+        return new Job(priority);
+    }
+
+    /** Number of jobs waiting to run. */
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (Lane lane : mLanes) {
+            count += lane.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Start jobs, highest priority first, while there are free threads and lanes below their
+     * limit.
+     */
+    private void schedule() {
+        while (true) {
+            final Job job;
+            final Lane lane;
+            synchronized (this) {
+                if (mRunning >= mMaxThreads) {
+                    return;
+                }
+                job = next();
+                if (job == null) {
+                    return;
+                }
+                lane = mLanes[job.mPriority];
+                job.mQueued = false;
+                lane.running++;
+                mRunning++;
+            }
+
+            mExecutor.execute(() -> {
+                try {
+                    job.mRunnable.run();
+                } finally {
+                    synchronized (ArtworkScheduler.this) {
+                        lane.running--;
+                        mRunning--;
+                    }
+                    schedule();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The next job to run, or null if no lane below its limit has any jobs. Jobs which
+     *     were cancelled while they waited are dropped.
+     */
+    private Job next() {
+        for (Lane lane : mLanes) {
+            if (lane.running >= lane.maxRunning) {
+                continue;
+            }
+            Job job;
+            while ((job = lane.queue.pollFirst()) != null) {
+                if (job.isCancelled()) {
+                    job.mQueued = false;
+                    continue;
+                }
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private static class Lane {
+        final int maxRunning;
+        final boolean lifo;
+        final Deque<Job> queue = new ArrayDeque<>();
+        int running;
+
+        Lane(int maxRunning, boolean lifo) {
+            this.maxRunning = maxRunning;
+            this.lifo = lifo;
+        }
+
+        void add(Job job) {
+            if (lifo) {
+                queue.addFirst(job);
+            } else {
+                queue.addLast(job);
+            }
+        }
+    }
+
+    /**
+     * A unit of work for the scheduler. Use it as the executor for a single runnable.
+     */
+    public class Job implements Executor {
+        private int mPriority;
+        private Runnable mRunnable;
+        private boolean mQueued;
+
+        private Job(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Queue the runnable in the lane for the priority of this job. May only be called once.
+         */
+        @Override
+        public void execute(Runnable runnable) {
+            synchronized (ArtworkScheduler.this) {
+                if (mRunnable != null) {
+                    throw new IllegalStateException("Job is already executed");
+                }
+                mRunnable = runnable;
+                mQueued = true;
+                mLanes[mPriority].add(this);
+            }
+            schedule();
+        }
+
+        /**
+         * Raise the priority of this job, f.e. when an image which is being prefetched comes
+         * on screen. If the job is waiting it moves to the lane for the new priority.
+         */
+        public void raisePriority(int priority) {
+            synchronized (ArtworkScheduler.this) {
+                if (priority >= mPriority) {
+                    return;
+                }
+                if (mQueued) {
+                    mLanes[mPriority].queue.remove(this);
+                    mLanes[priority].add(this);
+                }
+                mPriority = priority;
+            }
+            schedule();
+        }
+
+        /**
+         * Drop this job from its lane if it hasn't started yet. Call this after cancelling the
+         * runnable, so the lane doesn't fill up with cancelled work during a fling.
+         */
+        public void remove() {
+            synchronized (ArtworkScheduler.this) {
+                if (mQueued) {
+                    mLanes[mPriority].queue.remove(this);
+                    mQueued = false;
+                }
+            }
+        }
+
+        public int getPriority() {
+            synchronized (ArtworkScheduler.this) {
+                return mPriority;
+            }
+        }
+
+        private boolean isCancelled() {
+            return mRunnable instanceof Future && ((Future<?>) mRunnable).isCancelled();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("ArtworkScheduler{running=").append(mRunning);
+        for (int i = 0; i < mLanes.length; i++) {
+            sb.append(", lane").append(i).append("=").append(mLanes[i].running).append('/')
+                    .append(mLanes[i].queue.size());
+        }
+        return sb.append('}').toString();
+    }
+}
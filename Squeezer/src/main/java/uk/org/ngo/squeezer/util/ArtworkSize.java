@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites artwork URLs, so the server resizes the artwork before it is downloaded.
+ * <p>
+ * The server can scale its artwork on the fly, by adding a resize spec to the file name, f.e.
+ * {@code /music/<id>/cover_300x300_m.jpg} is the cover scaled to fit within 300x300 pixels. The
+ * requested size is rounded up to one of a few size buckets, so views of similar size share the
+ * same downloads and disk cache entries.
+ */
+public class ArtworkSize {
+    /** Sizes the server is asked to scale artwork to. */
+    private static final int[] BUCKETS = {100, 200, 300, 500, 800};
+
+    /**
+     * Artwork served by the server, which accepts a resize spec: covers and proxied images. If
+     * the URL already has a resize spec it's replaced.
+     */
+    private static final Pattern RESIZABLE = Pattern.compile(
+            "^(.*/(?:music/[^/]+/cover|imageproxy/.+/image))(?:_[0-9X]+x[0-9X]+(?:_\\w)?)?(?:\\.(jpg|jpeg|png|gif))?(\\?.*)?$");
+
+    private ArtworkSize() {
+    }
+
+    /**
+     * @return The smallest size bucket which is at least as large as the supplied size, or 0
+     *     if it's larger than all the buckets.
+     */
+    public static int bucket(int width, int height) {
+        int size = Math.max(width, height);
+        for (int bucket : BUCKETS) {
+            if (size <= bucket) {
+                return bucket;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Rewrite the supplied artwork URL to ask the server for the artwork scaled to fit within
+     * the size bucket for the supplied width and height.
+     * <p>
+     * URLs which are not for artwork served by the server are returned unchanged. So are
+     * requests with unknown dimensions, and for sizes beyond the largest bucket, which load the
+     * original artwork.
+     *
+     * @param url The URL of the artwork
+     * @param width The width of the view the artwork is loaded for
+     * @param height The height of the view the artwork is loaded for
+     *
+     * @return The URL to download the artwork from
+     */
+    public static String resize(String url, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return url;
+        }
+
+        int bucket = bucket(width, height);
+        if (bucket == 0) {
+            return url;
+        }
+
+        Matcher matcher = RESIZABLE.matcher(url);
+        if (!matcher.matches()) {
+            return url;
+        }
+
+        // Keep png (which may be transparent) and gif, and transcode anything else to jpg.
+        String extension = matcher.group(2);
+        if (!"png".equals(extension) && !"gif".equals(extension)) {
+            extension = "jpg";
+        }
+        String query = matcher.group(3);
+
+        return matcher.group(1) + '_' + bucket + 'x' + bucket + "_m." + extension + (query != null ? query : "");
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Pool of bitmaps which are no longer cached, so their memory can be reused when decoding other
+ * bitmaps (see {@link BitmapFactory.Options#inBitmap}), instead of allocating new bitmaps.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. A decode is given the smallest pooled bitmap
+ * which is large enough, but never one more than twice the size it needs, so small thumbnails
+ * don't hold on to the memory of large artwork.
+ * <p>
+ * The total size of the pooled bitmaps is bounded, the largest bitmaps are dropped first.
+ */
+public class BitmapPool {
+    /** Checks whether a bitmap is still in use, and so must not be reused. */
+    public interface InUseCheck {
+        boolean isInUse(Bitmap bitmap);
+    }
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    /** Pooled bitmaps, keyed by their allocation size. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+
+    @Nullable
+    private volatile InUseCheck mInUseCheck;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param maxSize Maximum total size in bytes of the pooled bitmaps.
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public void setInUseCheck(@Nullable InUseCheck inUseCheck) {
+        mInUseCheck = inUseCheck;
+    }
+
+    /**
+     * Add the bitmap to the pool, if it can be reused.
+     * <p>
+     * Bitmaps are checked again when they are taken from the pool, as they may have been put
+     * in to use after they were added.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+
+        InUseCheck inUseCheck = mInUseCheck;
+        if (inUseCheck != null && inUseCheck.isInUse(bitmap)) {
+            return;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxSize) {
+            return;
+        }
+
+        while (mSize + size > mMaxSize) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = mBuckets.lastEntry();
+            removeFirst(largest.getKey(), largest.getValue());
+        }
+
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mSize += size;
+    }
+
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap large enough for the decode
+     * described by the options, and remove it from the pool.
+     *
+     * @param options Options with the out* fields populated by a decode with
+     *     inJustDecodeBounds, and the inSampleSize to decode with.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        // inBitmap only works with mutable bitmaps
+        options.inMutable = true;
+
+        Bitmap bitmap = get(getByteCount(options));
+        if (bitmap != null) {
+            options.inBitmap = bitmap;
+        }
+    }
+
+    /**
+     * @return A bitmap of at least the supplied size, removed from the pool, or null if the pool
+     *     has no suitable bitmap.
+     */
+    @Nullable
+    public synchronized Bitmap get(int byteCount) {
+        InUseCheck inUseCheck = mInUseCheck;
+        for (Map.Entry<Integer, ArrayDeque<Bitmap>> entry : mBuckets.subMap(byteCount, true, byteCount * 2, true).entrySet()) {
+            for (Iterator<Bitmap> it = entry.getValue().iterator(); it.hasNext(); ) {
+                Bitmap bitmap = it.next();
+                if (inUseCheck != null && inUseCheck.isInUse(bitmap)) {
+                    continue;
+                }
+                it.remove();
+                mSize -= entry.getKey();
+                if (entry.getValue().isEmpty()) {
+                    mBuckets.remove(entry.getKey());
+                }
+                mHits.incrementAndGet();
+                return bitmap;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /** Drop all the bitmaps from the pool. */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /** Number of decodes which reused a pooled bitmap. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Number of decodes which found no suitable pooled bitmap. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Total size in bytes of the pooled bitmaps. */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void removeFirst(int size, ArrayDeque<Bitmap> bucket) {
+        bucket.removeFirst();
+        mSize -= size;
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+    }
+
+    /**
+     * @return The size in bytes of the bitmap decoded with the supplied options. The decoders
+     *     round the sample size down to a power of 2, and the dimensions up.
+     */
+    private static int getByteCount(BitmapFactory.Options options) {
+        int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        return width * height * getBytesPerPixel(options.inPreferredConfig);
+    }
+
+    private static int getBytesPerPixel(@Nullable Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{" +
+                "size=" + mSize +
+                ", maxSize=" + mMaxSize +
+                ", hits=" + mHits +
+                ", misses=" + mMisses +
+                '}';
+    }
+}
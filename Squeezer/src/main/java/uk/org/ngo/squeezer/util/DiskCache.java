@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Storage backend for the disk tiers of {@link ImageCache}. Each entry holds a single value,
+ * identified by a key which is a hash of the image identifier.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @see JournalDiskCache
+ * @see SegmentDiskCache
+ */
+public interface DiskCache extends Closeable {
+
+    /** Opens a {@link DiskCache} in a directory. */
+    interface Factory {
+        /**
+         * Opens the cache in the supplied directory, creating it if it doesn't exist.
+         *
+         * @param directory A writable directory, only used by this cache
+         * @param maxSize The maximum number of bytes this cache should use to store
+         */
+        DiskCache open(File directory, long maxSize) throws IOException;
+    }
+
+    /** Writes the value of an entry. */
+    interface Editor {
+        /** @return The stream to write the value to. */
+        OutputStream newOutputStream() throws IOException;
+
+        /** Make the value visible to readers, replacing any previous value. */
+        void commit() throws IOException;
+
+        /** Discard the value. */
+        void abort() throws IOException;
+    }
+
+    /**
+     * @return A stream to read the value of the entry, or null if it doesn't exist.
+     */
+    @Nullable
+    InputStream get(String key) throws IOException;
+
+    /**
+     * @return An editor for the entry, or null if the entry is already being edited.
+     */
+    @Nullable
+    Editor edit(String key) throws IOException;
+
+    /**
+     * Drops the entry if it exists.
+     *
+     * @return True if an entry was removed.
+     */
+    boolean remove(String key) throws IOException;
+
+    /** Force buffered operations to the filesystem. */
+    void flush() throws IOException;
+
+    /** @return True if this cache has been closed. */
+    boolean isClosed();
+
+    /** Closes the cache and deletes all files in its directory. */
+    void delete() throws IOException;
+
+    /** @return The number of bytes used to store the values. */
+    long size();
+
+    /** @return The maximum number of bytes this cache should use to store its values. */
+    long maxSize();
+}
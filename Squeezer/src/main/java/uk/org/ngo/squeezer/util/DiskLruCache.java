@@ -473,17 +473,30 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     *
+     * <p>The files are opened without holding the lock of this cache, so
+     * concurrent reads don't wait for each other's file system calls.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+    public Snapshot get(String key) throws IOException {
+        Entry entry;
+        long sequenceNumber;
+        File[] files = new File[valueCount];
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            entry = lruEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
 
-        if (!entry.readable) {
-            return null;
+            if (!entry.readable) {
+                return null;
+            }
+
+            sequenceNumber = entry.sequenceNumber;
+            for (int i = 0; i < valueCount; i++) {
+                files[i] = entry.getCleanFile(i);
+            }
         }
 
         /*
@@ -494,20 +507,40 @@ public final class DiskLruCache implements Closeable {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                ins[i] = new FileInputStream(files[i]);
             }
         } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
+            // the entry was removed meanwhile, or a file was deleted manually!
+            closeAll(ins);
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        synchronized (this) {
+            if (isClosed()) {
+                closeAll(ins);
+                checkNotClosed();
+            }
+            if (lruEntries.get(key) != entry || entry.sequenceNumber != sequenceNumber) {
+                // Removed or edited while the files were opened, so the
+                // streams may come from different edits.
+                closeAll(ins);
+                return null;
+            }
+
+            redundantOpCount++;
+            journalWriter.append(READ + ' ' + key + '\n');
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
+    }
+
+    private static void closeAll(InputStream[] ins) {
+        for (InputStream in : ins) {
+            closeQuietly(in);
+        }
     }
 
     /**
@@ -17,11 +17,13 @@
 package uk.org.ngo.squeezer.util;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.FragmentManager;
 import androidx.collection.LruCache;
@@ -31,10 +33,15 @@ import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
 
 import uk.org.ngo.squeezer.BuildConfig;
 
@@ -48,6 +55,21 @@ public class ImageCache {
     // Default memory cache size
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
 
+    // Smallest size the memory cache shrinks to, as a fraction of the configured size
+    private static final float MIN_MEM_CACHE_FRACTION = 0.125f;
+
+    // Number of memory cache lookups over which the hit ratio is measured
+    private static final int HIT_RATIO_WINDOW = 256;
+
+    // Grow a trimmed memory cache if fewer lookups than this hit
+    private static final float GROW_HIT_RATIO = 0.8f;
+
+    // Don't grow the memory cache this soon after it was trimmed
+    private static final long GROW_HOLDOFF_MS = 30 * 1000;
+
+    // Default size of the pool of reusable bitmaps, as a fraction of the memory cache size
+    private static final float DEFAULT_BITMAP_POOL_FRACTION = 0.25f;
+
     // Default disk cache size
     private static final int MAX_DISK_CACHE_SIZE = 1024 * 1024 * 100; // 100MB
 
@@ -59,7 +81,14 @@ public class ImageCache {
 
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
 
-    private static final int DISK_CACHE_INDEX = 0;
+    // Size of the thumbnail cache, as a fraction of the disk cache size
+    private static final float DEFAULT_THUMBNAIL_CACHE_FRACTION = 0.25f;
+
+    // Suffix of the directory of the thumbnail cache, next to the disk cache directory
+    private static final String THUMBNAIL_CACHE_SUFFIX = "-thumbnails";
+
+    // Bitmaps larger than this are not stored in the thumbnail cache
+    private static final int MAX_THUMBNAIL_SIZE = 512 * 1024;
 
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
@@ -70,15 +99,45 @@ public class ImageCache {
 
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
-    private DiskLruCache mDiskLruCache;
+    private volatile DiskCache mDiskCache;
+
+    /**
+     * Bitmaps as they were scaled for display, keyed by the memory cache key. The pixels are
+     * stored uncompressed, so a hit doesn't have to decode and scale the original image again.
+     */
+    private volatile DiskCache mThumbnailCache;
 
     private LruCache<String, Bitmap> mMemoryCache;
 
+    /** Lookups and hits in the current hit ratio window. Guarded by mMemoryCache. */
+    private int mWindowLookups;
+    private int mWindowHits;
+    private int mWindowStartEvictions;
+
+    /** Hit ratio of the last complete window, -1 if there is none yet. */
+    private volatile float mHitRatio = -1;
+
+    /** When the memory cache was last trimmed, see {@link SystemClock#elapsedRealtime()}. */
+    private volatile long mLastTrimTime;
+
+    /** Checks which bitmaps are still in use, they are kept when the memory cache is trimmed. */
+    @Nullable
+    private volatile BitmapPool.InUseCheck mInUseCheck;
+
+    /** Bitmaps evicted from the memory cache, to be reused by later decodes. */
+    @Nullable
+    private BitmapPool mBitmapPool;
+
     private ImageCacheParams mCacheParams;
 
+    /**
+     * Serializes opening, clearing and closing the disk caches. Reads and edits don't take the
+     * lock, the {@link DiskCache} implementations are thread safe.
+     */
     private final Object mDiskCacheLock = new Object();
 
-    private boolean mDiskCacheStarting = true;
+    /** While true the disk caches are not used, reads miss instead of waiting. */
+    private volatile boolean mDiskCacheStarting = true;
 
     private static final HashFunction mHashFunction = Hashing.md5();
 
@@ -141,11 +200,24 @@ public class ImageCache {
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
+            if (mCacheParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize);
+            }
             mMemoryCache = new LruCache<String, Bitmap>(mCacheParams.memCacheSize) {
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
                     return (bitmap.getRowBytes() * bitmap.getHeight());
                 }
+
+                /**
+                 * Bitmaps evicted from the cache are added to the pool of reusable bitmaps.
+                 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    if (evicted && mBitmapPool != null) {
+                        mBitmapPool.put(oldValue);
+                    }
+                }
             };
         }
 
@@ -166,7 +238,7 @@ public class ImageCache {
     public void initDiskCache() {
         // Set up disk cache
         synchronized (mDiskCacheLock) {
-            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            if (mDiskCache == null || mDiskCache.isClosed()) {
                 File diskCacheDir = mCacheParams.diskCacheDir;
                 if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
                     if (!diskCacheDir.exists()) {
@@ -181,7 +253,7 @@ public class ImageCache {
 
                     if (usableSpace > diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, diskCacheSize);
+                            mDiskCache = mCacheParams.diskCacheFactory.open(diskCacheDir, diskCacheSize);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized in " + diskCacheDir);
                             }
@@ -189,11 +261,46 @@ public class ImageCache {
                             mCacheParams.diskCacheDir = null;
                             Log.e(TAG, "initDiskCache - " + e);
                         }
+                        initThumbnailCache(diskCacheDir, diskCacheSize);
                     }
                 }
             }
             mDiskCacheStarting = false;
-            mDiskCacheLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The supplied disk cache, or null if the disk caches are (re)starting.
+     */
+    @Nullable
+    private DiskCache available(@Nullable DiskCache diskCache) {
+        return mDiskCacheStarting ? null : diskCache;
+    }
+
+    /**
+     * Initializes the thumbnail cache in a directory next to the disk cache, so it survives
+     * {@link DiskCache#delete()} of the disk cache directory. Must be called with
+     * {@link #mDiskCacheLock} held.
+     */
+    private void initThumbnailCache(File diskCacheDir, long diskCacheSize) {
+        if (mCacheParams.thumbnailCacheFraction <= 0
+                || (mThumbnailCache != null && !mThumbnailCache.isClosed())) {
+            return;
+        }
+
+        File thumbnailCacheDir = new File(diskCacheDir.getParentFile(),
+                diskCacheDir.getName() + THUMBNAIL_CACHE_SUFFIX);
+        if (!thumbnailCacheDir.exists()) {
+            thumbnailCacheDir.mkdirs();
+        }
+        try {
+            mThumbnailCache = mCacheParams.diskCacheFactory.open(thumbnailCacheDir,
+                    Math.round(diskCacheSize * mCacheParams.thumbnailCacheFraction));
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Thumbnail cache initialized in " + thumbnailCacheDir);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "initThumbnailCache - " + e);
         }
     }
 
@@ -242,22 +349,22 @@ public class ImageCache {
 
         synchronized (mDiskCacheLock) {
             // Add to disk cache
-            if (mDiskLruCache != null) {
+            if (mDiskCache != null) {
                 final String key = hashKeyForDisk(data);
                 OutputStream out = null;
                 try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                    InputStream existing = mDiskCache.get(key);
+                    if (existing == null) {
+                        final DiskCache.Editor editor = mDiskCache.edit(key);
                         if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
+                            out = editor.newOutputStream();
                             bitmap.compress(
                                     mCacheParams.compressFormat, mCacheParams.compressQuality, out);
                             editor.commit();
                             out.close();
                         }
                     } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                        existing.close();
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "addBitmapToCache - " + e);
@@ -288,21 +395,21 @@ public class ImageCache {
 
         synchronized (mDiskCacheLock) {
             // Add to disk cache
-            if (mDiskLruCache != null) {
+            if (mDiskCache != null) {
                 final String key = hashKeyForDisk(data);
                 OutputStream out = null;
                 try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+                    InputStream existing = mDiskCache.get(key);
+                    if (existing == null) {
+                        final DiskCache.Editor editor = mDiskCache.edit(key);
                         if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
+                            out = editor.newOutputStream();
                             out.write(bytes);
                             editor.commit();
                             out.close();
                         }
                     } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                        existing.close();
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "addBitmapToCache - " + e);
@@ -320,6 +427,185 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Adds a scaled bitmap to the thumbnail cache. The pixels are stored uncompressed, after a
+     * header with the dimensions and configuration of the bitmap. Bitmaps larger than
+     * {@link #MAX_THUMBNAIL_SIZE} are not stored.
+     *
+     * @param memCacheKey The memory cache key of the bitmap
+     * @param bitmap The bitmap to store
+     */
+    public void addBitmapToThumbnailCache(String memCacheKey, Bitmap bitmap) {
+        if (memCacheKey == null || bitmap == null || bitmap.getConfig() == null
+                || bitmap.getByteCount() > MAX_THUMBNAIL_SIZE) {
+            return;
+        }
+
+        final DiskCache thumbnailCache = available(mThumbnailCache);
+        if (thumbnailCache != null) {
+            final String key = hashKeyForDisk(memCacheKey);
+            DataOutputStream out = null;
+            try {
+                final DiskCache.Editor editor = thumbnailCache.edit(key);
+                if (editor != null) {
+                    ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+                    bitmap.copyPixelsToBuffer(pixels);
+
+                    out = new DataOutputStream(editor.newOutputStream());
+                    out.writeInt(bitmap.getWidth());
+                    out.writeInt(bitmap.getHeight());
+                    out.writeUTF(bitmap.getConfig().name());
+                    out.write(pixels.array(), 0, pixels.position());
+                    out.close();
+                    editor.commit();
+                }
+            } catch (final IOException | IllegalStateException e) {
+                // IllegalStateException if the cache was closed meanwhile
+                Log.e(TAG, "addBitmapToThumbnailCache - " + e);
+            } finally {
+                DiskLruCache.closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * Get a scaled bitmap from the thumbnail cache. The bitmap is taken from the pool of
+     * reusable bitmaps if possible.
+     *
+     * @param memCacheKey The memory cache key of the bitmap
+     *
+     * @return The bitmap if found in the thumbnail cache, null otherwise, also while the cache
+     *     is starting
+     */
+    @Nullable
+    public Bitmap getBitmapFromThumbnailCache(String memCacheKey) {
+        final DiskCache thumbnailCache = available(mThumbnailCache);
+        if (thumbnailCache != null) {
+            DataInputStream in = null;
+            try {
+                final InputStream inputStream = thumbnailCache.get(hashKeyForDisk(memCacheKey));
+                if (inputStream != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Thumbnail cache hit");
+                    }
+                    in = new DataInputStream(inputStream);
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    Bitmap.Config config = Bitmap.Config.valueOf(in.readUTF());
+                    Bitmap bitmap = obtainBitmap(width, height, config);
+                    byte[] pixels = new byte[bitmap.getByteCount()];
+                    in.readFully(pixels);
+                    bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                    return bitmap;
+                }
+            } catch (final IOException | IllegalArgumentException | IllegalStateException e) {
+                Log.e(TAG, "getBitmapFromThumbnailCache - " + e);
+            } finally {
+                DiskLruCache.closeQuietly(in);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return A mutable bitmap with the supplied dimensions and configuration, from the pool of
+     *     reusable bitmaps if it has a suitable one.
+     */
+    private Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        if (mBitmapPool != null) {
+            Bitmap bitmap = mBitmapPool.get(width * height * getBytesPerPixel(config));
+            if (bitmap != null) {
+                try {
+                    bitmap.reconfigure(width, height, config);
+                    return bitmap;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Could not reuse bitmap: " + e);
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * Start writing an entry in the disk cache, so the bytes of an image can be streamed to the
+     * cache as they are downloaded.
+     *
+     * @param data Unique identifier for the bitmap to store
+     *
+     * @return An editor for the entry, or null if the disk cache is not available, or the entry is
+     * already being written.
+     */
+    @Nullable
+    public DiskCacheEditor editDiskCache(String data) {
+        final DiskCache diskCache = available(mDiskCache);
+        if (diskCache != null) {
+            try {
+                final DiskCache.Editor editor = diskCache.edit(hashKeyForDisk(data));
+                if (editor != null) {
+                    return new DiskCacheEditor(editor);
+                }
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "editDiskCache - " + e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes an entry in the disk cache. Errors writing to the output stream are not thrown,
+     * instead the entry is discarded when it is committed.
+     */
+    public static class DiskCacheEditor {
+        private final DiskCache.Editor mEditor;
+        private OutputStream mOutputStream;
+
+        private DiskCacheEditor(DiskCache.Editor editor) {
+            mEditor = editor;
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            if (mOutputStream == null) {
+                mOutputStream = mEditor.newOutputStream();
+            }
+            return mOutputStream;
+        }
+
+        /** Make the entry visible to readers. */
+        public void commit() {
+            try {
+                close();
+                mEditor.commit();
+            } catch (IOException e) {
+                Log.e(TAG, "commit - " + e);
+            }
+        }
+
+        /** Discard the entry. */
+        public void abort() {
+            try {
+                close();
+                mEditor.abort();
+            } catch (IOException e) {
+                Log.e(TAG, "abort - " + e);
+            }
+        }
+
+        private void close() throws IOException {
+            if (mOutputStream != null) {
+                mOutputStream.close();
+            }
+        }
+    }
+
     /**
      * Get from memory cache.
      *
@@ -332,66 +618,219 @@ public class ImageCache {
 
         if (mMemoryCache != null) {
             bitmap = mMemoryCache.get(data);
-
-            /*
-            Log.d(TAG, String.format(
-                    "Cache stats: h: %d m: %d (%.2f%%) p: %d e: %d, size: %d of %d (%.2f%%)",
-                    mMemoryCache.hitCount(),
-                    mMemoryCache.missCount(),
-                    ((float) mMemoryCache.hitCount()
-                            / (mMemoryCache.hitCount() + mMemoryCache.missCount()) * 100),
-                    mMemoryCache.putCount(),
-                    mMemoryCache.evictionCount(), mMemoryCache.size(), mMemoryCache.maxSize(),
-                    ((float) mMemoryCache.size() / mMemoryCache.maxSize()) * 100));
-            */
+            recordLookup(bitmap != null);
         }
 
         return bitmap;
     }
 
+    /**
+     * Track the hit ratio of the memory cache. If it's low, the cache is evicting entries, and it
+     * has been trimmed below its configured size a while ago, give back some of the memory.
+     */
+    private void recordLookup(boolean hit) {
+        int grow = 0;
+        synchronized (mMemoryCache) {
+            mWindowLookups++;
+            if (hit) {
+                mWindowHits++;
+            }
+            if (mWindowLookups < HIT_RATIO_WINDOW) {
+                return;
+            }
+
+            mHitRatio = (float) mWindowHits / mWindowLookups;
+            int evictions = mMemoryCache.evictionCount() - mWindowStartEvictions;
+            if (mHitRatio < GROW_HIT_RATIO && evictions > 0
+                    && mMemoryCache.maxSize() < mCacheParams.memCacheSize
+                    && SystemClock.elapsedRealtime() - mLastTrimTime > GROW_HOLDOFF_MS) {
+                grow = Math.min(mCacheParams.memCacheSize, mMemoryCache.maxSize() + mCacheParams.memCacheSize / 4);
+            }
+            mWindowLookups = 0;
+            mWindowHits = 0;
+            mWindowStartEvictions = mMemoryCache.evictionCount();
+        }
+
+        if (grow > 0) {
+            mMemoryCache.resize(grow);
+            Log.d(TAG, "Memory cache grown: " + getMemCacheStats());
+        }
+    }
+
+    /**
+     * Release memory according to the level from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * <p>
+     * The memory cache is shrunk to a fraction of its configured size, which depends on the
+     * level. Entries which are not in use (not on screen) are dropped first, least recently used
+     * first, so the visible artwork doesn't have to be decoded again. The cache grows back when
+     * its hit ratio is low, see {@link #recordLookup(boolean)}.
+     *
+     * @param level The trim level
+     */
+    public void trimMemory(int level) {
+        if (mMemoryCache == null) {
+            return;
+        }
+
+        float fraction;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            fraction = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            fraction = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            fraction = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            fraction = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            fraction = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            fraction = 0.75f;
+        } else {
+            return;
+        }
+
+        mLastTrimTime = SystemClock.elapsedRealtime();
+        int target = Math.round(mCacheParams.memCacheSize * fraction);
+        if (target == 0) {
+            clearMemoryCache();
+        } else {
+            shedMemoryCache(target);
+            if (fraction <= 0.5f && mBitmapPool != null) {
+                mBitmapPool.clear();
+            }
+        }
+
+        // Don't refill straight away. The cache is not shrunk below the bitmaps which are still in
+        // use, evicting those would not release their memory.
+        int minSize = Math.round(mCacheParams.memCacheSize * MIN_MEM_CACHE_FRACTION);
+        mMemoryCache.resize(Math.max(minSize, Math.max(target, mMemoryCache.size())));
+        Log.d(TAG, "Memory trimmed (level " + level + "): " + getMemCacheStats());
+    }
+
+    /**
+     * Drop bitmaps which are not in use from the memory cache, least recently used first, until
+     * the cache is no larger than the target size.
+     */
+    private void shedMemoryCache(int targetSize) {
+        BitmapPool.InUseCheck inUseCheck = mInUseCheck;
+        // The snapshot is ordered from least to most recently used
+        for (Map.Entry<String, Bitmap> entry : mMemoryCache.snapshot().entrySet()) {
+            if (mMemoryCache.size() <= targetSize) {
+                break;
+            }
+            if (inUseCheck == null || !inUseCheck.isInUse(entry.getValue())) {
+                mMemoryCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    /** Number of memory cache lookups which found the bitmap. */
+    public int getMemCacheHitCount() {
+        return mMemoryCache != null ? mMemoryCache.hitCount() : 0;
+    }
+
+    /** Number of memory cache lookups which did not find the bitmap. */
+    public int getMemCacheMissCount() {
+        return mMemoryCache != null ? mMemoryCache.missCount() : 0;
+    }
+
+    /** Number of bitmaps evicted from the memory cache to make room for others. */
+    public int getMemCacheEvictionCount() {
+        return mMemoryCache != null ? mMemoryCache.evictionCount() : 0;
+    }
+
+    /** Total size in bytes of the bitmaps in the memory cache. */
+    public int getMemCacheSize() {
+        return mMemoryCache != null ? mMemoryCache.size() : 0;
+    }
+
+    /** Current maximum size in bytes of the memory cache. */
+    public int getMemCacheMaxSize() {
+        return mMemoryCache != null ? mMemoryCache.maxSize() : 0;
+    }
+
+    /**
+     * @return A summary of the memory cache metrics, for logging.
+     */
+    public String getMemCacheStats() {
+        if (mMemoryCache == null) {
+            return "disabled";
+        }
+        return String.format(Locale.ROOT,
+                "hits: %d misses: %d (recent hit ratio %.2f) evictions: %d, size: %d of %d (configured %d), pool: %s",
+                getMemCacheHitCount(), getMemCacheMissCount(), mHitRatio,
+                getMemCacheEvictionCount(), getMemCacheSize(), getMemCacheMaxSize(),
+                mCacheParams.memCacheSize, mBitmapPool);
+    }
+
+    /**
+     * Prepare the options to decode in to a bitmap from the pool of reusable bitmaps, if one is
+     * available.
+     *
+     * @param options Options with the out* fields populated by a decode with
+     *     inJustDecodeBounds, and the inSampleSize to decode with.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        if (mBitmapPool != null) {
+            mBitmapPool.addInBitmapOptions(options);
+        }
+    }
+
+    /**
+     * Set the check which prevents bitmaps from being reused while they are still in use, f.e.
+     * displayed, after they have been evicted from the memory cache. Bitmaps in use are also
+     * kept when the memory cache is trimmed.
+     */
+    public void setBitmapInUseCheck(@Nullable BitmapPool.InUseCheck inUseCheck) {
+        mInUseCheck = inUseCheck;
+        if (mBitmapPool != null) {
+            mBitmapPool.setInUseCheck(inUseCheck);
+        }
+    }
+
+    /** Number of decodes which reused a bitmap from the pool. */
+    public long getBitmapPoolHitCount() {
+        return mBitmapPool != null ? mBitmapPool.getHitCount() : 0;
+    }
+
+    /** Number of decodes which found no reusable bitmap in the pool. */
+    public long getBitmapPoolMissCount() {
+        return mBitmapPool != null ? mBitmapPool.getMissCount() : 0;
+    }
+
     /**
      * Get from disk cache.
      *
      * @param data Unique identifier for which item to get
      *
-     * @return The bitmap if found in cache, null otherwise
+     * @return The bitmap if found in cache, null otherwise, also while the cache is starting
      */
     @Nullable
     public Bitmap getBitmapFromDiskCache(String data) {
-        final String key = hashKeyForDisk(data);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
+        final DiskCache diskCache = available(mDiskCache);
+        if (diskCache != null) {
+            InputStream inputStream = null;
+            try {
+                inputStream = diskCache.get(hashKeyForDisk(data));
+                if (inputStream != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    return BitmapFactory.decodeStream(inputStream);
                 }
-            }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+            } catch (final IOException | IllegalStateException e) {
+                // IllegalStateException if the cache was closed meanwhile
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return BitmapFactory.decodeStream(inputStream);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
+                    if (inputStream != null) {
+                        inputStream.close();
                     }
+                } catch (IOException e) {
                 }
             }
-            return null;
         }
+        return null;
     }
 
     /**
@@ -399,44 +838,35 @@ public class ImageCache {
      *
      * @param data Unique identifier for which item to get
      *
-     * @return The bytes at that entry in the cache, null otherwise
+     * @return The bytes at that entry in the cache, null otherwise, also while the cache is
+     *     starting
      */
     @Nullable
     public byte[] getBytesFromDiskCache(String data) {
-        final String key = hashKeyForDisk(data);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
+        final DiskCache diskCache = available(mDiskCache);
+        if (diskCache != null) {
+            InputStream inputStream = null;
+            try {
+                inputStream = diskCache.get(hashKeyForDisk(data));
+                if (inputStream != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    return ByteStreams.toByteArray(inputStream);
                 }
-            }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+            } catch (final IOException | IllegalStateException e) {
+                // IllegalStateException if the cache was closed meanwhile
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return ByteStreams.toByteArray(inputStream);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
+                    if (inputStream != null) {
+                        inputStream.close();
                     }
+                } catch (IOException e) {
                 }
             }
-            return null;
         }
+        return null;
     }
 
     /**
@@ -448,18 +878,29 @@ public class ImageCache {
 
         synchronized (mDiskCacheLock) {
             mDiskCacheStarting = true;
-            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+            if (mDiskCache != null && !mDiskCache.isClosed()) {
                 try {
-                    mDiskLruCache.delete();
+                    mDiskCache.delete();
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "Disk cache cleared");
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "clearCache - " + e);
                 }
-                mDiskLruCache = null;
-                initDiskCache();
+                mDiskCache = null;
+            }
+            if (mThumbnailCache != null && !mThumbnailCache.isClosed()) {
+                try {
+                    mThumbnailCache.delete();
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Thumbnail cache cleared");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "clearCache - " + e);
+                }
+                mThumbnailCache = null;
             }
+            initDiskCache();
         }
     }
 
@@ -468,6 +909,11 @@ public class ImageCache {
             mMemoryCache.evictAll();
             Log.d(TAG, "Memory cache cleared");
         }
+        // Release the memory of the evicted bitmaps too
+        if (mBitmapPool != null) {
+            Log.d(TAG, "Clearing " + mBitmapPool);
+            mBitmapPool.clear();
+        }
     }
 
     /**
@@ -476,9 +922,9 @@ public class ImageCache {
      */
     public void flush() {
         synchronized (mDiskCacheLock) {
-            if (mDiskLruCache != null) {
+            if (mDiskCache != null) {
                 try {
-                    mDiskLruCache.flush();
+                    mDiskCache.flush();
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "Disk cache flushed");
                     }
@@ -486,6 +932,13 @@ public class ImageCache {
                     Log.e(TAG, "flush - " + e);
                 }
             }
+            if (mThumbnailCache != null) {
+                try {
+                    mThumbnailCache.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "flush - " + e);
+                }
+            }
         }
     }
 
@@ -495,11 +948,11 @@ public class ImageCache {
      */
     public void close() {
         synchronized (mDiskCacheLock) {
-            if (mDiskLruCache != null) {
+            if (mDiskCache != null) {
                 try {
-                    if (!mDiskLruCache.isClosed()) {
-                        mDiskLruCache.close();
-                        mDiskLruCache = null;
+                    if (!mDiskCache.isClosed()) {
+                        mDiskCache.close();
+                        mDiskCache = null;
                         if (BuildConfig.DEBUG) {
                             Log.d(TAG, "Disk cache closed");
                         }
@@ -508,6 +961,16 @@ public class ImageCache {
                     Log.e(TAG, "close - " + e);
                 }
             }
+            if (mThumbnailCache != null) {
+                try {
+                    if (!mThumbnailCache.isClosed()) {
+                        mThumbnailCache.close();
+                    }
+                    mThumbnailCache = null;
+                } catch (IOException e) {
+                    Log.e(TAG, "close - " + e);
+                }
+            }
         }
     }
 
@@ -518,8 +981,16 @@ public class ImageCache {
 
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
 
+        public int bitmapPoolSize = Math.round(DEFAULT_MEM_CACHE_SIZE * DEFAULT_BITMAP_POOL_FRACTION);
+
         public float diskCacheSizePercent = DEFAULT_DISK_CACHE_SIZE_PERCENT;
 
+        /** Size of the thumbnail cache as a fraction of the disk cache, 0 to disable it. */
+        public float thumbnailCacheFraction = DEFAULT_THUMBNAIL_CACHE_FRACTION;
+
+        /** Opens the storage of the disk cache and the thumbnail cache. */
+        public DiskCache.Factory diskCacheFactory = JournalDiskCache.FACTORY;
+
         public final int maxDiskCacheSize = MAX_DISK_CACHE_SIZE;
 
         public File diskCacheDir;
@@ -549,6 +1020,8 @@ public class ImageCache {
          * percent to 0.2 would set the memory cache to one fifth of the device memory class. Throws
          * {@link IllegalArgumentException} if percent is < 0.05 or > .8.
          * <p>
+         * The pool of reusable bitmaps is sized in proportion to the memory cache.
+         * <p>
          * This value should be chosen carefully based on a number of factors Refer to the
          * corresponding Android Training class for more discussion: http://developer.android.com/training/displaying-bitmaps/
          *
@@ -561,6 +1034,7 @@ public class ImageCache {
                         + "between 0.05 and 0.8 (inclusive)");
             }
             memCacheSize = Math.round(percent * getMemoryClass(context) * 1024 * 1024);
+            bitmapPoolSize = Math.round(memCacheSize * DEFAULT_BITMAP_POOL_FRACTION);
         }
 
         private static int getMemoryClass(Context context) {
@@ -16,20 +16,13 @@
 
 package uk.org.ngo.squeezer.util;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
 import android.util.Log;
 
-import com.google.common.io.ByteStreams;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLDecoder;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -43,6 +36,9 @@ public class ImageFetcher extends ImageWorker {
 
     private volatile static ImageFetcher sImageFetcher;
 
+    /** Client for the downloads, reuses connections to the server. */
+    private final ArtworkHttpClient mHttpClient = new ArtworkHttpClient();
+
     private ImageFetcher(Context context) {
         super(context);
     }
@@ -64,6 +60,7 @@ public class ImageFetcher extends ImageWorker {
                     sImageFetcher.setLoadingImage(R.drawable.icon_pending_artwork);
                     ImageCache.ImageCacheParams imageCacheParams = new ImageCache.ImageCacheParams(context, "artwork");
                     imageCacheParams.setMemCacheSizePercent(context, 0.12f);
+                    imageCacheParams.diskCacheFactory = SegmentDiskCache.FACTORY;
                     sImageFetcher.addImageCache(imageCacheParams);
                 }
             }
@@ -72,14 +69,37 @@ public class ImageFetcher extends ImageWorker {
     }
 
     /**
-     * Call this in low memory situations. Clears the memory cache.
+     * Call this in low memory situations. Drops most of the artwork which is not on screen from
+     * the memory cache.
      */
     public static void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
+    /**
+     * Call this from {@link ComponentCallbacks2#onTrimMemory(int)}. Shrinks the memory cache
+     * according to the level.
+     */
+    public static void onTrimMemory(int level) {
         if (sImageFetcher == null) {
             return;
         }
 
-        sImageFetcher.clearMemoryCache();
+        sImageFetcher.trimMemory(level);
+    }
+
+    /**
+     * Ask the server for artwork scaled to a size bucket close to the desired size, so small
+     * views don't download the full size artwork.
+     *
+     * @see ArtworkSize#resize(String, int, int)
+     */
+    @NonNull
+    @Override
+    protected Object getSource(@NonNull Object data, int width, int height) {
+        String url = data.toString();
+        String resized = ArtworkSize.resize(url, width, height);
+        return resized.equals(url) ? data : resized;
     }
 
     /**
@@ -87,73 +107,20 @@ public class ImageFetcher extends ImageWorker {
      * thread.
      *
      * @param params The parameters for this request.
+     * @param cacheEditor If not null, the downloaded bytes are streamed to this disk cache entry.
      *
      * @return Undecoded bytes for the requested bitmap, null if downloading failed.
      */
     @Nullable
-    protected byte[] processBitmap(BitmapWorkerTaskParams params) {
-        String data = params.data.toString();
+    protected byte[] processBitmap(BitmapWorkerTaskParams params, @Nullable ImageCache.DiskCacheEditor cacheEditor) {
+        String data = params.source.toString();
         Log.d(TAG, "processBitmap: " + data);
 
-        HttpURLConnection urlConnection = null;
-        InputStream in = null;
-        byte[] bytes = null;
-
         try {
-            URL resourceUrl, base, next;
-            Map<String, Integer> visited;
-            String location;
-
-            visited = new HashMap<>();
-
-            while (true)
-            {
-                Integer times = visited.get(data);
-                if (times == null) times = 0;
-                visited.put(data, ++times);
-
-                if (times > 3)
-                    throw new IOException("Stuck in redirect loop");
-
-                resourceUrl = new URL(data);
-                urlConnection = (HttpURLConnection) resourceUrl.openConnection();
-
-                urlConnection.setConnectTimeout(15000);
-                urlConnection.setReadTimeout(15000);
-                urlConnection.setInstanceFollowRedirects(false);   // Make the logic below easier to detect redirections
-
-                switch (urlConnection.getResponseCode())
-                {
-                    case HttpURLConnection.HTTP_MOVED_PERM:
-                    case HttpURLConnection.HTTP_MOVED_TEMP:
-                        location = urlConnection.getHeaderField("Location");
-                        location = URLDecoder.decode(location, "UTF-8");
-                        base     = new URL(data);
-                        next     = new URL(base, location);  // Deal with relative URLs
-                        data      = next.toExternalForm();
-                        continue;
-                }
-
-                break;
-            }
-
-            in = urlConnection.getInputStream();
-            bytes = ByteStreams.toByteArray(in);
+            return mHttpClient.fetch(data, cacheEditor != null ? cacheEditor.getOutputStream() : null);
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadUrlToStream - " + data + e);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (final IOException e) {
-                Log.e(TAG, "Closing input stream failed");
-            }
+            return null;
         }
-
-        return bytes;
     }
 }
@@ -43,6 +43,18 @@ import com.google.common.base.Joiner;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nullable;
 
@@ -59,6 +71,9 @@ public abstract class ImageWorker {
 
     private static final int FADE_IN_TIME = 200;
 
+    /** Maximum number of artwork loads running at the same time. */
+    private static final int MAX_LOADING_THREADS = 3;
+
     private ImageCache mImageCache;
 
     private Bitmap mLoadingBitmap;
@@ -73,6 +88,35 @@ public abstract class ImageWorker {
 
     protected final Resources mResources;
 
+    /** Runs the bitmap worker tasks, images on screen first. */
+    private final ArtworkScheduler mScheduler = new ArtworkScheduler(MAX_LOADING_THREADS);
+
+    /**
+     * Tasks in progress, keyed by the memory cache key of the bitmap they load. Requests for
+     * a bitmap which is already being loaded join the task instead of starting a new one.
+     */
+    private final Map<String, BitmapWorkerTask> mTasksInFlight = new HashMap<>();
+
+    /** Loads of undecoded image bytes in progress, keyed by the disk cache key. */
+    private final ConcurrentMap<String, FutureTask<byte[]>> mBytesInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * The bitmap last set in to each image view, they must not be reused for other images while
+     * they may be displayed. Guarded by itself, together with {@link #mDisplayCounts}
+     * and {@link #mRetainedBitmaps}.
+     */
+    private final Map<ImageView, Bitmap> mDisplayedBitmaps = new WeakHashMap<>();
+
+    /**
+     * Number of image views in {@link #mDisplayedBitmaps} which display each bitmap, so a bitmap
+     * can be checked without scanning the views. Bitmaps are compared by identity. If a view is
+     * garbage collected its bitmap stays counted, which only means the bitmap isn't reused.
+     */
+    private final Map<Bitmap, Integer> mDisplayCounts = new WeakHashMap<>();
+
+    /** Bitmaps passed to callbacks and notifications, which may hold on to them indefinitely. */
+    private final Set<Bitmap> mRetainedBitmaps = Collections.newSetFromMap(new WeakHashMap<>());
+
     @IntDef({MESSAGE_CLEAR, MESSAGE_INIT_DISK_CACHE, MESSAGE_FLUSH, MESSAGE_CLOSE,
             MESSAGE_CLEAR_MEMORY_CACHE})
     @Retention(RetentionPolicy.SOURCE)
@@ -95,6 +139,9 @@ public abstract class ImageWorker {
     /** Colour of debug swatch for images loaded from disk cache. */
     private static final int mCacheDebugColorDisk = Color.BLUE;
 
+    /** Colour of debug swatch for images loaded from the thumbnail cache. */
+    private static final int mCacheDebugColorThumbnail = Color.CYAN;
+
     /** Colour of debug swatch for images loaded from network (no caching). */
     private static final int mCacheDebugColorNetwork = Color.RED;
 
@@ -108,7 +155,7 @@ public abstract class ImageWorker {
      * will be used if an {@link ImageCache} has been set using {@link
      * ImageWorker#setImageCache(ImageCache)}. If the image is found in the memory cache, it is set
      * immediately, otherwise an {@link AsyncTask} will be created to asynchronously load the
-     * bitmap.
+     * bitmap, ahead of artwork which is not on screen.
      *
      * @param data The URL of the image to download
      * @param imageView The ImageView to bind the downloaded image to
@@ -171,17 +218,15 @@ public abstract class ImageWorker {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
             imageView.setImageBitmap(bitmap);
+            setDisplayedBitmap(imageView, bitmap);
         } else if (cancelPotentialWork(data, imageView)) {
-            final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(imageView);
+            final BitmapWorkerTask task = startOrJoinWork(
+                    new BitmapWorkerTaskParams(width, height, data, memCacheKey),
+                    new ImageViewTarget(imageView), ArtworkScheduler.PRIORITY_VISIBLE);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
-
-            // NOTE: This uses a custom version of AsyncTask that has been pulled from the
-            // framework and slightly modified. Refer to the docs at the top of the class
-            // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+            setDisplayedBitmap(imageView, null);
         }
     }
 
@@ -220,12 +265,11 @@ public abstract class ImageWorker {
             if (BuildConfig.DEBUG) {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
+            retainBitmap(bitmap);
             callback.process(data, bitmap);
         } else {
-            final CallbackBitmapWorkerTask task = new CallbackBitmapWorkerTask(callback);
-
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+            startOrJoinWork(new BitmapWorkerTaskParams(width, height, data, memCacheKey),
+                    new CallbackTarget(callback), ArtworkScheduler.PRIORITY_NOTIFICATION);
         }
     }
 
@@ -257,19 +301,125 @@ public abstract class ImageWorker {
             if (BuildConfig.DEBUG) {
                 addDebugSwatch(new Canvas(bitmap), mCacheDebugColorMemory);
             }
+            retainBitmap(bitmap);
             remoteViews.setImageViewBitmap(viewId, bitmap);
             nm.notify(notificationId, notification);
         } else {
-            final RemoteViewBitmapWorkerTask task = new RemoteViewBitmapWorkerTask(
-                    remoteViews, viewId, nm, notificationId, notification);
-            final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mLoadingBitmap, task);
-            remoteViews.setImageViewBitmap(viewId, asyncDrawable.getBitmap());
+            remoteViews.setImageViewBitmap(viewId, mLoadingBitmap);
+            startOrJoinWork(new BitmapWorkerTaskParams(width, height, data, memCacheKey),
+                    new RemoteViewTarget(remoteViews, viewId, nm, notificationId, notification),
+                    ArtworkScheduler.PRIORITY_NOTIFICATION);
+        }
+    }
+
+    /**
+     * Load the requested image in to the memory cache, at the lowest priority, so it's shown
+     * immediately when it's requested later.
+     *
+     * @param data The URL of the image to download
+     * @param width Resize the image to this width (and save it in the memory cache as such)
+     * @param height Resize the image to this height (and save it in the memory cache as such)
+     */
+    public void prefetchImage(final Object data, int width, int height) {
+        String memCacheKey = hashKeyForMemory(String.valueOf(data), width, height);
+        if (mImageCache != null && mImageCache.getBitmapFromMemCache(memCacheKey) != null) {
+            return;
+        }
+
+        startOrJoinWork(new BitmapWorkerTaskParams(width, height, data, memCacheKey),
+                null, ArtworkScheduler.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Deliver the requested bitmap to the supplied target.
+     * <p>
+     * If a task for the same bitmap is already in progress the target is added to that task, so
+     * concurrent requests for the same image share a single load and decode. Otherwise a new task
+     * is started.
+     * <p>
+     * The task is run by {@link #mScheduler} in the lane for the supplied priority. If the task
+     * was already waiting at a lower priority it's moved up.
+     *
+     * @param target Receives the bitmap, or null to only load it in to the cache
+     * @param priority One of the {@code ArtworkScheduler.PRIORITY_} constants
+     *
+     * @return The task which will deliver the bitmap to the target
+     */
+    private BitmapWorkerTask startOrJoinWork(BitmapWorkerTaskParams params,
+                                             @Nullable BitmapTarget target, int priority) {
+        BitmapWorkerTask task;
+        synchronized (mTasksInFlight) {
+            task = mTasksInFlight.get(params.memCacheKey);
+            if (task != null && !task.isCancelled()) {
+                if (target != null) {
+                    task.addTarget(target);
+                }
+                task.job.raisePriority(priority);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "joined work in progress for " + params.data);
+                }
+                return task;
+            }
+
+            task = new BitmapWorkerTask(params, mScheduler.newJob(priority));
+            if (target != null) {
+                task.addTarget(target);
+            }
+            mTasksInFlight.put(params.memCacheKey, task);
+        }
+
+        // NOTE: This uses a custom version of AsyncTask that has been pulled from the
+        // framework and slightly modified. Refer to the docs at the top of the class
+        // for more info on what was changed.
+        task.executeOnExecutor(task.job, params);
+        return task;
+    }
+
+    /**
+     * Record the bitmap set in to the image view, or null if it no longer displays a bitmap from
+     * this worker.
+     */
+    private void setDisplayedBitmap(ImageView imageView, @Nullable Bitmap bitmap) {
+        synchronized (mDisplayedBitmaps) {
+            Bitmap previous = (bitmap != null)
+                    ? mDisplayedBitmaps.put(imageView, bitmap)
+                    : mDisplayedBitmaps.remove(imageView);
+            if (previous == bitmap) {
+                return;
+            }
+            if (previous != null) {
+                Integer count = mDisplayCounts.get(previous);
+                if (count != null && count > 1) {
+                    mDisplayCounts.put(previous, count - 1);
+                } else {
+                    mDisplayCounts.remove(previous);
+                }
+            }
+            if (bitmap != null) {
+                Integer count = mDisplayCounts.get(bitmap);
+                mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * Record that the bitmap is passed on to code which may keep it, so it's never reused.
+     */
+    private void retainBitmap(@Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            synchronized (mDisplayedBitmaps) {
+                mRetainedBitmaps.add(bitmap);
+            }
+        }
+    }
 
-            // NOTE: This uses a custom version of AsyncTask that has been pulled from the
-            // framework and slightly modified. Refer to the docs at the top of the class
-            // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR,
-                    new BitmapWorkerTaskParams(width, height, data, memCacheKey));
+    /**
+     * @return True if the bitmap may still be displayed or used elsewhere, so it must not be
+     *     reused to decode another image.
+     */
+    private boolean isBitmapInUse(Bitmap bitmap) {
+        synchronized (mDisplayedBitmaps) {
+            return mRetainedBitmaps.contains(bitmap) || mDisplayCounts.containsKey(bitmap);
         }
     }
 
@@ -354,6 +504,9 @@ public abstract class ImageWorker {
      */
     public void setImageCache(ImageCache imageCache) {
         mImageCache = imageCache;
+        if (imageCache != null) {
+            imageCache.setBitmapInUseCheck(this::isBitmapInUse);
+        }
     }
 
     /**
@@ -373,6 +526,22 @@ public abstract class ImageWorker {
         mExitTasksEarly = exitTasksEarly;
     }
 
+    /**
+     * Subclasses may override this to load a variant of the image which is closer to the desired
+     * size, f.e. by asking the server to scale it. Each variant is stored separately in the disk
+     * cache.
+     *
+     * @param data The identifier for the image, as passed to {@code loadImage}
+     * @param width Desired width of the bitmap
+     * @param height Desired height of the bitmap
+     *
+     * @return The identifier for the image to load, by default the supplied data
+     */
+    @NonNull
+    protected Object getSource(@NonNull Object data, int width, int height) {
+        return data;
+    }
+
     /**
      * Subclasses should override this to define any processing or work that must happen to produce
      * the final bitmap. This will be executed in a background thread and be long running. For
@@ -380,10 +549,12 @@ public abstract class ImageWorker {
      *
      * @param params The parameters to identify which image to process, as provided by {@link
      * ImageWorker#loadImage(Object, ImageView)}
+     * @param cacheEditor If not null, the bytes must also be written to the output stream of this
+     * disk cache entry. The entry is committed by the caller.
      *
      * @return The processed bitmap, or null if processing failed.
      */
-    protected abstract byte[] processBitmap(BitmapWorkerTaskParams params);
+    protected abstract byte[] processBitmap(BitmapWorkerTaskParams params, @Nullable ImageCache.DiskCacheEditor cacheEditor);
 
     /**
      * Cancels any pending work attached to the provided ImageView.
@@ -393,7 +564,7 @@ public abstract class ImageWorker {
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.detach(imageView);
             if (BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.data;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
@@ -405,6 +576,8 @@ public abstract class ImageWorker {
      * Returns true if the current work has been cancelled or if there was no work in progress on
      * this image view. Returns false if the work in progress deals with the same data. The work is
      * not stopped in that case.
+     * <p>
+     * Work which is shared with other targets is only cancelled for this image view.
      */
     public static boolean cancelPotentialWork(Object data, ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
@@ -412,7 +585,7 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.data;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.detach(imageView);
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
                 }
@@ -456,12 +629,20 @@ public abstract class ImageWorker {
         @NonNull
         public final String memCacheKey;
 
+        /**
+         * Identifier for the bitmap at the desired size, which is loaded and saved in the disk
+         * cache.
+         */
+        @NonNull
+        public final Object source;
+
         public BitmapWorkerTaskParams(int width, int height,
                                       @NonNull Object data, @NonNull String memCacheKey) {
             this.width = width;
             this.height = height;
             this.data = data;
             this.memCacheKey = memCacheKey;
+            this.source = getSource(data, width, height);
         }
     }
 
@@ -482,12 +663,70 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Receives the bitmap loaded by a {@link BitmapWorkerTask}.
+     */
+    private interface BitmapTarget {
+        /**
+         * @return True if the target still wants the bitmap from the supplied task.
+         */
+        boolean isAttached(BitmapWorkerTask task);
+
+        /**
+         * Called on the main thread when the task completes.
+         *
+         * @param bitmap The bitmap, null if it failed to load
+         */
+        void onBitmap(BitmapWorkerTask task, @Nullable Bitmap bitmap);
+    }
+
     /**
      * The actual AsyncTask that will asynchronously process the image.
+     * <p>
+     * The loaded bitmap is delivered to every {@link BitmapTarget} added to the task, the task is
+     * cancelled if all its targets are detached.
      */
     private class BitmapWorkerTask extends AsyncTask<BitmapWorkerTaskParams, Void, Bitmap> {
         protected static final String TAG = "BitmapWorkerTask";
-        protected Object data;
+        protected final Object data;
+        private final String memCacheKey;
+        private final List<BitmapTarget> mTargets = new CopyOnWriteArrayList<>();
+        private boolean mLoadedFromNetwork;
+
+        /** The scheduler job which runs this task. */
+        final ArtworkScheduler.Job job;
+
+        BitmapWorkerTask(BitmapWorkerTaskParams params, ArtworkScheduler.Job job) {
+            data = params.data;
+            memCacheKey = params.memCacheKey;
+            this.job = job;
+        }
+
+        void addTarget(BitmapTarget target) {
+            mTargets.add(target);
+        }
+
+        /**
+         * Remove the supplied image view from the targets of this task, and cancel the task if
+         * no targets want the bitmap anymore.
+         */
+        void detach(ImageView imageView) {
+            List<BitmapTarget> detached = new ArrayList<>();
+            for (BitmapTarget target : mTargets) {
+                if (target instanceof ImageViewTarget && ((ImageViewTarget) target).imageViewReference.get() == imageView) {
+                    detached.add(target);
+                }
+            }
+            mTargets.removeAll(detached);
+
+            synchronized (mTasksInFlight) {
+                if (mTargets.isEmpty()) {
+                    cancel(true);
+                    job.remove();
+                    removeFromTasksInFlight();
+                }
+            }
+        }
 
         /**
          * Background processing.
@@ -498,11 +737,8 @@ public abstract class ImageWorker {
                 Log.d(TAG, "doInBackground - starting work");
             }
 
-            boolean loadedFromNetwork = false;
-
-            data = params[0].data;
-            final String dataString = String.valueOf(data);
-            byte[] bytes = null;
+            final String dataString = String.valueOf(params[0].source);
+            byte[] bytes;
             Bitmap scaledBitmap = null;
 
             // Wait here if work is paused and the task is not cancelled
@@ -515,26 +751,28 @@ public abstract class ImageWorker {
                 }
             }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and there's nothing to indicate this task should cancel then try and fetch
-            // the bitmap bytes from the cache.
-            if (mImageCache != null && !isCancelled() && !shouldCancel()) {
-                bytes = mImageCache.getBytesFromDiskCache(dataString);
+            // The bitmap may have been loaded by another task while this task was waiting.
+            if (mImageCache != null) {
+                scaledBitmap = mImageCache.getBitmapFromMemCache(memCacheKey);
+                if (scaledBitmap != null) {
+                    return scaledBitmap;
+                }
             }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and there's nothing to indicate that this task should cancel, then
-            // call the main process method (as implemented by a subclass)
-            if ((bytes == null || bytes.length == 0) && !isCancelled() && !shouldCancel()) {
-                bytes = processBitmap(params[0]);
-                loadedFromNetwork = true;
-
-                // If the bitmap bytes were loaded then add them to the disk cache.
-                if (bytes != null && bytes.length != 0 && mImageCache != null) {
-                    mImageCache.addBytesToDiskCache(dataString, bytes);
+            // The bitmap may have been scaled to this size before, then it needn't be decoded.
+            if (mImageCache != null && !isCancelled() && !shouldCancel()) {
+                scaledBitmap = mImageCache.getBitmapFromThumbnailCache(memCacheKey);
+                if (scaledBitmap != null) {
+                    mImageCache.addBitmapToMemoryCache(memCacheKey, scaledBitmap);
+                    if (BuildConfig.DEBUG) {
+                        addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorThumbnail);
+                    }
+                    return scaledBitmap;
                 }
             }
 
+            bytes = getBytes(params[0], dataString);
+
             // Create a bitmap from the bytes, scaled to the appropriate size.
             if (bytes != null && bytes.length != 0 && params[0].width > 0 && params[0].height > 0) {
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -546,12 +784,19 @@ public abstract class ImageWorker {
 
                 options.inJustDecodeBounds = false;
 
-                if (! BuildConfig.DEBUG) {
-                    // Not a debug build, just need the scaled bitmap.
+                // Decode in to a mutable bitmap, so it can be reused once it's evicted from the
+                // memory cache (and, in debug builds, the debug swatch can be added later).
+                options.inMutable = true;
+                if (mImageCache != null) {
+                    mImageCache.addInBitmapOptions(options);
+                }
+
+                try {
                     scaledBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-                } else {
-                    // Debug build, need a mutable bitmap to add the debug swatch later.
-                    options.inMutable = true;
+                } catch (IllegalArgumentException e) {
+                    // The pooled bitmap could not be reused for this image, decode in to a new one.
+                    Log.w(TAG, "Could not reuse bitmap for " + dataString + ": " + e);
+                    options.inBitmap = null;
                     scaledBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
                 }
             }
@@ -561,7 +806,8 @@ public abstract class ImageWorker {
             // cancelled here, if it was, and the thread is still running, we may as well add the
             // processed bitmap to our cache as it might be used again in the future.
             if (scaledBitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToMemoryCache(params[0].memCacheKey, scaledBitmap);
+                mImageCache.addBitmapToMemoryCache(memCacheKey, scaledBitmap);
+                mImageCache.addBitmapToThumbnailCache(memCacheKey, scaledBitmap);
             }
 
             if (BuildConfig.DEBUG) {
@@ -569,7 +815,7 @@ public abstract class ImageWorker {
             }
 
             if (BuildConfig.DEBUG && scaledBitmap != null) {
-                if (loadedFromNetwork) {
+                if (mLoadedFromNetwork) {
                     addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorNetwork);
                 } else {
                     addDebugSwatch(new Canvas(scaledBitmap), mCacheDebugColorDisk);
@@ -579,6 +825,73 @@ public abstract class ImageWorker {
             return scaledBitmap;
         }
 
+        /**
+         * Get the undecoded bytes of the image.
+         * <p>
+         * Concurrent loads of the same image (f.e. at sizes in the same bucket) are coalesced by the
+         * disk cache key, the first task loads the bytes, and the others wait for its result.
+         */
+        @Nullable
+        private byte[] getBytes(BitmapWorkerTaskParams params, String dataString) {
+            String key = ImageCache.hashKeyForDisk(dataString);
+            FutureTask<byte[]> future = new FutureTask<>(() -> loadBytes(params, dataString));
+            FutureTask<byte[]> leader = mBytesInFlight.putIfAbsent(key, future);
+            if (leader == null) {
+                try {
+                    future.run();
+                } finally {
+                    mBytesInFlight.remove(key, future);
+                }
+                leader = future;
+            }
+
+            byte[] bytes = null;
+            try {
+                bytes = leader.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Loading " + dataString + " failed: " + e);
+            }
+
+            // The leader may have given up because it was cancelled, then try ourselves.
+            if (leader != future && (bytes == null || bytes.length == 0) && !isCancelled() && !shouldCancel()) {
+                bytes = loadBytes(params, dataString);
+            }
+            return bytes;
+        }
+
+        @Nullable
+        private byte[] loadBytes(BitmapWorkerTaskParams params, String dataString) {
+            byte[] bytes = null;
+
+            // If the image cache is available and this task has not been cancelled by another
+            // thread and there's nothing to indicate this task should cancel then try and fetch
+            // the bitmap bytes from the cache.
+            if (mImageCache != null && !isCancelled() && !shouldCancel()) {
+                bytes = mImageCache.getBytesFromDiskCache(dataString);
+            }
+
+            // If the bitmap was not found in the cache and this task has not been cancelled by
+            // another thread and there's nothing to indicate that this task should cancel, then
+            // call the main process method (as implemented by a subclass)
+            if ((bytes == null || bytes.length == 0) && !isCancelled() && !shouldCancel()) {
+                // Stream the bytes in to the disk cache while they are loaded
+                ImageCache.DiskCacheEditor editor = (mImageCache != null ? mImageCache.editDiskCache(dataString) : null);
+                bytes = processBitmap(params, editor);
+                mLoadedFromNetwork = true;
+
+                // If the bitmap bytes were loaded then keep them in the disk cache.
+                if (editor != null) {
+                    if (bytes != null && bytes.length != 0) {
+                        editor.commit();
+                    } else {
+                        editor.abort();
+                    }
+                }
+            }
+
+            return bytes;
+        }
+
         /**
          * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
          * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
@@ -628,124 +941,127 @@ public abstract class ImageWorker {
             return inSampleSize;
         }
 
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            removeFromTasksInFlight();
+
+            for (BitmapTarget target : mTargets) {
+                target.onBitmap(this, bitmap);
+            }
+        }
+
         @Override
         protected void onCancelled(Bitmap bitmap) {
             super.onCancelled(bitmap);
+            removeFromTasksInFlight();
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
+        private void removeFromTasksInFlight() {
+            synchronized (mTasksInFlight) {
+                if (mTasksInFlight.get(memCacheKey) == this) {
+                    mTasksInFlight.remove(memCacheKey);
+                }
+            }
+        }
+
         /**
          * Determines whether bitmap processing should abort early.
          *
-         * @return The value of {@code mExitTasksEarly}.
+         * @return True if {@code mExitTasksEarly} is set and no target wants the bitmap.
          */
         protected boolean shouldCancel() {
-            return mExitTasksEarly;
+            if (!mExitTasksEarly) {
+                return false;
+            }
+            for (BitmapTarget target : mTargets) {
+                if (target.isAttached(this)) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
     /**
-     * A specialisation of {@link BitmapWorkerTask} that sets the loaded bitmap in to an
-     * {@link ImageView}.
+     * A {@link BitmapTarget} that sets the loaded bitmap in to an {@link ImageView}.
      */
-    private class ImageViewBitmapWorkerTask extends BitmapWorkerTask {
+    private class ImageViewTarget implements BitmapTarget {
         protected final WeakReference<ImageView> imageViewReference;
 
-        public ImageViewBitmapWorkerTask(ImageView imageView) {
-            super();
-            imageViewReference = new WeakReference<ImageView>(imageView);
+        ImageViewTarget(ImageView imageView) {
+            imageViewReference = new WeakReference<>(imageView);
         }
 
         /**
-         * Once the image is processed, associates it to the imageView
+         * @return True as long as the ImageView's task still points to the supplied task.
          */
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
-                bitmap = null;
-            }
+        public boolean isAttached(BitmapWorkerTask task) {
+            final ImageView imageView = imageViewReference.get();
+            return imageView != null && getBitmapWorkerTask(imageView) == task;
+        }
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
+        /**
+         * Once the image is processed, associates it to the imageView
+         */
+        @Override
+        public void onBitmap(BitmapWorkerTask task, @Nullable Bitmap bitmap) {
+            // if the "exit early" flag is set then we're done
+            if (bitmap != null && !mExitTasksEarly && isAttached(task)) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "onPostExecute - setting bitmap");
                 }
+                ImageView imageView = imageViewReference.get();
                 setImageBitmap(imageView, bitmap);
+                setDisplayedBitmap(imageView, bitmap);
             }
         }
-
-        protected boolean shouldCancel() {
-            return super.shouldCancel() && getAttachedImageView() == null;
-        }
-
-        /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
-         */
-        protected ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-            if (this == bitmapWorkerTask) {
-                return imageView;
-            }
-
-            return null;
-        }
-
     }
 
     /**
-     * A specialisation of {@link BitmapWorkerTask} that passed the loaded bitmap to a callback
-     * for further processing.
+     * A {@link BitmapTarget} that passes the loaded bitmap to a callback for further processing.
+     * <p>
+     * It's always attached, the processing is not aborted before the callback is called.
      */
-    private class CallbackBitmapWorkerTask extends BitmapWorkerTask {
-        protected static final String TAG = "CallbackBitmapWorkerTas";
+    private class CallbackTarget implements BitmapTarget {
+        private final ImageWorkerCallback mCallback;
 
-        private ImageWorkerCallback mCallback;
-
-        public CallbackBitmapWorkerTask(ImageWorkerCallback callback) {
+        CallbackTarget(ImageWorkerCallback callback) {
             mCallback = callback;
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            Log.d(TAG, "callback: onPostExecute()");
-            if (isCancelled() || shouldCancel()) {
-                bitmap = null;
-            }
-
-            Log.d(TAG, "onPostExecute - setting bitmap");
-            mCallback.process(data, bitmap);
+        public boolean isAttached(BitmapWorkerTask task) {
+            return true;
         }
 
-        /**
-         * @return Always returns false, the processing is not aborted before the callback is called.
-         */
         @Override
-        protected boolean shouldCancel() {
-            return false;
+        public void onBitmap(BitmapWorkerTask task, @Nullable Bitmap bitmap) {
+            Log.d(TAG, "callback: onPostExecute()");
+            retainBitmap(bitmap);
+            mCallback.process(task.data, bitmap);
         }
     }
 
     /**
-     * A specialisation of {@link BitmapWorkerTask} that sets the loaded bitmap in to an
-     * {@link ImageView} in a {@link RemoteViews} and posts a {@link Notification}.
+     * A {@link BitmapTarget} that sets the loaded bitmap in to an {@link ImageView} in a
+     * {@link RemoteViews} and posts a {@link Notification}.
+     * <p>
+     * It's always attached, to ensure the notification is posted.
      */
-    private class RemoteViewBitmapWorkerTask extends BitmapWorkerTask {
-        private RemoteViews mRemoteViews;
-        private int mViewId;
-        NotificationManagerCompat mNotificationManagerCompat;
-        int mNotificationId;
-        Notification mNotification;
-
-        public RemoteViewBitmapWorkerTask(RemoteViews remoteViews, int viewId,
-                                          NotificationManagerCompat notificationManagerCompat,
-                                          int notificationId, Notification notification) {
-            super();
+    private class RemoteViewTarget implements BitmapTarget {
+        private final RemoteViews mRemoteViews;
+        private final int mViewId;
+        private final NotificationManagerCompat mNotificationManagerCompat;
+        private final int mNotificationId;
+        private final Notification mNotification;
+
+        RemoteViewTarget(RemoteViews remoteViews, int viewId,
+                         NotificationManagerCompat notificationManagerCompat,
+                         int notificationId, Notification notification) {
             mRemoteViews = remoteViews;
             mViewId = viewId;
             mNotificationManagerCompat = notificationManagerCompat;
@@ -754,26 +1070,21 @@ public abstract class ImageWorker {
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
+        public boolean isAttached(BitmapWorkerTask task) {
+            return true;
+        }
+
+        @Override
+        public void onBitmap(BitmapWorkerTask task, @Nullable Bitmap bitmap) {
             if (bitmap != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
-                }
                 Log.d(TAG, "Setting notification bitmap");
+                retainBitmap(bitmap);
                 mRemoteViews.setImageViewBitmap(mViewId, bitmap);
             }
 
             // Always post the notification.
             mNotificationManagerCompat.notify(mNotificationId, mNotification);
         }
-
-        /**
-         * @return Always returns false, the processing is not to ensure the notification is posted.
-         */
-        @Override
-        protected boolean shouldCancel() {
-            return false;
-        }
     }
 
     /**
@@ -892,6 +1203,17 @@ public abstract class ImageWorker {
 
     public void clearMemoryCache() { new CacheAsyncTask().execute(MESSAGE_CLEAR_MEMORY_CACHE); }
 
+    /**
+     * Release memory from the memory cache, see {@link ImageCache#trimMemory(int)}.
+     *
+     * @param level The level from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        if (mImageCache != null) {
+            mImageCache.trimMemory(level);
+        }
+    }
+
     public void flushCache() {
         new CacheAsyncTask().execute(MESSAGE_FLUSH);
     }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link DiskCache} backed by a {@link DiskLruCache}, which stores each entry in its own file,
+ * and keeps a journal of the operations.
+ */
+public class JournalDiskCache implements DiskCache {
+    public static final Factory FACTORY = (directory, maxSize) ->
+            new JournalDiskCache(DiskLruCache.open(directory, 1, 1, maxSize));
+
+    private static final int VALUE_INDEX = 0;
+
+    private final DiskLruCache mDiskLruCache;
+
+    private JournalDiskCache(DiskLruCache diskLruCache) {
+        mDiskLruCache = diskLruCache;
+    }
+
+    @Nullable
+    @Override
+    public InputStream get(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+        return snapshot != null ? snapshot.getInputStream(VALUE_INDEX) : null;
+    }
+
+    @Nullable
+    @Override
+    public Editor edit(String key) throws IOException {
+        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor == null) {
+            return null;
+        }
+
+        return new Editor() {
+            @Override
+            public OutputStream newOutputStream() throws IOException {
+                return editor.newOutputStream(VALUE_INDEX);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                editor.commit();
+            }
+
+            @Override
+            public void abort() throws IOException {
+                editor.abort();
+            }
+        };
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        return mDiskLruCache.remove(key);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mDiskLruCache.flush();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mDiskLruCache.isClosed();
+    }
+
+    @Override
+    public void delete() throws IOException {
+        mDiskLruCache.delete();
+    }
+
+    @Override
+    public long size() {
+        return mDiskLruCache.size();
+    }
+
+    @Override
+    public long maxSize() {
+        return mDiskLruCache.maxSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDiskLruCache.close();
+    }
+
+    @Override
+    public String toString() {
+        return "JournalDiskCache{" + mDiskLruCache.getDirectory() + '}';
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads JSON text in to the same kind of values as the Jetty JSON parser used by CometD:
+ * objects become maps, arrays become <code>Object[]</code>, integers {@link Long}, other numbers
+ * {@link Double}, and true and false {@link Boolean}.
+ * <p>
+ * Objects are read in to {@link Record}s, so a page of items doesn't allocate a hash table and a
+ * boxed number for every field of every item. Field names are taken from a shared pool, without
+ * allocating a string for names which have been seen before.
+ * <p>
+ * The text is pulled from a {@link Reader} through a small buffer, so a large response is never
+ * held as a whole string. The items of a list in a message, e.g. the <code>item_loop</code> of a
+ * browse response, can be handed to an {@link ItemSink} one at a time as they are read, instead of
+ * being collected in the message.
+ * <p>
+ * An instance is not thread safe, use one per thread or per call.
+ */
+public class JsonRecordReader {
+    /** Maximum number of distinct field names in the pool. Names beyond that are not pooled. */
+    private static final int KEY_POOL_SIZE = 2048;
+
+    /** Open addressing hash table of field names, shared by all readers. */
+    private static final String[] sKeyPool = new String[KEY_POOL_SIZE * 2];
+    private static int sKeyPoolCount;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Suffix of the names of the lists of items in the data of a message. */
+    private static final String LOOP_SUFFIX = "_loop";
+
+    /** Objects which are not a message or its data. */
+    private static final int OTHER = 0;
+    /** Top level objects, and the objects of a top level array. */
+    private static final int MESSAGE = 1;
+    /** The data of a message. */
+    private static final int DATA = 2;
+
+    /**
+     * Receives the items of the lists in the data of messages, as they are read.
+     */
+    public interface ItemSink {
+        /**
+         * @param message The message which is read, with the fields read so far
+         * @param data The data of the message, with the fields read so far
+         * @param loopName The name of the list, e.g. <code>item_loop</code>
+         * @param item The item
+         * @return True if the item is consumed, it is then not added to the list in the data
+         */
+        boolean onItem(Record message, Record data, String loopName, Record item);
+    }
+
+    private final Reader mReader;
+    @Nullable
+    private final ItemSink mItemSink;
+
+    private char[] mBuffer;
+    private int mPos;
+    private int mLimit;
+    /** Number of characters before the start of the buffer, for error positions. */
+    private int mOffset;
+
+    private final StringBuilder mBuilder = new StringBuilder();
+    private final List<List<Object>> mArrayBuffers = new ArrayList<>();
+    private int mDepth;
+
+    private Record mMessage;
+
+    private JsonRecordReader(Reader reader, int bufferSize, @Nullable ItemSink itemSink) {
+        mReader = reader;
+        mBuffer = new char[bufferSize];
+        mItemSink = itemSink;
+    }
+
+    /**
+     * @return The value of the supplied JSON text
+     * @throws ParseException If the text is not valid JSON
+     */
+    public static Object parse(String json) throws ParseException {
+        return parse(json, null);
+    }
+
+    /**
+     * @return The value of the supplied JSON text
+     * @throws ParseException If the text is not valid JSON
+     */
+    public static Object parse(String json, @Nullable ItemSink itemSink) throws ParseException {
+        try {
+            return parse(new StringReader(json), Math.max(16, Math.min(BUFFER_SIZE, json.length())), itemSink);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't fail reading a string", e);
+        }
+    }
+
+    /**
+     * Read a JSON value until the end of the supplied reader.
+     *
+     * @return The value of the JSON text
+     * @throws ParseException If the text is not valid JSON
+     * @throws IOException If reading fails
+     */
+    public static Object parse(Reader reader, @Nullable ItemSink itemSink) throws IOException, ParseException {
+        return parse(reader, BUFFER_SIZE, itemSink);
+    }
+
+    private static Object parse(Reader reader, int bufferSize, @Nullable ItemSink itemSink) throws IOException, ParseException {
+        JsonRecordReader jsonReader = new JsonRecordReader(reader, bufferSize, itemSink);
+        Object value = jsonReader.readValue(MESSAGE);
+        jsonReader.skipWhitespace();
+        if (jsonReader.fill(1)) {
+            throw jsonReader.error("Unexpected data after value");
+        }
+        return value;
+    }
+
+    private Object readValue(int role) throws IOException, ParseException {
+        char c = peekAfterWhitespace();
+        switch (c) {
+            case '{':
+                return readObject(role);
+            case '[':
+                return readArray(role == MESSAGE ? MESSAGE : OTHER);
+            case '"':
+                mPos++;
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber(null, null);
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Record readObject(int role) throws IOException, ParseException {
+        mPos++;
+        Record record = new Record();
+        if (role == MESSAGE) {
+            mMessage = record;
+        }
+        if (peekAfterWhitespace() == '}') {
+            mPos++;
+            return record;
+        }
+        while (true) {
+            if (peekAfterWhitespace() != '"') {
+                throw error("Expected field name");
+            }
+            mPos++;
+            String key = readKey();
+            if (peekAfterWhitespace() != ':') {
+                throw error("Expected ':'");
+            }
+            mPos++;
+            char c = peekAfterWhitespace();
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                readNumber(record, key);
+            } else if (c == '[' && role == DATA && mItemSink != null && key.endsWith(LOOP_SUFFIX)) {
+                record.put(key, readLoop(record, key));
+            } else {
+                record.put(key, readValue(role == MESSAGE && "data".equals(key) ? DATA : OTHER));
+            }
+            c = peekAfterWhitespace();
+            mPos++;
+            if (c == '}') {
+                return record;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private Object[] readArray(int elementRole) throws IOException, ParseException {
+        mPos++;
+        // Reuse a buffer for each nesting level, and allocate just the resulting array
+        if (mArrayBuffers.size() == mDepth) {
+            mArrayBuffers.add(new ArrayList<>());
+        }
+        List<Object> buffer = mArrayBuffers.get(mDepth++);
+        try {
+            if (peekAfterWhitespace() == ']') {
+                mPos++;
+                return new Object[0];
+            }
+            while (true) {
+                buffer.add(readValue(elementRole));
+                char c = peekAfterWhitespace();
+                mPos++;
+                if (c == ']') {
+                    return buffer.toArray();
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        } finally {
+            buffer.clear();
+            mDepth--;
+        }
+    }
+
+    /**
+     * Read a list of items in the data of a message. Items are offered to the item sink as soon
+     * as they are read, and only those it doesn't consume are kept.
+     */
+    private Object[] readLoop(Record data, String loopName) throws IOException, ParseException {
+        mPos++;
+        if (mArrayBuffers.size() == mDepth) {
+            mArrayBuffers.add(new ArrayList<>());
+        }
+        List<Object> buffer = mArrayBuffers.get(mDepth++);
+        Record message = mMessage;
+        try {
+            if (peekAfterWhitespace() == ']') {
+                mPos++;
+                return new Object[0];
+            }
+            while (true) {
+                Object item = readValue(OTHER);
+                if (!(item instanceof Record) || !mItemSink.onItem(message, data, loopName, (Record) item)) {
+                    buffer.add(item);
+                }
+                char c = peekAfterWhitespace();
+                mPos++;
+                if (c == ']') {
+                    return buffer.toArray();
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        } finally {
+            buffer.clear();
+            mDepth--;
+        }
+    }
+
+    /**
+     * Read a number. If a record is supplied an integer is stored in it unboxed, and null is
+     * returned, otherwise the number is returned.
+     */
+    private Object readNumber(Record record, String key) throws IOException, ParseException {
+        boolean negative = false;
+        if (mBuffer[mPos] == '-') {
+            negative = true;
+            mPos++;
+        }
+        // Up to 18 digits always fit in a long, longer numbers are collected as text
+        long value = 0;
+        int digits = 0;
+        char c;
+        while ((mPos < mLimit || fill(1)) && (c = mBuffer[mPos]) >= '0' && c <= '9') {
+            if (digits < 18) {
+                value = value * 10 + (c - '0');
+            } else {
+                if (digits == 18) {
+                    startNumberText(negative, value);
+                }
+                mBuilder.append(c);
+            }
+            digits++;
+            mPos++;
+        }
+        if (digits == 0) {
+            throw error("Invalid number");
+        }
+        if (digits <= 18) {
+            if (!((mPos < mLimit || fill(1)) && isNumberPart(mBuffer[mPos]))) {
+                value = (negative ? -value : value);
+                if (record != null) {
+                    record.putLong(key, value);
+                    return null;
+                }
+                return value;
+            }
+            startNumberText(negative, value);
+        }
+
+        // Not an integer, or too large for a long
+        while ((mPos < mLimit || fill(1)) && isNumberPart(c = mBuffer[mPos])) {
+            mBuilder.append(c);
+            mPos++;
+        }
+        Object number;
+        try {
+            number = Double.parseDouble(mBuilder.toString());
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+        if (record != null) {
+            record.put(key, number);
+        }
+        return number;
+    }
+
+    private void startNumberText(boolean negative, long value) {
+        mBuilder.setLength(0);
+        if (negative) {
+            mBuilder.append('-');
+        }
+        mBuilder.append(value);
+    }
+
+    private static boolean isNumberPart(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-';
+    }
+
+    /**
+     * Read a field name, after the opening quote. The name is taken from the pool if it has no
+     * escapes.
+     */
+    private String readKey() throws IOException, ParseException {
+        while (true) {
+            int start = mPos;
+            int hash = 0;
+            for (int p = start; p < mLimit; p++) {
+                char c = mBuffer[p];
+                if (c == '"') {
+                    mPos = p + 1;
+                    return pooledKey(mBuffer, start, p, hash);
+                }
+                if (c == '\\') {
+                    return pooledKey(readString());
+                }
+                hash = 31 * hash + c;
+            }
+            // The name continues after the buffer. Move it to the start of the buffer, and grow
+            // the buffer if it's full.
+            if (start == 0 && mLimit == mBuffer.length) {
+                return pooledKey(readString());
+            }
+            if (!fill(mLimit - start + 1)) {
+                throw error("Unterminated string");
+            }
+        }
+    }
+
+    private static String pooledKey(String key) {
+        return pooledKey(key.toCharArray(), 0, key.length(), key.hashCode());
+    }
+
+    private static String pooledKey(char[] chars, int start, int end, int hash) {
+        int length = end - start;
+        int mask = sKeyPool.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        // Unsynchronized reads are safe as strings are immutable, a miss is checked again below
+        String key;
+        while ((key = sKeyPool[slot]) != null) {
+            if (key.length() == length && matches(key, chars, start)) {
+                return key;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String newKey = new String(chars, start, length).intern();
+        synchronized (sKeyPool) {
+            if (sKeyPoolCount < KEY_POOL_SIZE) {
+                slot = (hash ^ (hash >>> 16)) & mask;
+                while ((key = sKeyPool[slot]) != null) {
+                    if (key.equals(newKey)) {
+                        return key;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                sKeyPool[slot] = newKey;
+                sKeyPoolCount++;
+            }
+        }
+        return newKey;
+    }
+
+    private static boolean matches(String key, char[] chars, int start) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Read a string, after the opening quote. */
+    private String readString() throws IOException, ParseException {
+        StringBuilder builder = null;
+        while (true) {
+            int start = mPos;
+            int p = start;
+            while (p < mLimit) {
+                char c = mBuffer[p++];
+                if (c == '"') {
+                    mPos = p;
+                    if (builder == null) {
+                        return new String(mBuffer, start, p - start - 1);
+                    }
+                    builder.append(mBuffer, start, p - start - 1);
+                    return builder.toString();
+                }
+                if (c == '\\') {
+                    if (builder == null) {
+                        builder = mBuilder;
+                        builder.setLength(0);
+                    }
+                    builder.append(mBuffer, start, p - start - 1);
+                    mPos = p;
+                    builder.append(readEscape());
+                    start = p = mPos;
+                }
+            }
+            if (builder == null) {
+                builder = mBuilder;
+                builder.setLength(0);
+            }
+            builder.append(mBuffer, start, p - start);
+            mPos = p;
+            if (!fill(1)) {
+                throw error("Unterminated string");
+            }
+        }
+    }
+
+    /** Read an escape sequence, after the backslash. */
+    private char readEscape() throws IOException, ParseException {
+        if (!fill(1)) {
+            throw error("Unterminated string");
+        }
+        char c = mBuffer[mPos++];
+        switch (c) {
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                if (!fill(4)) {
+                    throw error("Invalid unicode escape");
+                }
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(mBuffer[mPos++], 16);
+                    if (digit < 0) {
+                        throw error("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                return c;
+        }
+    }
+
+    private void expect(String literal) throws IOException, ParseException {
+        if (!fill(literal.length())) {
+            throw error("Expected " + literal);
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (mBuffer[mPos + i] != literal.charAt(i)) {
+                throw error("Expected " + literal);
+            }
+        }
+        mPos += literal.length();
+    }
+
+    /** @return The next character which is not whitespace, without consuming it */
+    private char peekAfterWhitespace() throws IOException, ParseException {
+        skipWhitespace();
+        if (!fill(1)) {
+            throw error("Unexpected end of data");
+        }
+        return mBuffer[mPos];
+    }
+
+    private void skipWhitespace() throws IOException {
+        char c;
+        while ((mPos < mLimit || fill(1))
+                && ((c = mBuffer[mPos]) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
+            mPos++;
+        }
+    }
+
+    /**
+     * Make sure at least <code>minimum</code> characters are available from the current
+     * position, moving the remaining characters to the start of the buffer if more must be read.
+     *
+     * @return False if the end of the input comes first
+     */
+    private boolean fill(int minimum) throws IOException {
+        if (mLimit - mPos >= minimum) {
+            return true;
+        }
+        if (mPos > 0) {
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+            mOffset += mPos;
+            mLimit -= mPos;
+            mPos = 0;
+        }
+        if (minimum > mBuffer.length) {
+            char[] buffer = new char[Math.max(minimum, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLimit);
+            mBuffer = buffer;
+        }
+        while (mLimit < minimum) {
+            int count = mReader.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (count < 0) {
+                return false;
+            }
+            mLimit += count;
+        }
+        return true;
+    }
+
+    private ParseException error(String message) {
+        int position = mOffset + mPos;
+        return new ParseException(message + " at " + position, position);
+    }
+}
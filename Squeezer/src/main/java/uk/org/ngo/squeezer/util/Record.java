@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import uk.org.ngo.squeezer.Util;
+
+/**
+ * Compact map for a JSON object received from the server, created by {@link JsonRecordReader}.
+ * <p>
+ * The keys and values are held in parallel arrays instead of a hash table of entries. Keys come
+ * from a shared pool of interned strings, so the common case of looking up a field by a string
+ * literal is an identity comparison. Integer values are held unboxed, and can be read without
+ * allocating by {@link #getLong(String, long)} and {@link #getInt(String, int)}.
+ * <p>
+ * Records are read and written by a single thread at a time, like {@link java.util.HashMap}.
+ */
+public final class Record extends AbstractMap<String, Object> {
+    /** Marks a slot where the value is held in {@link #mLongs}. */
+    private static final Object LONG = new Object();
+
+    private String[] mKeys;
+    private Object[] mValues;
+    private long[] mLongs;
+    private int mSize;
+
+    public Record() {
+        this(8);
+    }
+
+    public Record(int capacity) {
+        capacity = Math.max(1, capacity);
+        mKeys = new String[capacity];
+        mValues = new Object[capacity];
+        mLongs = new long[capacity];
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < mSize; i++) {
+                if (key.equals(mKeys[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Object valueAt(int index) {
+        Object value = mValues[index];
+        return (value == LONG ? Long.valueOf(mLongs[index]) : value);
+    }
+
+    private int append(String key) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mLongs = Arrays.copyOf(mLongs, capacity);
+        }
+        mKeys[mSize] = key;
+        return mSize++;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return (index < 0 ? null : valueAt(index));
+    }
+
+    /**
+     * @return The integer value of the field, or defaultValue if the field is missing or not a
+     *     number. Decimals are truncated, also when they are sent as strings.
+     */
+    public long getLong(String key, long defaultValue) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        Object value = mValues[index];
+        if (value == LONG) {
+            return mLongs[index];
+        }
+        return Util.getLong(value, defaultValue);
+    }
+
+    /** @see #getLong(String, long) */
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = indexOf(key);
+        Object previous = null;
+        if (index < 0) {
+            index = append(key);
+        } else {
+            previous = valueAt(index);
+        }
+        mValues[index] = value;
+        return previous;
+    }
+
+    /** Store an integer value without boxing it. */
+    public void putLong(String key, long value) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = append(key);
+        }
+        mValues[index] = LONG;
+        mLongs[index] = value;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object previous = valueAt(index);
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(int index) {
+        int moved = mSize - index - 1;
+        System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+        System.arraycopy(mValues, index + 1, mValues, index, moved);
+        System.arraycopy(mLongs, index + 1, mLongs, index, moved);
+        mSize--;
+        mKeys[mSize] = null;
+        mValues[mSize] = null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mKeys, 0, mSize, null);
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int mNext;
+                    private int mLast = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < mSize;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (mNext >= mSize) {
+                            throw new NoSuchElementException();
+                        }
+                        mLast = mNext++;
+                        return new SimpleImmutableEntry<>(mKeys[mLast], valueAt(mLast));
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (mLast < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeAt(mLast);
+                        mNext = mLast;
+                        mLast = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+}
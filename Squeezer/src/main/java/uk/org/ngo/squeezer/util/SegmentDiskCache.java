@@ -0,0 +1,692 @@
+/*
+ * Copyright (c) 2020 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link DiskCache} which appends the values to a few large segment files, and finds them with
+ * a memory-mapped hash index.
+ * <p>
+ * Opening the cache maps the index and lists the segment files, so it's fast regardless of the
+ * number of entries. Values are written to the newest segment. When the cache is too large the
+ * oldest segment is deleted as a whole, entries in it which have been read since they were
+ * written are first copied to the newest segment. This is done in the background, except when the
+ * index is full, then segments are evicted by the write which needs the room.
+ * <p>
+ * The files are synced to storage in {@link #flush()} and {@link #close()} only.
+ * <p>
+ * Lookups share a read lock, and the values are read without holding any lock, so concurrent
+ * reads don't wait for each other. Changes to the index take the write lock.
+ */
+public class SegmentDiskCache implements DiskCache {
+    public static final Factory FACTORY = SegmentDiskCache::open;
+
+    static final String INDEX_FILE = "index";
+    static final String SEGMENT_PREFIX = "segment.";
+
+    private static final int MAGIC = 0x53514443;
+    private static final int VERSION = 1;
+
+    /** magic, version, slot count, reserved. */
+    private static final int HEADER_SIZE = 16;
+
+    /** key hash (0 for an empty slot), segment, offset, length, flags. */
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_HASH = 0;
+    private static final int SLOT_SEGMENT = 8;
+    private static final int SLOT_OFFSET = 12;
+    private static final int SLOT_LENGTH = 16;
+    private static final int SLOT_FLAGS = 20;
+
+    /** The entry has been read since it was written. */
+    private static final int FLAG_ACCESSED = 1;
+
+    /** Each value in a segment is preceded by the key hash and the length of the value. */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /** Expected average size of a value, to size the index. */
+    private static final int AVERAGE_VALUE_SIZE = 8 * 1024;
+
+    private static final int MIN_SLOTS = 256;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int SEGMENTS = 16;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final int mSegmentSize;
+
+    private final RandomAccessFile mIndexFile;
+    private final MappedByteBuffer mIndex;
+    private final int mSlotMask;
+    private int mEntryCount;
+
+    /** Open segments, oldest first. The last one is written to. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+    private long mSize;
+
+    /** Hashes of the entries which are being edited. */
+    private final Set<Long> mEditing = new HashSet<>();
+
+    private volatile boolean mClosed;
+
+    /** Guards the index, the segments and the entries being edited. */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Lock mReadLock = mLock.readLock();
+    private final Lock mWriteLock = mLock.writeLock();
+
+    /** This cache uses a single background thread to evict segments. */
+    private final ExecutorService mExecutorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private boolean mTrimScheduled;
+
+    private static class Segment {
+        final int id;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        long size;
+
+        Segment(File directory, int id) throws IOException {
+            this.id = id;
+            file = new RandomAccessFile(new File(directory, SEGMENT_PREFIX + id), "rw");
+            channel = file.getChannel();
+            size = channel.size();
+        }
+    }
+
+    private SegmentDiskCache(File directory, long maxSize, RandomAccessFile indexFile,
+                             MappedByteBuffer index, int slotCount) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mSegmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / SEGMENTS));
+        mIndexFile = indexFile;
+        mIndex = index;
+        mSlotMask = slotCount - 1;
+    }
+
+    /**
+     * Opens the cache in the supplied directory. If the directory doesn't contain a valid index,
+     * f.e. because it was used by another kind of cache, its contents are deleted.
+     * <p>
+     * An existing index keeps its size, so the entries survive changes of the maximum size.
+     */
+    public static SegmentDiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        directory.mkdirs();
+
+        int slotCount = 0;
+        File file = new File(directory, INDEX_FILE);
+        boolean valid = file.length() > HEADER_SIZE;
+
+        RandomAccessFile indexFile = null;
+        if (valid) {
+            indexFile = new RandomAccessFile(file, "rw");
+            valid = indexFile.readInt() == MAGIC && indexFile.readInt() == VERSION;
+            if (valid) {
+                slotCount = indexFile.readInt();
+                valid = slotCount >= MIN_SLOTS && Integer.bitCount(slotCount) == 1
+                        && file.length() == HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+            }
+        }
+        if (!valid) {
+            DiskLruCache.closeQuietly(indexFile);
+            DiskLruCache.deleteContents(directory);
+            slotCount = slotCount(maxSize);
+            indexFile = new RandomAccessFile(file, "rw");
+            indexFile.setLength(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        }
+        long indexSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+
+        MappedByteBuffer index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        if (!valid) {
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, slotCount);
+        }
+
+        SegmentDiskCache cache = new SegmentDiskCache(directory, maxSize, indexFile, index, slotCount);
+        try {
+            cache.init();
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * @return The number of slots in the index, a power of 2 large enough for the expected
+     *     number of entries.
+     */
+    private static int slotCount(long maxSize) {
+        long entries = Math.min(maxSize / AVERAGE_VALUE_SIZE, 1 << 24);
+        int slots = Integer.highestOneBit((int) Math.max(MIN_SLOTS, entries * 2) - 1) << 1;
+        return Math.max(MIN_SLOTS, slots);
+    }
+
+    private void init() throws IOException {
+        String[] files = mDirectory.list();
+        if (files != null) {
+            for (String name : files) {
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                        Segment segment = new Segment(mDirectory, id);
+                        mSegments.put(id, segment);
+                        mSize += segment.size;
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.put(1, new Segment(mDirectory, 1));
+        }
+
+        // Drop entries in segments which no longer exist, f.e. if the index was not synced after
+        // an eviction.
+        List<Long> stale = new ArrayList<>();
+        for (int slot = 0; slot <= mSlotMask; slot++) {
+            long hash = hashAt(slot);
+            if (hash != 0) {
+                mEntryCount++;
+                if (!mSegments.containsKey(mIndex.getInt(position(slot) + SLOT_SEGMENT))) {
+                    stale.add(hash);
+                }
+            }
+        }
+        for (long hash : stale) {
+            removeSlot(find(hash));
+        }
+        makeRoomForEntry();
+        scheduleTrimIfNeeded();
+    }
+
+    @Nullable
+    @Override
+    public InputStream get(String key) throws IOException {
+        long hash = hash(key);
+        Segment segment;
+        int offset;
+        int length;
+        mReadLock.lock();
+        try {
+            checkNotClosed();
+            int slot = find(hash);
+            if (slot < 0) {
+                return null;
+            }
+            segment = mSegments.get(mIndex.getInt(position(slot) + SLOT_SEGMENT));
+            offset = mIndex.getInt(position(slot) + SLOT_OFFSET);
+            length = mIndex.getInt(position(slot) + SLOT_LENGTH);
+            if (segment == null || (long) offset + RECORD_HEADER_SIZE + length > segment.size) {
+                return null;
+            }
+
+            // Setting the flag concurrently with other readers is harmless, they all set the
+            // same bit, and writers are excluded.
+            int flags = position(slot) + SLOT_FLAGS;
+            int value = mIndex.getInt(flags);
+            if ((value & FLAG_ACCESSED) == 0) {
+                mIndex.putInt(flags, value | FLAG_ACCESSED);
+            }
+        } finally {
+            mReadLock.unlock();
+        }
+
+        // Read outside the lock, so reads don't wait for each other. Positional reads are safe
+        // while the segment is appended to; if it is evicted meanwhile the read fails.
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        try {
+            readFully(segment.channel, record, offset);
+        } catch (IOException e) {
+            return null;
+        }
+        if (record.getLong(0) != hash || record.getInt(8) != length) {
+            return null;
+        }
+        return new ByteArrayInputStream(record.array(), RECORD_HEADER_SIZE, length);
+    }
+
+    @Nullable
+    @Override
+    public Editor edit(String key) {
+        final long hash = hash(key);
+        mWriteLock.lock();
+        try {
+            checkNotClosed();
+            if (!mEditing.add(hash)) {
+                return null;
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        return new Editor() {
+            private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+            private boolean mDone;
+
+            @Override
+            public OutputStream newOutputStream() {
+                return mBuffer;
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (!mDone) {
+                    mDone = true;
+                    append(hash, mBuffer.toByteArray());
+                }
+            }
+
+            @Override
+            public void abort() {
+                if (!mDone) {
+                    mDone = true;
+                    mWriteLock.lock();
+                    try {
+                        mEditing.remove(hash);
+                    } finally {
+                        mWriteLock.unlock();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Write the value at the end of the newest segment, and point the index at it.
+     */
+    private void append(long hash, byte[] value) throws IOException {
+        mWriteLock.lock();
+        try {
+            checkNotClosed();
+            if (find(hash) < 0) {
+                makeRoomForEntry();
+            }
+            put(hash, write(hash, value, 0, value.length), value.length);
+            scheduleTrimIfNeeded();
+        } finally {
+            mEditing.remove(hash);
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Write a record to the newest segment, starting a new segment if it's full.
+     *
+     * @return The location of the record, as segment id and offset
+     */
+    private long write(long hash, byte[] value, int offset, int length) throws IOException {
+        Segment segment = mSegments.lastEntry().getValue();
+        if (segment.size > 0 && segment.size + RECORD_HEADER_SIZE + length > mSegmentSize) {
+            segment = new Segment(mDirectory, segment.id + 1);
+            mSegments.put(segment.id, segment);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putLong(hash).putInt(length).put(value, offset, length).flip();
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        segment.size += record.limit();
+        mSize += record.limit();
+        return ((long) segment.id << 32) | position;
+    }
+
+    /**
+     * Add or replace the index entry for the hash.
+     *
+     * @param location The location of the record, as returned by {@link #write}
+     * @param length The length of the value
+     */
+    private void put(long hash, long location, int length) {
+        int slot = find(hash);
+        if (slot < 0) {
+            slot = ~slot;
+            mEntryCount++;
+        }
+        int position = position(slot);
+        mIndex.putLong(position + SLOT_HASH, hash);
+        mIndex.putInt(position + SLOT_SEGMENT, (int) (location >>> 32));
+        mIndex.putInt(position + SLOT_OFFSET, (int) location);
+        mIndex.putInt(position + SLOT_LENGTH, length);
+        mIndex.putInt(position + SLOT_FLAGS, 0);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        mWriteLock.lock();
+        try {
+            checkNotClosed();
+            int slot = find(hash(key));
+            if (slot < 0) {
+                return false;
+            }
+            removeSlot(slot);
+            return true;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mWriteLock.lock();
+        try {
+            checkNotClosed();
+            mIndex.force();
+            mSegments.lastEntry().getValue().channel.force(false);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriteLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mExecutorService.shutdown();
+            mIndex.force();
+            for (Segment segment : mSegments.values()) {
+                DiskLruCache.closeQuietly(segment.file);
+            }
+            mSegments.clear();
+            mIndexFile.close();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(mDirectory);
+    }
+
+    @Override
+    public long size() {
+        mReadLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    @Override
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /** @return The number of entries in the cache. */
+    public int getEntryCount() {
+        mReadLock.lock();
+        try {
+            return mEntryCount;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /** @return The number of segment files. */
+    public int getSegmentCount() {
+        mReadLock.lock();
+        try {
+            return mSegments.size();
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /** @return The number of entries the index holds before segments are evicted. */
+    private int maxEntries() {
+        return (int) ((mSlotMask + 1) * MAX_LOAD_FACTOR);
+    }
+
+    /**
+     * Evict the oldest segments until the index has room for another entry.
+     * <p>
+     * The background trim keeps the load of the index down in the common case. But with values
+     * much smaller than expected, all entries can be in the only segment, or the index can fill up
+     * before the trim runs, so new entries must make room themselves.
+     */
+    private void makeRoomForEntry() throws IOException {
+        while (mEntryCount >= maxEntries()) {
+            evictOldestSegment();
+        }
+    }
+
+    private boolean needsTrim() {
+        return mSegments.size() > 1
+                && (mSize > mMaxSize || mEntryCount > maxEntries());
+    }
+
+    private void scheduleTrimIfNeeded() {
+        if (!mTrimScheduled && needsTrim()) {
+            mTrimScheduled = true;
+            mExecutorService.execute(this::trim);
+        }
+    }
+
+    /**
+     * Evict the oldest segments until the cache is within its limits. The write lock is taken
+     * for each segment, so readers get a chance in between.
+     */
+    void trim() {
+        while (true) {
+            mWriteLock.lock();
+            try {
+                mTrimScheduled = false;
+                if (mClosed || !needsTrim()) {
+                    return;
+                }
+                evictOldestSegment();
+            } catch (IOException e) {
+                // Try again after the next write
+                return;
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest segment. Entries in it which have been read since they were written are
+     * copied to the newest segment, the others are dropped.
+     */
+    private void evictOldestSegment() throws IOException {
+        Segment oldest = mSegments.firstEntry().getValue();
+        List<Long> hashes = new ArrayList<>();
+        for (int slot = 0; slot <= mSlotMask; slot++) {
+            if (hashAt(slot) != 0 && mIndex.getInt(position(slot) + SLOT_SEGMENT) == oldest.id) {
+                hashes.add(hashAt(slot));
+            }
+        }
+
+        // Make sure the copies are not written to the segment which is evicted
+        Segment newest = mSegments.lastEntry().getValue();
+        if (newest == oldest) {
+            newest = new Segment(mDirectory, oldest.id + 1);
+            mSegments.put(newest.id, newest);
+        }
+
+        for (long hash : hashes) {
+            int slot = find(hash);
+            int position = position(slot);
+            if ((mIndex.getInt(position + SLOT_FLAGS) & FLAG_ACCESSED) != 0 && !mEditing.contains(hash)) {
+                int offset = mIndex.getInt(position + SLOT_OFFSET);
+                int length = mIndex.getInt(position + SLOT_LENGTH);
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+                try {
+                    readFully(oldest.channel, record, offset);
+                    if (record.getLong(0) == hash) {
+                        put(hash, write(hash, record.array(), RECORD_HEADER_SIZE, length), length);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // Drop the entry
+                }
+            }
+            removeSlot(slot);
+        }
+
+        mSegments.remove(oldest.id);
+        mSize -= oldest.size;
+        DiskLruCache.closeQuietly(oldest.file);
+        new File(mDirectory, SEGMENT_PREFIX + oldest.id).delete();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    /**
+     * @return The slot of the entry with the hash, or the complement of the empty slot where it
+     *     should be inserted.
+     * @throws IllegalStateException If the index is full, which {@link #makeRoomForEntry()}
+     *     prevents
+     */
+    private int find(long hash) {
+        int slot = idealSlot(hash);
+        for (int probes = 0; probes <= mSlotMask; probes++) {
+            long slotHash = hashAt(slot);
+            if (slotHash == hash) {
+                return slot;
+            }
+            if (slotHash == 0) {
+                return ~slot;
+            }
+            slot = (slot + 1) & mSlotMask;
+        }
+        throw new IllegalStateException("index is full");
+    }
+
+    /**
+     * Clear the slot, and move following entries of the same probe sequence back, so lookups
+     * don't need tombstones.
+     */
+    private void removeSlot(int slot) {
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mSlotMask;
+            long hash = hashAt(next);
+            if (hash == 0) {
+                break;
+            }
+            int ideal = idealSlot(hash);
+            boolean inPlace = (free <= next) ? (free < ideal && ideal <= next) : (free < ideal || ideal <= next);
+            if (!inPlace) {
+                for (int i = 0; i < SLOT_SIZE; i += 4) {
+                    mIndex.putInt(position(free) + i, mIndex.getInt(position(next) + i));
+                }
+                free = next;
+            }
+        }
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            mIndex.putInt(position(free) + i, 0);
+        }
+        mEntryCount--;
+    }
+
+    private long hashAt(int slot) {
+        return mIndex.getLong(position(slot) + SLOT_HASH);
+    }
+
+    private int idealSlot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mSlotMask;
+    }
+
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * @return A 64-bit FNV-1a hash of the key, never 0 as that marks an empty slot.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    @Override
+    public String toString() {
+        mReadLock.lock();
+        try {
+            return "SegmentDiskCache{" + mDirectory +
+                    ", entries=" + mEntryCount +
+                    ", segments=" + mSegments.size() +
+                    ", size=" + mSize + "/" + mMaxSize +
+                    '}';
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package uk.org.ngo.squeezer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.util.Record;
+
+public class UtilTest extends TestCase {
+
+    /** Fields must be read the same way whether they are held in a Record or in another map. */
+    public void testRecordAndMapAgree() {
+        Object[] values = {
+                Long.MAX_VALUE, Long.MIN_VALUE, (long) Integer.MAX_VALUE + 1, 7L, -7, 7.9, -7.9,
+                "12345678901", "8.5", "-3", "", "eight", Boolean.TRUE, Arrays.asList(1, 2),
+                new HashMap<String, Object>(), new Object[0], null
+        };
+        for (Object value : values) {
+            Record record = new Record();
+            Map<String, Object> map = new HashMap<>();
+            record.put("value", value);
+            map.put("value", value);
+
+            assertEquals(String.valueOf(value), Util.getLong(map, "value", -1), Util.getLong(record, "value", -1));
+            assertEquals(String.valueOf(value), Util.getInt(map, "value", -1), Util.getInt(record, "value", -1));
+        }
+    }
+
+    public void testGetLong() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("big", (long) Integer.MAX_VALUE + 1);
+        map.put("string", "12345678901.5");
+        map.put("other", Boolean.TRUE);
+
+        assertEquals((long) Integer.MAX_VALUE + 1, Util.getLong(map, "big", -1));
+        assertEquals(12345678901L, Util.getLong(map, "string", -1));
+        assertEquals(-1, Util.getLong(map, "other", -1));
+        assertEquals(-1, Util.getLong(map, "missing", -1));
+
+        Record record = new Record();
+        record.putLong("big", (long) Integer.MAX_VALUE + 1);
+        assertEquals((long) Integer.MAX_VALUE + 1, Util.getLong(record, "big", -1));
+        assertEquals(Util.getInt(map, "big", -1), Util.getInt(record, "big", -1));
+    }
+}
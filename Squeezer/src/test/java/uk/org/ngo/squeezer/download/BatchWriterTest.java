@@ -0,0 +1,214 @@
+package uk.org.ngo.squeezer.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class BatchWriterTest extends TestCase {
+    private static final String INSERT = "insert into download(download_id, temp_name) values (?, ?)";
+    private static final String DELETE = "delete from download where download_id=?";
+
+    private FakeDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new FakeDatabase();
+    }
+
+    private static List<Long> ids(int count) {
+        List<Long> ids = new ArrayList<>(count);
+        for (long i = 0; i < count; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private static final BatchWriter.Binder<Long> ENTRY_BINDER = (statement, downloadId) -> {
+        statement.bindLong(1, downloadId);
+        statement.bindString(2, "temp" + downloadId);
+    };
+
+    private static final BatchWriter.Binder<Long> ID_BINDER = (statement, downloadId) -> statement.bindLong(1, downloadId);
+
+    public void testInsertInOneTransaction() {
+        long[] rowIds = BatchWriter.insert(mDatabase, INSERT, ids(100), ENTRY_BINDER);
+
+        assertEquals(100, rowIds.length);
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals(i + 1, rowIds[i]);
+        }
+        assertEquals(100, mDatabase.rows.size());
+        assertEquals("temp42", mDatabase.rows.get(42L));
+        assertEquals(1, mDatabase.compiles);
+        assertEquals(1, mDatabase.commits);
+        assertEquals(0, mDatabase.openStatements);
+    }
+
+    public void testLargeBatchIsSplit() {
+        int count = BatchWriter.MAX_BATCH_SIZE * 2 + 1;
+        BatchWriter.insert(mDatabase, INSERT, ids(count), ENTRY_BINDER);
+
+        assertEquals(count, mDatabase.rows.size());
+        assertEquals(1, mDatabase.compiles);
+        assertEquals(3, mDatabase.commits);
+    }
+
+    public void testUpdateDelete() {
+        BatchWriter.insert(mDatabase, INSERT, ids(10), ENTRY_BINDER);
+
+        int deleted = BatchWriter.updateDelete(mDatabase, DELETE, ids(5), ID_BINDER);
+
+        assertEquals(5, deleted);
+        assertEquals(5, mDatabase.rows.size());
+        assertFalse(mDatabase.rows.containsKey(4L));
+        assertTrue(mDatabase.rows.containsKey(5L));
+        assertEquals(2, mDatabase.commits);
+    }
+
+    public void testEmptyBatch() {
+        assertEquals(0, BatchWriter.insert(mDatabase, INSERT, Collections.<Long>emptyList(), ENTRY_BINDER).length);
+        assertEquals(0, mDatabase.transactions);
+        assertEquals(0, mDatabase.openStatements);
+    }
+
+    public void testFailureRollsBack() {
+        try {
+            BatchWriter.insert(mDatabase, INSERT, ids(10), (statement, downloadId) -> {
+                if (downloadId == 7) {
+                    throw new IllegalStateException("bind failed");
+                }
+                ENTRY_BINDER.bind(statement, downloadId);
+            });
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(0, mDatabase.rows.size());
+        assertEquals(0, mDatabase.commits);
+        assertEquals(0, mDatabase.openStatements);
+        assertFalse(mDatabase.inTransaction);
+    }
+
+    /**
+     * Compare a batch of 1000 entries with registering them one at a time, which compiles a
+     * statement and commits a transaction per entry.
+     */
+    public void testBatchVersusOneAtATime() {
+        int count = 1000;
+        List<Long> ids = ids(count);
+
+        FakeDatabase single = new FakeDatabase();
+        for (Long id : ids) {
+            BatchWriter.insert(single, INSERT, Collections.singletonList(id), ENTRY_BINDER);
+        }
+
+        FakeDatabase batch = new FakeDatabase();
+        BatchWriter.insert(batch, INSERT, ids, ENTRY_BINDER);
+
+        assertEquals(count, single.rows.size());
+        assertEquals(count, batch.rows.size());
+        assertEquals(count, single.commits);
+        assertEquals(count, single.compiles);
+        assertEquals((count + BatchWriter.MAX_BATCH_SIZE - 1) / BatchWriter.MAX_BATCH_SIZE, batch.commits);
+        assertEquals(1, batch.compiles);
+    }
+
+    /**
+     * In-memory stand-in for the download table, keyed by download id. Rows written in a
+     * transaction are only kept when it is committed.
+     */
+    private static class FakeDatabase implements BatchWriter.Database {
+        final Map<Long, String> rows = new TreeMap<>();
+        /** Rows written in the current transaction, null for deleted rows. */
+        final Map<Long, String> pending = new HashMap<>();
+        boolean inTransaction;
+        boolean successful;
+        int transactions;
+        int commits;
+        int compiles;
+        int openStatements;
+        long nextRowId = 1;
+
+        @Override
+        public void beginTransaction() {
+            assertFalse(inTransaction);
+            inTransaction = true;
+            successful = false;
+            pending.clear();
+            transactions++;
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            successful = true;
+        }
+
+        @Override
+        public void endTransaction() {
+            assertTrue(inTransaction);
+            inTransaction = false;
+            if (successful) {
+                for (Map.Entry<Long, String> entry : pending.entrySet()) {
+                    if (entry.getValue() != null) {
+                        rows.put(entry.getKey(), entry.getValue());
+                    } else {
+                        rows.remove(entry.getKey());
+                    }
+                }
+                commits++;
+            }
+            pending.clear();
+        }
+
+        @Override
+        public BatchWriter.Statement compileStatement(final String sql) {
+            compiles++;
+            openStatements++;
+            return new BatchWriter.Statement() {
+                final Object[] args = new Object[2];
+
+                @Override
+                public void bindLong(int index, long value) {
+                    args[index - 1] = value;
+                }
+
+                @Override
+                public void bindString(int index, String value) {
+                    args[index - 1] = value;
+                }
+
+                @Override
+                public void clearBindings() {
+                    args[0] = args[1] = null;
+                }
+
+                @Override
+                public long executeInsert() {
+                    assertTrue(inTransaction);
+                    pending.put((Long) args[0], (String) args[1]);
+                    return nextRowId++;
+                }
+
+                @Override
+                public int executeUpdateDelete() {
+                    assertTrue(inTransaction);
+                    Long key = (Long) args[0];
+                    boolean exists = pending.containsKey(key) ? pending.get(key) != null : rows.containsKey(key);
+                    pending.put(key, null);
+                    return exists ? 1 : 0;
+                }
+
+                @Override
+                public void close() {
+                    openStatements--;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package uk.org.ngo.squeezer.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class DownloadSchedulerTest extends TestCase {
+    private static final long RETRY_DELAY_MS = 20;
+    private static final byte[] CONTENT = new byte[200 * 1024];
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    /** How the server responds to a request. */
+    private interface Responder {
+        void respond(HttpExchange exchange) throws IOException;
+    }
+
+    private HttpServer mServer;
+    private volatile Responder mResponder = DownloadSchedulerTest::respondWithRange;
+    /** The Range header of each request, or "" if it had none. */
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<>());
+    /** Time of each request. */
+    private final List<Long> mRequestTimes = Collections.synchronizedList(new ArrayList<>());
+
+    private File mDirectory;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private final FakeStore mStore = new FakeStore();
+    private final List<Long> mDownloaded = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger mFailedAttempts = new AtomicInteger();
+    private DownloadScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            mRanges.add(range != null ? range : "");
+            mRequestTimes.add(System.currentTimeMillis());
+            try {
+                mResponder.respond(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+        mDirectory = Files.createTempDirectory("DownloadSchedulerTest").toFile();
+        mExecutor = new ScheduledThreadPoolExecutor(DownloadScheduler.MAX_WORKERS + 1);
+        mScheduler = new DownloadScheduler(mStore, new DownloadScheduler.Callbacks() {
+            @Override
+            public File getTempFile(DownloadDatabase.DownloadJob job) {
+                return new File(mDirectory, job.tempName);
+            }
+
+            @Override
+            public void onDownloaded(DownloadDatabase.DownloadJob job) {
+                mDownloaded.add(job.id);
+            }
+
+            @Override
+            public void onAttemptFailed(DownloadDatabase.DownloadJob job, IOException e) {
+                mFailedAttempts.incrementAndGet();
+            }
+
+            @Override
+            public void onProgress(boolean force) {
+            }
+        }, mExecutor, System::currentTimeMillis, RETRY_DELAY_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mServer.stop(0);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /** Serve {@link #CONTENT}, honouring a range request. */
+    private static void respondWithRange(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int offset = 0;
+        if (range != null) {
+            offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + offset + "-" + (CONTENT.length - 1) + "/" + CONTENT.length);
+            exchange.sendResponseHeaders(206, CONTENT.length - offset);
+        } else {
+            exchange.sendResponseHeaders(200, CONTENT.length);
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(CONTENT, offset, CONTENT.length - offset);
+        }
+    }
+
+    /** Serve all of {@link #CONTENT}, ignoring a range request. */
+    private static void respondIgnoringRange(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, CONTENT.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(CONTENT);
+        }
+    }
+
+    private DownloadDatabase.DownloadJob addJob(String host) {
+        DownloadDatabase.DownloadJob job = new DownloadDatabase.DownloadJob();
+        job.url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/music/" + mStore.size();
+        job.host = host;
+        job.tempName = "temp" + mStore.size();
+        return mStore.add(job);
+    }
+
+    private File tempFile(DownloadDatabase.DownloadJob job) {
+        return new File(mDirectory, job.tempName);
+    }
+
+    private void writeTempFile(DownloadDatabase.DownloadJob job, byte[] content, int length) throws IOException {
+        try (OutputStream out = new FileOutputStream(tempFile(job))) {
+            out.write(content, 0, length);
+        }
+    }
+
+    /** Wait until the job is stored in the supplied state. */
+    private DownloadDatabase.DownloadJob awaitState(DownloadDatabase.DownloadJob job, int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            DownloadDatabase.DownloadJob stored = mStore.get(job.id);
+            if (stored.state == state) {
+                return stored;
+            }
+            Thread.sleep(5);
+        }
+        fail("Job " + job.id + " did not reach state " + state + ": " + mStore.get(job.id));
+        return null;
+    }
+
+    public void testDownload() throws Exception {
+        DownloadDatabase.DownloadJob job = addJob("host");
+        mScheduler.schedule();
+
+        DownloadDatabase.DownloadJob stored = awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        assertEquals(Arrays.asList(""), mRanges);
+        assertEquals(Arrays.asList(job.id), mDownloaded);
+        assertEquals(CONTENT.length, stored.bytes);
+        assertEquals(CONTENT.length, stored.total);
+        assertTrue(Arrays.equals(CONTENT, Files.readAllBytes(tempFile(job).toPath())));
+    }
+
+    public void testPartialContentIsAppended() throws Exception {
+        DownloadDatabase.DownloadJob job = addJob("host");
+        writeTempFile(job, CONTENT, 1000);
+        mScheduler.schedule();
+
+        DownloadDatabase.DownloadJob stored = awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        assertEquals(Arrays.asList("bytes=1000-"), mRanges);
+        assertEquals(CONTENT.length, stored.total);
+        assertTrue(Arrays.equals(CONTENT, Files.readAllBytes(tempFile(job).toPath())));
+    }
+
+    public void testIgnoredRangeRestartsFromZero() throws Exception {
+        mResponder = DownloadSchedulerTest::respondIgnoringRange;
+        DownloadDatabase.DownloadJob job = addJob("host");
+        // Content which must be replaced, not appended to
+        writeTempFile(job, new byte[1000], 1000);
+        mScheduler.schedule();
+
+        DownloadDatabase.DownloadJob stored = awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        assertEquals(Arrays.asList("bytes=1000-"), mRanges);
+        assertEquals(CONTENT.length, stored.total);
+        assertTrue(Arrays.equals(CONTENT, Files.readAllBytes(tempFile(job).toPath())));
+    }
+
+    public void testUnsatisfiableRangeDeletesTempFile() throws Exception {
+        mResponder = exchange -> exchange.sendResponseHeaders(416, -1);
+        DownloadDatabase.DownloadJob job = addJob("host");
+        writeTempFile(job, CONTENT, 1000);
+        mScheduler.schedule();
+
+        // The retry starts from the beginning
+        awaitState(job, DownloadDatabase.DownloadJob.FAILED);
+        assertEquals("bytes=1000-", mRanges.get(0));
+        assertEquals("", mRanges.get(1));
+    }
+
+    public void testRetriesAreExhausted() throws Exception {
+        mResponder = exchange -> exchange.sendResponseHeaders(503, -1);
+        DownloadDatabase.DownloadJob job = addJob("host");
+        mScheduler.schedule();
+
+        DownloadDatabase.DownloadJob stored = awaitState(job, DownloadDatabase.DownloadJob.FAILED);
+        assertEquals(DownloadScheduler.MAX_ATTEMPTS, stored.attempts);
+        assertEquals(DownloadScheduler.MAX_ATTEMPTS, mFailedAttempts.get());
+        assertEquals(DownloadScheduler.MAX_ATTEMPTS, mRequestTimes.size());
+        assertTrue(mDownloaded.isEmpty());
+
+        // The delay doubles for each retry
+        for (int i = 1; i < mRequestTimes.size(); i++) {
+            long delay = mRequestTimes.get(i) - mRequestTimes.get(i - 1);
+            assertTrue("Retry " + i + " after " + delay + " ms", delay >= RETRY_DELAY_MS << (i - 1));
+        }
+
+        // Nothing more is tried
+        Thread.sleep(RETRY_DELAY_MS * 4);
+        assertEquals(DownloadScheduler.MAX_ATTEMPTS, mRequestTimes.size());
+    }
+
+    public void testRetryResumesDownload() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        mResponder = exchange -> {
+            if (requests.incrementAndGet() == 1) {
+                // Send the first half, and then break the connection
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(CONTENT, 0, CONTENT.length / 2);
+                out.flush();
+            } else {
+                respondWithRange(exchange);
+            }
+        };
+        DownloadDatabase.DownloadJob job = addJob("host");
+        mScheduler.schedule();
+
+        DownloadDatabase.DownloadJob stored = awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        assertEquals(0, stored.attempts);
+        assertEquals(1, mFailedAttempts.get());
+        assertEquals("", mRanges.get(0));
+        assertTrue(mRanges.get(1), rangeOffset(mRanges.get(1)) > 0);
+        assertTrue(Arrays.equals(CONTENT, Files.readAllBytes(tempFile(job).toPath())));
+    }
+
+    private static int rangeOffset(String range) {
+        return Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    public void testConnectionsPerHost() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        mResponder = exchange -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            active.decrementAndGet();
+            respondWithRange(exchange);
+        };
+
+        // A job for another host is behind many jobs of a host at its connection limit
+        List<DownloadDatabase.DownloadJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            jobs.add(addJob("busy"));
+        }
+        DownloadDatabase.DownloadJob other = addJob("other");
+        mScheduler.schedule();
+
+        awaitState(other, DownloadDatabase.DownloadJob.ACTIVE);
+        assertEquals(DownloadDatabase.DownloadJob.ACTIVE, mStore.get(jobs.get(0).id).state);
+        assertEquals(DownloadDatabase.DownloadJob.ACTIVE, mStore.get(jobs.get(1).id).state);
+        for (int i = 2; i < jobs.size(); i++) {
+            assertEquals(DownloadDatabase.DownloadJob.QUEUED, mStore.get(jobs.get(i).id).state);
+        }
+
+        release.countDown();
+        for (DownloadDatabase.DownloadJob job : jobs) {
+            awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        }
+        awaitState(other, DownloadDatabase.DownloadJob.DONE);
+        assertTrue(maxActive.get() <= DownloadScheduler.MAX_WORKERS);
+        assertEquals(31, mDownloaded.size());
+    }
+
+    public void testJobsWaitingForRetryDontBlockOthers() throws Exception {
+        DownloadDatabase.DownloadJob waiting = addJob("host");
+        mStore.get(waiting.id).retryAt = System.currentTimeMillis() + 300;
+        DownloadDatabase.DownloadJob job = addJob("host");
+        mScheduler.schedule();
+
+        awaitState(job, DownloadDatabase.DownloadJob.DONE);
+        assertEquals(DownloadDatabase.DownloadJob.QUEUED, mStore.get(waiting.id).state);
+
+        // The waiting job is started when its retry is due, without another call to schedule
+        awaitState(waiting, DownloadDatabase.DownloadJob.DONE);
+        assertTrue(mRequestTimes.get(1) >= mStore.get(waiting.id).retryAt);
+    }
+
+    public void testCancelledDownloadsAreNotStored() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mResponder = exchange -> {
+            exchange.sendResponseHeaders(200, CONTENT.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(CONTENT, 0, 1000);
+            out.flush();
+            requested.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            out.write(CONTENT, 1000, CONTENT.length - 1000);
+            out.close();
+        };
+        DownloadDatabase.DownloadJob job = addJob("host");
+        mScheduler.schedule();
+
+        assertTrue(requested.await(10, TimeUnit.SECONDS));
+        mScheduler.cancel();
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!mScheduler.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mScheduler.isIdle());
+        assertEquals(DownloadDatabase.DownloadJob.ACTIVE, mStore.get(job.id).state);
+        assertTrue(mDownloaded.isEmpty());
+    }
+
+    /**
+     * Keeps the jobs in memory, and selects jobs like {@link DownloadDatabase}. Jobs are copied
+     * in and out, like they are by the database.
+     */
+    private static class FakeStore implements DownloadScheduler.JobStore {
+        private final List<DownloadDatabase.DownloadJob> mJobs = new ArrayList<>();
+
+        synchronized int size() {
+            return mJobs.size();
+        }
+
+        synchronized DownloadDatabase.DownloadJob add(DownloadDatabase.DownloadJob job) {
+            job.id = mJobs.size();
+            job.state = DownloadDatabase.DownloadJob.QUEUED;
+            mJobs.add(copy(job));
+            return job;
+        }
+
+        synchronized DownloadDatabase.DownloadJob get(long id) {
+            return mJobs.get((int) id);
+        }
+
+        @Override
+        public synchronized List<DownloadDatabase.DownloadJob> getStartableJobs(long now, Collection<String> busyHosts, int limit) {
+            List<DownloadDatabase.DownloadJob> jobs = new ArrayList<>();
+            for (DownloadDatabase.DownloadJob job : mJobs) {
+                if (jobs.size() < limit && job.state == DownloadDatabase.DownloadJob.QUEUED
+                        && job.retryAt <= now && !busyHosts.contains(job.host)) {
+                    jobs.add(copy(job));
+                }
+            }
+            return jobs;
+        }
+
+        @Override
+        public synchronized long getNextRetry(long now) {
+            long next = -1;
+            for (DownloadDatabase.DownloadJob job : mJobs) {
+                if (job.state == DownloadDatabase.DownloadJob.QUEUED && job.retryAt > now && (next == -1 || job.retryAt < next)) {
+                    next = job.retryAt;
+                }
+            }
+            return next;
+        }
+
+        @Override
+        public synchronized void updateJob(DownloadDatabase.DownloadJob job) {
+            mJobs.set((int) job.id, copy(job));
+        }
+
+        private static DownloadDatabase.DownloadJob copy(DownloadDatabase.DownloadJob job) {
+            DownloadDatabase.DownloadJob copy = new DownloadDatabase.DownloadJob();
+            copy.id = job.id;
+            copy.url = job.url;
+            copy.host = job.host;
+            copy.tempName = job.tempName;
+            copy.state = job.state;
+            copy.bytes = job.bytes;
+            copy.total = job.total;
+            copy.attempts = job.attempts;
+            copy.retryAt = job.retryAt;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class BrowseCacheTest extends TestCase {
+    private static final String SERVER = "http://192.168.1.2:9000";
+    private static final String TOKEN = "lookup-1";
+
+    private File mDirectory;
+    private BrowseCache mCache;
+    private final ConcurrentMap<String, String> mPending = new ConcurrentHashMap<>();
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final BrowseCache.LookupCallback<String> mCallback = new BrowseCache.LookupCallback<String>() {
+        @Override
+        public void onHit(String request, Map<String, Object> data) {
+            mEvents.add("hit " + request + " " + data.get("count") + " pending=" + mPending.containsKey(TOKEN));
+        }
+
+        @Override
+        public void onMiss(String request) {
+            mEvents.add("miss " + request + " pending=" + mPending.containsKey(TOKEN));
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("browse").toFile();
+        mCache = new BrowseCache();
+        mCache.open(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static String key(String stamp, String... cmd) {
+        List<Object> slimRequest = Arrays.asList("player", Arrays.asList((Object[]) cmd));
+        return BrowseCache.key(SERVER, stamp, Arrays.asList(cmd), slimRequest);
+    }
+
+    public void testKey() {
+        String key = key("1580000000", "albums", "0", "100");
+        assertNotNull(key);
+        assertEquals(key, key("1580000000", "albums", "0", "100"));
+
+        assertFalse(key.equals(key("1590000000", "albums", "0", "100")));
+        assertFalse(key.equals(key("1580000000", "albums", "100", "100")));
+        assertFalse(key.equals(BrowseCache.key("http://other:9000", "1580000000",
+                Arrays.asList("albums", "0", "100"), Arrays.asList((Object) "player", Arrays.asList("albums", "0", "100")))));
+
+        // Only library browsing is cached, and only while the library stamp is known
+        assertNull(key(null, "albums", "0", "100"));
+        assertNull(key("1580000000", "status", "0", "100"));
+        assertNull(key("1580000000", "favorites", "items", "0", "100"));
+        assertNull(BrowseCache.key(SERVER, "1580000000", Collections.<String>emptyList(), Collections.emptyList()));
+    }
+
+    public void testHit() {
+        String key = key("1580000000", "titles", "0", "100");
+        mCache.put(key, "{\"count\":3,\"titles_loop\":[{\"id\":1},{\"id\":2},{\"id\":3}]}");
+        mPending.put(TOKEN, "request");
+
+        mCache.lookup(key, mPending, TOKEN, mCallback);
+
+        // Delivered once from the cache, and no longer pending so nothing else can deliver it
+        assertEquals(Collections.singletonList("hit request 3 pending=false"), mEvents);
+        assertTrue(mPending.isEmpty());
+    }
+
+    public void testMiss() {
+        mPending.put(TOKEN, "request");
+
+        mCache.lookup(key("1580000000", "titles", "0", "100"), mPending, TOKEN, mCallback);
+
+        // Still registered when the server is asked, so it can be cancelled meanwhile
+        assertEquals(Collections.singletonList("miss request pending=true"), mEvents);
+    }
+
+    public void testCancelledBeforeLookup() {
+        String key = key("1580000000", "titles", "0", "100");
+        mCache.put(key, "{\"count\":3}");
+
+        mCache.lookup(key, mPending, TOKEN, mCallback);
+
+        assertTrue(mEvents.isEmpty());
+    }
+
+    public void testCancelledWhileReading() {
+        BrowseCache cache = new BrowseCache() {
+            @Override
+            synchronized Map<String, Object> get(String key) {
+                mPending.remove(TOKEN);
+                return super.get(key);
+            }
+        };
+        cache.open(mDirectory);
+        String hitKey = key("1580000000", "titles", "0", "100");
+        cache.put(hitKey, "{\"count\":3}");
+
+        mPending.put(TOKEN, "request");
+        cache.lookup(hitKey, mPending, TOKEN, mCallback);
+        mPending.put(TOKEN, "request");
+        cache.lookup(key("1580000000", "titles", "100", "100"), mPending, TOKEN, mCallback);
+
+        assertTrue(mEvents.isEmpty());
+    }
+}
@@ -0,0 +1,185 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Player;
+
+public class ControlCommandsTest extends TestCase {
+    /** The current time of the fake clock. */
+    private long mNow = 10_000;
+
+    /** Runnables scheduled by the commands, with the time they are due. */
+    private final List<Runnable> mScheduled = new ArrayList<>();
+    private final List<Long> mDue = new ArrayList<>();
+
+    private final List<String> mSent = new ArrayList<>();
+    private final List<String> mExpired = new ArrayList<>();
+
+    private final ControlCommands mCommands = new ControlCommands(
+            (player, cmd) -> mSent.add(Arrays.toString(cmd)),
+            (player, control, reportedValue) -> mExpired.add(control + "=" + reportedValue),
+            (runnable, delayMillis) -> {
+                mScheduled.add(runnable);
+                mDue.add(mNow + delayMillis);
+            },
+            () -> mNow);
+
+    private final Player mPlayer = player("00:04:20:12:34:56");
+    private final Player mOtherPlayer = player("00:04:20:65:43:21");
+
+    private static Player player(String id) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("playerid", id);
+        record.put("name", id);
+        return new Player(record);
+    }
+
+    /** Move the clock forward, running the runnables which become due on the way. */
+    private void advance(long millis) {
+        long end = mNow + millis;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < mDue.size(); i++) {
+                if (mDue.get(i) <= end && (next == -1 || mDue.get(i) < mDue.get(next))) {
+                    next = i;
+                }
+            }
+            if (next == -1) {
+                break;
+            }
+            mNow = Math.max(mNow, mDue.remove(next));
+            mScheduled.remove(next).run();
+        }
+        mNow = end;
+    }
+
+    private void submitVolume(Player player, int volume) {
+        mCommands.submit(player, ControlCommands.VOLUME, volume, "mixer", "volume", String.valueOf(volume));
+    }
+
+    public void testFirstValueIsSentImmediately() {
+        submitVolume(mPlayer, 10);
+        assertEquals(Arrays.asList("[mixer, volume, 10]"), mSent);
+    }
+
+    public void testLatestValueIsSentAfterInterval() {
+        submitVolume(mPlayer, 10);
+        submitVolume(mPlayer, 11);
+        submitVolume(mPlayer, 12);
+        assertEquals(1, mSent.size());
+
+        advance(150);
+        assertEquals(Arrays.asList("[mixer, volume, 10]", "[mixer, volume, 12]"), mSent);
+
+        advance(1000);
+        assertEquals(2, mSent.size());
+    }
+
+    public void testControlsAreIndependent() {
+        submitVolume(mPlayer, 10);
+        submitVolume(mOtherPlayer, 20);
+        mCommands.submit(mPlayer, ControlCommands.TIME, 30, "time", "30");
+        assertEquals(3, mSent.size());
+    }
+
+    public void testStaleValuesAreIgnoredUntilConfirmed() {
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 5));
+
+        submitVolume(mPlayer, 10);
+        submitVolume(mPlayer, 12);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 10));
+
+        // Not confirmed while the latest value hasn't been sent
+        advance(100);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 12));
+
+        advance(50);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 10));
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 12));
+
+        // Confirmed controls are forgotten
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 10));
+        advance(5000);
+        assertTrue(mExpired.isEmpty());
+    }
+
+    public void testTimeIsConfirmedWithinTolerance() {
+        mCommands.submit(mPlayer, ControlCommands.TIME, 60, "time", "60");
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 10));
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 63));
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 61));
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 10));
+    }
+
+    public void testExpiryAppliesLastReportedValue() {
+        submitVolume(mPlayer, 10);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 3));
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 4));
+
+        advance(1999);
+        assertTrue(mExpired.isEmpty());
+        advance(1);
+        assertEquals(Arrays.asList("volume=4"), mExpired);
+
+        // The server value is accepted after expiry
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 4));
+    }
+
+    public void testTimeControlsExpire() {
+        mCommands.submit(mPlayer, ControlCommands.TIME, 60, "time", "60");
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 20));
+
+        advance(2000);
+        assertEquals(Arrays.asList("time=20"), mExpired);
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.TIME, 21));
+    }
+
+    public void testExpiryWithoutReportedValue() {
+        submitVolume(mPlayer, 10);
+        advance(2000);
+        assertTrue(mExpired.isEmpty());
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 4));
+    }
+
+    public void testExpiryIsMovedByLaterCommands() {
+        submitVolume(mPlayer, 10);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 3));
+        advance(1500);
+        submitVolume(mPlayer, 20);
+
+        advance(500);
+        assertTrue(mExpired.isEmpty());
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 10));
+
+        advance(1500);
+        assertEquals(Arrays.asList("volume=10"), mExpired);
+    }
+
+    public void testDeadlineIsCheckedWhenExpiryIsLate() {
+        submitVolume(mPlayer, 10);
+        mNow += 2001;
+
+        // The expiry hasn't run yet, but the deadline has passed
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 4));
+        advance(0);
+        assertTrue(mExpired.isEmpty());
+    }
+
+    public void testClearDropsPendingCommandsAndExpiries() {
+        submitVolume(mPlayer, 10);
+        submitVolume(mPlayer, 12);
+        assertTrue(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 3));
+        mCommands.clear();
+
+        advance(5000);
+        assertEquals(1, mSent.size());
+        assertTrue(mExpired.isEmpty());
+        assertFalse(mCommands.isUnconfirmed(mPlayer, ControlCommands.VOLUME, 3));
+    }
+}
@@ -0,0 +1,177 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.service.event.MusicChanged;
+import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+import uk.org.ngo.squeezer.service.event.PlayerVolume;
+import uk.org.ngo.squeezer.service.event.PlaylistChanged;
+import uk.org.ngo.squeezer.service.event.SongTimeChanged;
+
+public class EventCoalescerTest extends TestCase {
+    /** Runnables scheduled by the coalescer, run by {@link #runScheduled()}. */
+    private final List<Runnable> mScheduled = new ArrayList<>();
+    private final List<Object> mDelivered = new ArrayList<>();
+    private final List<Boolean> mSticky = new ArrayList<>();
+
+    private final EventCoalescer mCoalescer = new EventCoalescer(
+            (event, sticky) -> {
+                mDelivered.add(event);
+                mSticky.add(sticky);
+            },
+            (runnable, delayMillis) -> mScheduled.add(runnable));
+
+    private final Player mPlayer = player("00:04:20:12:34:56");
+    private final Player mOtherPlayer = player("00:04:20:65:43:21");
+
+    private static Player player(String id) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("playerid", id);
+        record.put("name", id);
+        return new Player(record);
+    }
+
+    private void runScheduled() {
+        List<Runnable> scheduled = new ArrayList<>(mScheduled);
+        mScheduled.clear();
+        for (Runnable runnable : scheduled) {
+            runnable.run();
+        }
+    }
+
+    public void testEventsWhichAreNotForAPlayerAreNotHeld() {
+        assertFalse(mCoalescer.offer(new Object(), false));
+        assertFalse(mCoalescer.offer(new Object(), true));
+        assertEquals(0, mCoalescer.getPostedCount());
+        assertTrue(mScheduled.isEmpty());
+    }
+
+    public void testEventsAreOnlyDeliveredByTheScheduler() {
+        assertTrue(mCoalescer.offer(new PlayerVolume(50, mPlayer), false));
+        assertTrue(mCoalescer.offer(new PlaylistChanged(mPlayer), false));
+
+        // Unrelated events don't deliver the held events
+        assertFalse(mCoalescer.offer(new Object(), false));
+        assertTrue(mDelivered.isEmpty());
+
+        assertEquals(1, mScheduled.size());
+        runScheduled();
+        assertEquals(2, mDelivered.size());
+        assertEquals(2, mCoalescer.getDeliveredCount());
+    }
+
+    public void testLatestEventWins() {
+        for (int volume = 1; volume <= 10; volume++) {
+            mCoalescer.offer(new PlayerVolume(volume, mPlayer), false);
+            mCoalescer.offer(new SongTimeChanged(mPlayer, volume, 100), false);
+        }
+        runScheduled();
+
+        assertEquals(2, mDelivered.size());
+        assertEquals(10, ((PlayerVolume) mDelivered.get(0)).volume);
+        assertEquals(10, ((SongTimeChanged) mDelivered.get(1)).currentPosition);
+        assertEquals(20, mCoalescer.getPostedCount());
+        assertEquals(18, mCoalescer.getCoalescedCount());
+        assertEquals(2, mCoalescer.getDeliveredCount());
+    }
+
+    public void testPlayerStateChangesAreMerged() {
+        mCoalescer.offer(new PlayerStateChanged(mPlayer, PlayerStateChanged.VOLUME), false);
+        mCoalescer.offer(new PlayerStateChanged(mPlayer, PlayerStateChanged.SONG_TIME), false);
+        mCoalescer.offer(new PlayerStateChanged(mOtherPlayer, PlayerStateChanged.POWER), false);
+        runScheduled();
+
+        assertEquals(2, mDelivered.size());
+        PlayerStateChanged event = (PlayerStateChanged) mDelivered.get(0);
+        assertSame(mPlayer, event.player);
+        assertEquals(PlayerStateChanged.VOLUME | PlayerStateChanged.SONG_TIME, event.changes);
+        event = (PlayerStateChanged) mDelivered.get(1);
+        assertSame(mOtherPlayer, event.player);
+        assertEquals(PlayerStateChanged.POWER, event.changes);
+    }
+
+    public void testOrderIsKeptForEachPlayer() {
+        PlayStatusChanged paused = new PlayStatusChanged(PlayerState.PLAY_STATE_PAUSE, mPlayer);
+        MusicChanged musicChanged = new MusicChanged(mPlayer, mPlayer.getPlayerState());
+        PlaylistChanged playlistChanged = new PlaylistChanged(mPlayer);
+        PlayStatusChanged playing = new PlayStatusChanged(PlayerState.PLAY_STATE_PLAY, mPlayer);
+
+        mCoalescer.offer(paused, false);
+        mCoalescer.offer(musicChanged, true);
+        mCoalescer.offer(playlistChanged, false);
+        mCoalescer.offer(playing, false);
+        runScheduled();
+
+        // The superseding play status is delivered after the events posted before it
+        assertEquals(3, mDelivered.size());
+        assertSame(musicChanged, mDelivered.get(0));
+        assertSame(playlistChanged, mDelivered.get(1));
+        assertSame(playing, mDelivered.get(2));
+        assertEquals(true, (boolean) mSticky.get(0));
+        assertEquals(false, (boolean) mSticky.get(1));
+        assertEquals(false, (boolean) mSticky.get(2));
+    }
+
+    public void testStickyEventsAreNotSuperseded() {
+        PlayStatusChanged first = new PlayStatusChanged(PlayerState.PLAY_STATE_PAUSE, mPlayer);
+        PlayStatusChanged second = new PlayStatusChanged(PlayerState.PLAY_STATE_PLAY, mPlayer);
+        mCoalescer.offer(first, true);
+        mCoalescer.offer(second, true);
+        runScheduled();
+
+        assertEquals(2, mDelivered.size());
+        assertSame(first, mDelivered.get(0));
+        assertSame(second, mDelivered.get(1));
+        assertEquals(0, mCoalescer.getCoalescedCount());
+    }
+
+    public void testNewEventsAfterFlushAreScheduledAgain() {
+        mCoalescer.offer(new PlayerVolume(50, mPlayer), false);
+        mCoalescer.offer(new PlayerVolume(51, mPlayer), false);
+        assertEquals(1, mScheduled.size());
+        runScheduled();
+        assertEquals(1, mDelivered.size());
+
+        mCoalescer.offer(new PlayerVolume(52, mPlayer), false);
+        assertEquals(1, mScheduled.size());
+        runScheduled();
+        assertEquals(2, mDelivered.size());
+        assertEquals(52, ((PlayerVolume) mDelivered.get(1)).volume);
+
+        // Nothing is delivered twice
+        mCoalescer.flush();
+        assertEquals(2, mDelivered.size());
+    }
+
+    public void testEventsPostedWhileDeliveringAreHeld() {
+        List<Runnable> scheduled = mScheduled;
+        EventCoalescer[] coalescer = new EventCoalescer[1];
+        List<Object> delivered = new ArrayList<>();
+        coalescer[0] = new EventCoalescer(
+                (event, sticky) -> {
+                    delivered.add(event);
+                    if (event instanceof PlayerStateChanged) {
+                        // A subscriber reacting to the event with another event
+                        coalescer[0].offer(new PlayerVolume(60, mPlayer), false);
+                    }
+                },
+                (runnable, delayMillis) -> scheduled.add(runnable));
+
+        coalescer[0].offer(new PlayerStateChanged(mPlayer, PlayerStateChanged.VOLUME), false);
+        runScheduled();
+        assertEquals(1, delivered.size());
+        assertEquals(1, scheduled.size());
+
+        runScheduled();
+        assertEquals(2, delivered.size());
+        assertEquals(60, ((PlayerVolume) delivered.get(1)).volume);
+    }
+}
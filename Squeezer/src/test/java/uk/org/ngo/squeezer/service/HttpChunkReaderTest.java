@@ -0,0 +1,124 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class HttpChunkReaderTest extends TestCase {
+
+    /** A stream which returns at most one byte per read, so every line and chunk is split. */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(String data) {
+            super(data.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(1, len));
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            return 0;
+        }
+    }
+
+    private static String readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int count;
+        while ((count = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public void testParseChunkSize() throws IOException {
+        assertEquals(0, HttpChunkReader.parseChunkSize("0"));
+        assertEquals(0x1a, HttpChunkReader.parseChunkSize("1a"));
+        assertEquals(0xFF, HttpChunkReader.parseChunkSize("FF "));
+        assertEquals(0x10, HttpChunkReader.parseChunkSize("10;name=value"));
+        assertEquals(0x10, HttpChunkReader.parseChunkSize("10 ; name=\"quoted;value\""));
+    }
+
+    public void testMalformedChunkSize() {
+        for (String line : new String[]{"", "g", "0x10", "-1", "+1", "1 2", ";ext", "7fffffffff"}) {
+            try {
+                HttpChunkReader.parseChunkSize(line);
+                fail("expected IOException for '" + line + "'");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    public void testChunks() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new TrickleInputStream(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5;ext=1\r\nhello\r\n"
+                        + "8\r\n, w\u00f8rld\r\n"
+                        + "0\r\nTrailer: x\r\n\r\n"
+                        + "HTTP/1.1 204 No Content\r\n"));
+
+        assertEquals("HTTP/1.1 200 OK", reader.readLine());
+        assertEquals("Transfer-Encoding: chunked", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("hello", readAll(reader.nextChunk()));
+        assertEquals(", w\u00f8rld", readAll(reader.nextChunk()));
+        assertNull(reader.nextChunk());
+        assertEquals("HTTP/1.1 204 No Content", reader.readLine());
+    }
+
+    public void testUnreadChunkDataIsSkipped() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new TrickleInputStream("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n"));
+
+        assertEquals('a', reader.nextChunk().read());
+        assertEquals("de", readAll(reader.nextChunk()));
+        assertNull(reader.nextChunk());
+    }
+
+    public void testZeroSizeTerminator() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new ByteArrayInputStream(
+                "0;last\r\n\r\nnext".getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(reader.nextChunk());
+        assertEquals("next", readAll(reader.content(4)));
+    }
+
+    public void testContentLength() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new TrickleInputStream("{\"a\":1}HTTP/1.1 200 OK\r\n"));
+
+        InputStream content = reader.content(7);
+        assertEquals("{\"a\":1}", readAll(content));
+        assertEquals(-1, content.read());
+        assertEquals("HTTP/1.1 200 OK", reader.readLine());
+    }
+
+    public void testMissingCrlfAfterChunk() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new ByteArrayInputStream(
+                "3\r\nabcd\r\n0\r\n\r\n".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("abc", readAll(reader.nextChunk()));
+        try {
+            reader.nextChunk();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testTruncatedChunk() throws IOException {
+        HttpChunkReader reader = new HttpChunkReader(new ByteArrayInputStream(
+                "a\r\nabc".getBytes(StandardCharsets.UTF_8)));
+
+        InputStream chunk = reader.nextChunk();
+        try {
+            readAll(chunk);
+            fail("expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PublishWindowTest extends TestCase {
+
+    public void testWindowBoundsOutstandingMessages() {
+        List<Integer> published = new ArrayList<>();
+        PublishWindow<Integer> window = new PublishWindow<>(published::add, 2);
+        assertEquals(2, window.getFreeCount());
+
+        for (int i = 0; i < 5; i++) {
+            window.offer(i);
+        }
+        assertEquals(2, window.getInFlightCount());
+        assertEquals(3, window.getQueuedCount());
+        assertEquals(0, window.getFreeCount());
+        assertEquals(2, published.size());
+
+        assertTrue(window.complete(published.get(0)));
+        assertEquals(2, window.getInFlightCount());
+        assertEquals(3, published.size());
+        assertEquals(Integer.valueOf(2), published.get(2));
+    }
+
+    public void testCompleteUnknownMessage() {
+        List<String> published = new ArrayList<>();
+        PublishWindow<String> window = new PublishWindow<>(published::add, 1);
+        String message = "status";
+
+        window.offer(message);
+        assertTrue(window.complete(message));
+        // A late reply for a message which already timed out must not free another slot
+        assertFalse(window.complete(message));
+        assertEquals(0, window.getInFlightCount());
+    }
+
+    public void testGrowingWindowPublishesQueuedMessages() {
+        List<Integer> published = new ArrayList<>();
+        PublishWindow<Integer> window = new PublishWindow<>(published::add, 1);
+
+        for (int i = 0; i < 6; i++) {
+            window.offer(i);
+        }
+        assertEquals(1, published.size());
+
+        window.setSize(4);
+        assertEquals(4, published.size());
+        assertEquals(2, window.getQueuedCount());
+    }
+
+    /**
+     * Complete messages in a different order than they were published, as replies from the
+     * server may arrive. The window stays full while there is queued work, and messages are
+     * published in the order they were offered.
+     */
+    public void testWindowStaysFullAndPublishesInOrder() {
+        final int requests = 100;
+        for (int size : new int[]{1, 4, 16}) {
+            List<Integer> published = new ArrayList<>();
+            PublishWindow<Integer> window = new PublishWindow<>(published::add, size);
+            for (int i = 0; i < requests; i++) {
+                window.offer(i);
+            }
+
+            int completed = 0;
+            while (completed < requests) {
+                assertEquals(Math.min(size, requests - completed), window.getInFlightCount());
+                assertEquals(Math.max(0, requests - completed - size), window.getQueuedCount());
+
+                // Complete the newest in flight message first
+                int newest = published.get(Math.min(published.size(), completed + size) - 1);
+                if (completed % 2 == 0 && window.complete(newest)) {
+                    completed++;
+                    continue;
+                }
+                for (Integer message : published) {
+                    if (window.complete(message)) {
+                        completed++;
+                        break;
+                    }
+                }
+            }
+
+            assertEquals(0, window.getInFlightCount());
+            assertEquals(requests, published.size());
+            for (int i = 0; i < requests; i++) {
+                assertEquals(Integer.valueOf(i), published.get(i));
+            }
+        }
+    }
+
+    public void testShrinkingWindowLetsInFlightMessagesComplete() {
+        List<Integer> published = new ArrayList<>();
+        PublishWindow<Integer> window = new PublishWindow<>(published::add, 4);
+        for (int i = 0; i < 8; i++) {
+            window.offer(i);
+        }
+        assertEquals(4, window.getInFlightCount());
+
+        window.setSize(2);
+        assertEquals(4, window.getInFlightCount());
+        assertEquals(0, window.getFreeCount());
+
+        // No new message is published until the window is below its new size
+        assertTrue(window.complete(0));
+        assertTrue(window.complete(1));
+        assertEquals(4, published.size());
+        assertTrue(window.complete(2));
+        assertEquals(5, published.size());
+        assertEquals(2, window.getInFlightCount());
+    }
+}
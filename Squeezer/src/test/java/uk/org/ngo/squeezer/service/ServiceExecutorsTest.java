@@ -0,0 +1,116 @@
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ServiceExecutorsTest extends TestCase {
+    private ServiceExecutors mExecutors;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutors = new ServiceExecutors("test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        mExecutors.shutdown();
+        super.tearDown();
+    }
+
+    private Runnable blocker(CountDownLatch started) {
+        return () -> {
+            started.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+            }
+        };
+    }
+
+    public void testStateRunsInOrderOneAtATime() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            mExecutors.state().execute(() -> {
+                int now = running.incrementAndGet();
+                maxRunning.set(Math.max(maxRunning.get(), now));
+                order.add(task);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    public void testIoRunsConcurrently() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(ServiceExecutors.IO_THREADS);
+        for (int i = 0; i < ServiceExecutors.IO_THREADS; i++) {
+            mExecutors.io().execute(blocker(started));
+        }
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * With the I/O and CPU threads busy, and more work queued behind them, work on the state
+     * executor still runs.
+     */
+    public void testStateRunsUnderLoad() throws InterruptedException {
+        CountDownLatch ioStarted = new CountDownLatch(ServiceExecutors.IO_THREADS);
+        CountDownLatch cpuStarted = new CountDownLatch(ServiceExecutors.CPU_THREADS);
+        for (int i = 0; i < ServiceExecutors.IO_THREADS * 10; i++) {
+            mExecutors.io().execute(blocker(ioStarted));
+        }
+        for (int i = 0; i < ServiceExecutors.CPU_THREADS * 10; i++) {
+            mExecutors.cpu().execute(blocker(cpuStarted));
+        }
+        assertTrue(ioStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(cpuStarted.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch ran = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            mExecutors.state().execute(ran::countDown);
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testShutdownRunsSubmittedWork() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        mExecutors.io().execute(done::countDown);
+        mExecutors.cpu().execute(done::countDown);
+        mExecutors.state().execute(done::countDown);
+        mExecutors.shutdown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testWorkSubmittedAfterShutdownIsDiscarded() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        mExecutors.shutdown();
+
+        mExecutors.io().execute(ran::countDown);
+        mExecutors.cpu().execute(ran::countDown);
+        mExecutors.state().execute(ran::countDown);
+        mExecutors.state().schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+    }
+}
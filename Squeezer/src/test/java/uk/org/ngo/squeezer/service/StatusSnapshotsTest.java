@@ -0,0 +1,154 @@
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.service.event.PlayerStateChanged;
+
+public class StatusSnapshotsTest extends TestCase {
+    private static final String PLAYER_ID = "00:04:20:12:34:56";
+
+    private final StatusSnapshots mSnapshots = new StatusSnapshots();
+    private final PlayerState mPlayerState = new PlayerState();
+
+    private static Map<String, Object> status() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("power", 1L);
+        status.put("mode", "play");
+        status.put("playlist shuffle", 0L);
+        status.put("playlist repeat", 0L);
+        status.put("playlist_timestamp", 1588001234.567);
+        status.put("playlist_tracks", 12L);
+        status.put("playlist_cur_index", "3");
+        status.put("playlist_name", "Favorites");
+        status.put("duration", 215.3);
+        status.put("time", 12.5);
+        status.put("mixer volume", 50L);
+        status.put("will_sleep_in", 0L);
+        status.put("sleep", 0L);
+        status.put("sync_master", "00:04:20:12:34:56");
+        status.put("sync_slaves", "00:04:20:65:43:21");
+        status.put("rate", 1L);
+        return status;
+    }
+
+    private static Map<String, Object> song(String title) {
+        Map<String, Object> song = new HashMap<>();
+        song.put("track", title);
+        song.put("artist", "Artist");
+        song.put("actions", new Object[]{"play", new Object[]{"track_id", 42L}});
+        return song;
+    }
+
+    private static Map<String, Object> base() {
+        Map<String, Object> base = new HashMap<>();
+        base.put("actions", new Object[]{"more", "go"});
+        return base;
+    }
+
+    private int update(Map<String, Object> status, Map<String, Object> song, Map<String, Object> base) {
+        return mSnapshots.update(PLAYER_ID, mPlayerState, status, song, base);
+    }
+
+    public void testFirstStatusChangesAll() {
+        assertEquals(PlayerStateChanged.ALL, update(status(), song("One"), base()));
+    }
+
+    public void testUnchangedStatus() {
+        update(status(), song("One"), base());
+
+        // Equal content in new objects, including nested arrays
+        assertEquals(0, update(status(), song("One"), base()));
+        assertEquals(0, update(status(), song("One"), base()));
+    }
+
+    public void testUnchangedStatusWithoutSong() {
+        update(status(), null, null);
+
+        assertEquals(0, update(status(), null, null));
+    }
+
+    public void testFieldsWithoutChangeBits() {
+        update(status(), song("One"), base());
+
+        Map<String, Object> status = status();
+        status.put("playlist_tracks", 13L);
+        status.put("playlist_cur_index", "4");
+        status.put("playlist_name", "Other");
+        status.put("rate", 0L);
+        assertEquals(0, update(status, song("One"), base()));
+    }
+
+    public void testEachFieldSetsItsBit() {
+        assertFieldChange("power", 0L, PlayerStateChanged.POWER);
+        assertFieldChange("mode", "pause", PlayerStateChanged.PLAY_STATUS);
+        assertFieldChange("playlist shuffle", 1L, PlayerStateChanged.SHUFFLE);
+        assertFieldChange("playlist repeat", 2L, PlayerStateChanged.REPEAT);
+        assertFieldChange("playlist_timestamp", 1588009999.1, PlayerStateChanged.PLAYLIST);
+        assertFieldChange("duration", 180.0, PlayerStateChanged.SONG_TIME);
+        assertFieldChange("time", 13.5, PlayerStateChanged.SONG_TIME);
+        assertFieldChange("mixer volume", 55L, PlayerStateChanged.VOLUME);
+        assertFieldChange("will_sleep_in", 900L, PlayerStateChanged.SLEEP);
+        assertFieldChange("sleep", 1800L, PlayerStateChanged.SLEEP);
+        assertFieldChange("sync_master", null, PlayerStateChanged.SYNC);
+        assertFieldChange("sync_slaves", "", PlayerStateChanged.SYNC);
+    }
+
+    private void assertFieldChange(String key, Object value, int bit) {
+        update(status(), song("One"), base());
+
+        Map<String, Object> status = status();
+        status.put(key, value);
+        assertEquals(key, bit, update(status, song("One"), base()));
+
+        // Removing the field is also a change
+        update(status(), song("One"), base());
+        Map<String, Object> removed = status();
+        removed.remove(key);
+        assertEquals(key, bit, update(removed, song("One"), base()));
+    }
+
+    public void testSongChanges() {
+        update(status(), song("One"), base());
+        assertEquals(PlayerStateChanged.SONG, update(status(), song("Two"), base()));
+
+        Map<String, Object> song = song("Two");
+        song.put("actions", new Object[]{"play", new Object[]{"track_id", 43L}});
+        assertEquals(PlayerStateChanged.SONG, update(status(), song, base()));
+
+        Map<String, Object> base = base();
+        base.put("actions", new Object[]{"more"});
+        assertEquals(PlayerStateChanged.SONG, update(status(), song, base));
+
+        assertEquals(PlayerStateChanged.SONG, update(status(), null, null));
+        assertEquals(PlayerStateChanged.SONG, update(status(), song("One"), null));
+    }
+
+    public void testCombinedChanges() {
+        update(status(), song("One"), base());
+
+        Map<String, Object> status = status();
+        status.put("time", 0.0);
+        status.put("duration", 180.0);
+        status.put("playlist_cur_index", "4");
+        assertEquals(PlayerStateChanged.SONG | PlayerStateChanged.SONG_TIME, update(status, song("Two"), base()));
+    }
+
+    public void testReplacedStateChangesAll() {
+        update(status(), song("One"), base());
+
+        assertEquals(PlayerStateChanged.ALL, mSnapshots.update(PLAYER_ID, new PlayerState(), status(), song("One"), base()));
+    }
+
+    public void testPlayersAreIndependent() {
+        update(status(), song("One"), base());
+        PlayerState other = new PlayerState();
+        assertEquals(PlayerStateChanged.ALL, mSnapshots.update("other", other, status(), song("Two"), base()));
+
+        assertEquals(0, update(status(), song("One"), base()));
+        assertEquals(0, mSnapshots.update("other", other, status(), song("Two"), base()));
+    }
+}
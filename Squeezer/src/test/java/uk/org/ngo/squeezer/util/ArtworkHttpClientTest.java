@@ -0,0 +1,127 @@
+package uk.org.ngo.squeezer.util;
+
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ArtworkHttpClientTest extends TestCase {
+    private static final int COVERS = 1000;
+    private static final int COVER_SIZE = 20 * 1024;
+
+    private static final String NODELAY = "sun.net.httpserver.nodelay";
+
+    private HttpServer server;
+    private String savedNodelay;
+    private String baseUrl;
+    private final byte[] cover = new byte[COVER_SIZE];
+
+    /** Client ports seen by the server, one per connection. */
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<>());
+
+    @Override
+    protected void setUp() throws Exception {
+        for (int i = 0; i < cover.length; i++) {
+            cover[i] = (byte) i;
+        }
+
+        // Like a real server, send the response without waiting for the ack of the headers
+        savedNodelay = System.setProperty(NODELAY, "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/music/", exchange -> {
+            connections.add(exchange.getRemoteAddress().getPort());
+            exchange.sendResponseHeaders(200, cover.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(cover);
+            }
+        });
+        server.createContext("/redirect", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/music/1/cover");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/missing", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+        if (savedNodelay == null) {
+            System.clearProperty(NODELAY);
+        } else {
+            System.setProperty(NODELAY, savedNodelay);
+        }
+    }
+
+    public void testFetchWritesToSink() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[] bytes = new ArtworkHttpClient().fetch(baseUrl + "/music/1/cover", sink);
+        assertTrue(Arrays.equals(cover, bytes));
+        assertTrue(Arrays.equals(cover, sink.toByteArray()));
+    }
+
+    public void testFetchFollowsRedirect() throws IOException {
+        byte[] bytes = new ArtworkHttpClient().fetch(baseUrl + "/redirect", null);
+        assertTrue(Arrays.equals(cover, bytes));
+    }
+
+    public void testFetchErrorResponse() {
+        try {
+            new ArtworkHttpClient().fetch(baseUrl + "/missing", null);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Download 1000 covers from 8 threads. Connections are reused, and no more than the cap are
+     * opened.
+     */
+    public void testConnectionsAreReused() throws Exception {
+        final ArtworkHttpClient client = new ArtworkHttpClient();
+
+        fetchCovers(url -> client.fetch(url, null));
+
+        assertTrue("at most " + ArtworkHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST + " connections, used " + connections.size(),
+                connections.size() <= ArtworkHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    private interface Fetcher {
+        byte[] fetch(String url) throws IOException;
+    }
+
+    private void fetchCovers(Fetcher fetcher) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> results = new ArrayList<>();
+
+        for (int i = 0; i < COVERS; i++) {
+            final String url = baseUrl + "/music/" + i + "/cover";
+            results.add(executor.submit(() -> fetcher.fetch(url)));
+        }
+        for (Future<byte[]> result : results) {
+            assertTrue(Arrays.equals(cover, result.get()));
+        }
+
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+package uk.org.ngo.squeezer.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ArtworkSchedulerTest extends TestCase {
+    private ArtworkScheduler mScheduler;
+    private CountDownLatch mBlocked;
+    private CountDownLatch mRelease;
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Occupy the only thread, so the jobs queue up.
+        mScheduler = new ArtworkScheduler(1);
+        mBlocked = new CountDownLatch(1);
+        mRelease = new CountDownLatch(1);
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE).execute(() -> {
+            mBlocked.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(mBlocked.await(5, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        super.tearDown();
+    }
+
+    private Runnable record(String name, CountDownLatch done) {
+        return () -> {
+            mOrder.add(name);
+            done.countDown();
+        };
+    }
+
+    public void testPriorityOrder() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(4);
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_PREFETCH).execute(record("prefetch", done));
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_NOTIFICATION).execute(record("notification", done));
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE).execute(record("row1", done));
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE).execute(record("row2", done));
+        assertEquals(4, mScheduler.getQueuedCount());
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // The most recently bound row first
+        assertEquals(Arrays.asList("row2", "row1", "notification", "prefetch"), mOrder);
+    }
+
+    public void testCancelledJobIsDropped() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        FutureTask<Void> cancelled = new FutureTask<>(record("cancelled", done), null);
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE).execute(cancelled);
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE).execute(record("row", done));
+        cancelled.cancel(true);
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("row"), mOrder);
+    }
+
+    public void testRemove() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        ArtworkScheduler.Job job = mScheduler.newJob(ArtworkScheduler.PRIORITY_VISIBLE);
+        job.execute(record("removed", done));
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_PREFETCH).execute(record("prefetch", done));
+        job.remove();
+        assertEquals(1, mScheduler.getQueuedCount());
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("prefetch"), mOrder);
+    }
+
+    public void testRaisePriority() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2);
+        mScheduler.newJob(ArtworkScheduler.PRIORITY_NOTIFICATION).execute(record("notification", done));
+        ArtworkScheduler.Job job = mScheduler.newJob(ArtworkScheduler.PRIORITY_PREFETCH);
+        job.execute(record("prefetch", done));
+
+        job.raisePriority(ArtworkScheduler.PRIORITY_VISIBLE);
+        assertEquals(ArtworkScheduler.PRIORITY_VISIBLE, job.getPriority());
+        job.raisePriority(ArtworkScheduler.PRIORITY_PREFETCH);
+        assertEquals(ArtworkScheduler.PRIORITY_VISIBLE, job.getPriority());
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("prefetch", "notification"), mOrder);
+    }
+
+    public void testExecuteTwice() {
+        ArtworkScheduler.Job job = mScheduler.newJob(ArtworkScheduler.PRIORITY_PREFETCH);
+        job.execute(() -> {});
+        try {
+            job.execute(() -> {});
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+public class ArtworkSizeTest extends TestCase {
+    private static final String SERVER = "http://192.168.1.2:9000";
+
+    public void testBucket() {
+        assertEquals(100, ArtworkSize.bucket(48, 48));
+        assertEquals(100, ArtworkSize.bucket(100, 80));
+        assertEquals(200, ArtworkSize.bucket(101, 101));
+        assertEquals(300, ArtworkSize.bucket(120, 288));
+        assertEquals(800, ArtworkSize.bucket(800, 800));
+        assertEquals(0, ArtworkSize.bucket(1080, 1080));
+    }
+
+    public void testResizeCover() {
+        assertEquals(SERVER + "/music/1a2b3c/cover_200x200_m.jpg",
+                ArtworkSize.resize(SERVER + "/music/1a2b3c/cover", 144, 144));
+        assertEquals(SERVER + "/music/-123/cover_100x100_m.jpg",
+                ArtworkSize.resize(SERVER + "/music/-123/cover.jpg", 64, 64));
+        assertEquals(SERVER + "/music/1a2b3c/cover_100x100_m.png",
+                ArtworkSize.resize(SERVER + "/music/1a2b3c/cover.png", 64, 64));
+    }
+
+    public void testResizeReplacesSpec() {
+        assertEquals(SERVER + "/music/1a2b3c/cover_300x300_m.jpg",
+                ArtworkSize.resize(SERVER + "/music/1a2b3c/cover_1000x1000_o.jpg", 250, 250));
+        assertEquals(SERVER + "/music/1a2b3c/cover_300x300_m.jpg",
+                ArtworkSize.resize(SERVER + "/music/1a2b3c/cover_Xx100.jpg", 250, 250));
+    }
+
+    public void testResizeKeepsQuery() {
+        assertEquals(SERVER + "/music/current/cover_500x500_m.jpg?player=00:04:20:12:34:56",
+                ArtworkSize.resize(SERVER + "/music/current/cover.jpg?player=00:04:20:12:34:56", 400, 400));
+    }
+
+    public void testResizeImageProxy() {
+        assertEquals(SERVER + "/imageproxy/http%3A%2F%2Fexample.com%2Fa.jpg/image_100x100_m.png",
+                ArtworkSize.resize(SERVER + "/imageproxy/http%3A%2F%2Fexample.com%2Fa.jpg/image.png", 100, 100));
+    }
+
+    public void testUnchanged() {
+        // Not artwork served by the server
+        String url = "http://example.com/covers/cover.jpg";
+        assertSame(url, ArtworkSize.resize(url, 100, 100));
+        url = SERVER + "/html/images/artists.png";
+        assertSame(url, ArtworkSize.resize(url, 100, 100));
+        url = SERVER + "/music/1a2b3c/download";
+        assertSame(url, ArtworkSize.resize(url, 100, 100));
+
+        // Unknown or large sizes load the original
+        url = SERVER + "/music/1a2b3c/cover";
+        assertSame(url, ArtworkSize.resize(url, 0, 0));
+        assertSame(url, ArtworkSize.resize(url, 1080, 1080));
+    }
+}
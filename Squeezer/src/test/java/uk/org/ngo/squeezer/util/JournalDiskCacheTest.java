@@ -0,0 +1,182 @@
+package uk.org.ngo.squeezer.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class JournalDiskCacheTest extends TestCase {
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    private File mDirectory;
+    private DiskCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = Files.createTempDirectory("JournalDiskCacheTest").toFile();
+        mCache = JournalDiskCache.FACTORY.open(mDirectory, MAX_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static void put(DiskCache cache, String key, byte[] value) throws IOException {
+        DiskCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        OutputStream out = editor.newOutputStream();
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+
+    private static byte[] get(DiskCache cache, String key) throws IOException {
+        InputStream in = cache.get(key);
+        if (in == null) {
+            return null;
+        }
+        byte[] value = new byte[in.available()];
+        assertEquals(value.length, in.read(value, 0, value.length));
+        in.close();
+        return value;
+    }
+
+    private static byte[] value(int size, int seed) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) seed);
+        return value;
+    }
+
+    public void testPutGet() throws IOException {
+        assertNull(mCache.get("a"));
+        put(mCache, "a", value(100, 1));
+        put(mCache, "a", value(50, 2));
+        put(mCache, "b", value(200, 3));
+
+        assertTrue(Arrays.equals(value(50, 2), get(mCache, "a")));
+        assertTrue(Arrays.equals(value(200, 3), get(mCache, "b")));
+        assertTrue(mCache.remove("a"));
+        assertNull(mCache.get("a"));
+    }
+
+    /**
+     * A read which waits for the file system must not block other reads. The value file of an
+     * entry is replaced by a named pipe, which blocks the read opening it until a writer opens
+     * the pipe.
+     */
+    public void testReadsDontWaitForBlockedRead() throws Exception {
+        put(mCache, "blocked", value(10, 1));
+        put(mCache, "other", value(10, 2));
+        File valueFile = new File(mDirectory, "blocked.0");
+        assertTrue(valueFile.delete());
+        if (!mkfifo(valueFile)) {
+            // No named pipes on this platform
+            return;
+        }
+
+        FutureTask<InputStream> blockedRead = new FutureTask<>(() -> mCache.get("blocked"));
+        Thread reader = new Thread(blockedRead);
+        reader.start();
+        try {
+            waitUntilOpening(reader);
+
+            FutureTask<byte[]> otherRead = new FutureTask<>(() -> get(mCache, "other"));
+            new Thread(otherRead).start();
+            assertTrue(Arrays.equals(value(10, 2), otherRead.get(10, TimeUnit.SECONDS)));
+            assertFalse(blockedRead.isDone());
+        } finally {
+            // Opening the pipe for writing lets the blocked read continue
+            new FileOutputStream(valueFile).close();
+        }
+        InputStream in = blockedRead.get(10, TimeUnit.SECONDS);
+        assertNotNull(in);
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    private static boolean mkfifo(File file) throws InterruptedException {
+        try {
+            return new ProcessBuilder("mkfifo", file.getPath()).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Wait until the thread is opening a file. */
+    private static void waitUntilOpening(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            for (StackTraceElement element : thread.getStackTrace()) {
+                if (element.getClassName().equals("java.io.FileInputStream") && element.getMethodName().startsWith("open")) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("Read did not open the value file");
+    }
+
+    /**
+     * Read while the value is replaced. Every read must return one complete value, which may be
+     * the old or the new value.
+     */
+    public void testConcurrentReadsAndEdits() throws Exception {
+        put(mCache, "key", value(1000, 0));
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong hits = new AtomicLong();
+        final List<String> errors = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                try {
+                    do {
+                        byte[] read = get(mCache, "key");
+                        if (read != null) {
+                            hits.incrementAndGet();
+                            int seed = read[0];
+                            if (!Arrays.equals(value(1000 + seed, seed), read)) {
+                                synchronized (errors) {
+                                    errors.add("Mixed value of " + read.length + " bytes");
+                                }
+                            }
+                        }
+                    } while (!stop.get());
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e.toString());
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+
+        for (int i = 1; i <= 500; i++) {
+            put(mCache, "key", value(1000 + i % 100, i % 100));
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(errors.toString(), 0, errors.size());
+        assertTrue(hits.get() > 0);
+    }
+}
@@ -0,0 +1,264 @@
+package uk.org.ngo.squeezer.util;
+
+import junit.framework.TestCase;
+
+import org.cometd.bayeux.Message;
+import org.cometd.common.JettyJSONContextClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class JsonRecordReaderTest extends TestCase {
+
+    private static Record parseRecord(String json) throws ParseException {
+        return (Record) JsonRecordReader.parse(json);
+    }
+
+    public void testValues() throws ParseException {
+        Record record = parseRecord("{\"s\": \"text\", \"i\": -42, \"d\": 1.5, \"e\": 1e3, \"big\": 12345678901234567890,"
+                + " \"t\": true, \"f\": false, \"n\": null, \"o\": {}, \"a\": []}");
+
+        assertEquals(10, record.size());
+        assertEquals("text", record.get("s"));
+        assertEquals(-42L, record.get("i"));
+        assertEquals(1.5, record.get("d"));
+        assertEquals(1000.0, record.get("e"));
+        assertEquals(12345678901234567890.0, record.get("big"));
+        assertEquals(Boolean.TRUE, record.get("t"));
+        assertEquals(Boolean.FALSE, record.get("f"));
+        assertTrue(record.containsKey("n"));
+        assertNull(record.get("n"));
+        assertTrue(record.get("o") instanceof Record);
+        assertEquals(0, ((Object[]) record.get("a")).length);
+    }
+
+    public void testNested() throws ParseException {
+        Object[] messages = (Object[]) JsonRecordReader.parse("[{\"channel\":\"/slim/request\",\"data\":"
+                + "{\"count\":2,\"item_loop\":[{\"id\":\"1\",\"text\":\"One\"},{\"id\":\"2\",\"text\":\"Two\","
+                + "\"actions\":{\"go\":{\"params\":[1,[2,3]]}}}]}}]");
+
+        assertEquals(1, messages.length);
+        Record message = (Record) messages[0];
+        assertEquals("/slim/request", message.get("channel"));
+        Record data = (Record) message.get("data");
+        assertEquals(2, data.getInt("count", 0));
+        Object[] items = (Object[]) data.get("item_loop");
+        assertEquals(2, items.length);
+        assertEquals("One", ((Record) items[0]).get("text"));
+        Record go = (Record) ((Record) ((Record) items[1]).get("actions")).get("go");
+        Object[] params = (Object[]) go.get("params");
+        assertEquals(1L, params[0]);
+        assertEquals(3L, ((Object[]) params[1])[1]);
+    }
+
+    public void testStrings() throws ParseException {
+        Record record = parseRecord("{\"a\\\"b\": \"x\\ny\\t\\\\\\/\\u00e9\\\"\"}");
+
+        assertEquals("x\ny\t\\/\u00e9\"", record.get("a\"b"));
+    }
+
+    public void testKeysArePooled() throws ParseException {
+        Record first = parseRecord("{\"item_loop\": 1}");
+        Record second = parseRecord("{\"item_loop\": 2}");
+
+        String key = first.keySet().iterator().next();
+        assertSame(key, second.keySet().iterator().next());
+        assertSame("item_loop", key);
+    }
+
+    public void testInvalid() {
+        for (String json : new String[]{"", "{", "{\"a\"}", "{\"a\":1,}", "[1 2]", "\"abc", "tru", "-", "{} x"}) {
+            try {
+                JsonRecordReader.parse(json);
+                fail("expected ParseException for " + json);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
+    public void testReader() throws IOException, ParseException {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            longText.append((char) ('a' + i % 26));
+        }
+        String json = "{\"item_loop\": [{\"text\": \"" + longText + "\", \"escaped\": \"a\\u00e9\\n" + longText + "\","
+                + " \"" + longText + "\": 12345, \"d\": -2.5e-1, \"big\": 12345678901234567890}]}";
+
+        // A reader which returns one character per read, so every token is split between reads
+        Reader trickle = new StringReader(json) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(1, length));
+            }
+        };
+        Record record = (Record) JsonRecordReader.parse(trickle, null);
+
+        Record item = (Record) ((Object[]) record.get("item_loop"))[0];
+        assertEquals(longText.toString(), item.get("text"));
+        assertEquals("a\u00e9\n" + longText, item.get("escaped"));
+        assertEquals(12345, item.getInt(longText.toString(), 0));
+        assertEquals(-0.25, item.get("d"));
+        assertEquals(12345678901234567890.0, item.get("big"));
+        assertEquals(((Object[]) parseRecord(json).get("item_loop"))[0], item);
+    }
+
+    public void testItemSink() throws ParseException {
+        final List<String> received = new ArrayList<>();
+        JsonRecordReader.ItemSink sink = (message, data, loopName, item) -> {
+            received.add(message.get("channel") + " " + data.getInt("count", 0) + " " + loopName + " " + item.get("id"));
+            return !"keep".equals(item.get("id"));
+        };
+        Object[] messages = (Object[]) JsonRecordReader.parse("[{\"channel\":\"/a\",\"data\":{\"count\":3,"
+                + "\"item_loop\":[{\"id\":\"1\"},{\"id\":\"keep\"},{\"id\":\"3\"}],\"other\":[{\"id\":\"4\"}],"
+                + "\"nested\":{\"item_loop\":[{\"id\":\"5\"}]}}},"
+                + "{\"channel\":\"/b\",\"data\":{\"count\":1,\"titles_loop\":[{\"id\":\"6\"}]}}]", sink);
+
+        assertEquals(4, received.size());
+        assertEquals("/a 3 item_loop 1", received.get(0));
+        assertEquals("/a 3 item_loop keep", received.get(1));
+        assertEquals("/a 3 item_loop 3", received.get(2));
+        assertEquals("/b 1 titles_loop 6", received.get(3));
+
+        // Consumed items are not kept, other lists are left alone
+        Record data = (Record) ((Record) messages[0]).get("data");
+        Object[] items = (Object[]) data.get("item_loop");
+        assertEquals(1, items.length);
+        assertEquals("keep", ((Record) items[0]).get("id"));
+        assertEquals(1, ((Object[]) data.get("other")).length);
+        assertEquals(1, ((Object[]) ((Record) data.get("nested")).get("item_loop")).length);
+        assertEquals(0, ((Object[]) ((Record) ((Record) messages[1]).get("data")).get("titles_loop")).length);
+    }
+
+    /**
+     * Compare the memory allocated to read a large list of tracks with the Jetty JSON parser used
+     * by CometD, from a complete string, to the memory allocated to stream the tracks out of the
+     * response as they are read.
+     * <p>
+     * Allocation is counted rather than timed, so the result does not depend on the machine.
+     */
+    public void testStreamingAllocatesLessThanJettyJson() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threadBean;
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        final int trackCount = 10000;
+        byte[] response = tracksResponse(trackCount).getBytes(StandardCharsets.UTF_8);
+        final int[] streamed = new int[1];
+        JsonRecordReader.ItemSink sink = (message, data, loopName, item) -> {
+            streamed[0]++;
+            return true;
+        };
+
+        long jettyBytes = 0;
+        long streamingBytes = 0;
+        // The first round warms up both parsers and is not counted
+        for (int round = 0; round < 3; round++) {
+            long start = allocation.getThreadAllocatedBytes(threadId);
+            Message.Mutable[] messages = new JettyJSONContextClient().parse(new String(response, StandardCharsets.UTF_8));
+            long jetty = allocation.getThreadAllocatedBytes(threadId) - start;
+            assertEquals(trackCount, ((Object[]) messages[0].getDataAsMap().get("titles_loop")).length);
+
+            streamed[0] = 0;
+            start = allocation.getThreadAllocatedBytes(threadId);
+            Object[] records = (Object[]) JsonRecordReader.parse(new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8), sink);
+            long streaming = allocation.getThreadAllocatedBytes(threadId) - start;
+            assertEquals(trackCount, streamed[0]);
+            assertEquals(0, ((Object[]) ((Record) ((Record) records[0]).get("data")).get("titles_loop")).length);
+
+            if (round > 0) {
+                jettyBytes += jetty;
+                streamingBytes += streaming;
+            }
+        }
+
+        long jettyPerItem = jettyBytes / (2 * trackCount);
+        long streamingPerItem = streamingBytes / (2 * trackCount);
+        assertTrue("Bytes per item, Jetty JSON: " + jettyPerItem + ", streaming: " + streamingPerItem,
+                streamingPerItem < jettyPerItem);
+    }
+
+    /** @return A response to a <code>titles</code> request, like one from a large library */
+    private static String tracksResponse(int count) {
+        StringBuilder json = new StringBuilder("[{\"channel\":\"/1234abcd/slim/request\",\"id\":\"42\",\"data\":{\"count\":")
+                .append(count).append(",\"titles_loop\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(10000 + i)
+                    .append(",\"title\":\"Track title number ").append(i).append('"')
+                    .append(",\"artist\":\"Artist ").append(i % 300).append('"')
+                    .append(",\"artist_id\":").append(i % 300)
+                    .append(",\"album\":\"Album \\u00e9 ").append(i / 12).append('"')
+                    .append(",\"album_id\":").append(i / 12)
+                    .append(",\"genre\":\"Rock\",\"year\":").append(1960 + i % 60)
+                    .append(",\"tracknum\":").append(i % 12 + 1)
+                    .append(",\"duration\":").append(180 + i % 120).append('.').append(i % 1000)
+                    .append(",\"coverid\":\"").append(Integer.toHexString(i * 7919)).append('"')
+                    .append(",\"url\":\"file:///music/Artist%20").append(i % 300).append("/track").append(i).append(".flac\"")
+                    .append(",\"remote\":0}");
+        }
+        return json.append("]}}]").toString();
+    }
+
+    public void testGetLong() {
+        Record record = new Record();
+        record.putLong("long", 7);
+        record.put("double", 7.9);
+        record.put("string", "8.5");
+        record.put("text", "eight");
+
+        assertEquals(7, record.getLong("long", -1));
+        assertEquals(7, record.getLong("double", -1));
+        assertEquals(8, record.getInt("string", -1));
+        assertEquals(-1, record.getInt("text", -1));
+        assertEquals(-1, record.getInt("missing", -1));
+    }
+
+    public void testMap() {
+        Record record = new Record(1);
+        for (int i = 0; i < 20; i++) {
+            record.put("key" + i, i);
+        }
+        record.putLong("key3", 33);
+        assertEquals(33L, record.put("key3", "three"));
+        assertEquals(19, record.remove("key19"));
+        assertNull(record.remove("key19"));
+
+        Map<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 19; i++) {
+            expected.put("key" + i, i);
+        }
+        expected.put("key3", "three");
+        assertEquals(expected, record);
+        assertEquals(expected.hashCode(), record.hashCode());
+
+        for (Iterator<Map.Entry<String, Object>> it = record.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getKey().startsWith("key1")) {
+                it.remove();
+            }
+        }
+        assertEquals(9, record.size());
+        assertFalse(record.containsKey("key10"));
+        assertEquals(2, record.get("key2"));
+
+        record.clear();
+        assertTrue(record.isEmpty());
+    }
+}
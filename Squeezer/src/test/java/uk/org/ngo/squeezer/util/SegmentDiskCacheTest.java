@@ -0,0 +1,244 @@
+package uk.org.ngo.squeezer.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class SegmentDiskCacheTest extends TestCase {
+    private static final int MAX_SIZE = 256 * 1024;
+
+    private File mDirectory;
+    private SegmentDiskCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = Files.createTempDirectory("SegmentDiskCacheTest").toFile();
+        mCache = SegmentDiskCache.open(mDirectory, MAX_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static void put(DiskCache cache, String key, byte[] value) throws IOException {
+        DiskCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        OutputStream out = editor.newOutputStream();
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+
+    private static byte[] get(DiskCache cache, String key) throws IOException {
+        InputStream in = cache.get(key);
+        if (in == null) {
+            return null;
+        }
+        byte[] value = new byte[in.available()];
+        assertEquals(value.length, in.read(value, 0, value.length));
+        in.close();
+        return value;
+    }
+
+    private static byte[] value(int size, int seed) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) seed);
+        return value;
+    }
+
+    public void testPutGet() throws IOException {
+        assertNull(mCache.get("a"));
+        put(mCache, "a", value(100, 1));
+        put(mCache, "b", value(200, 2));
+
+        assertTrue(Arrays.equals(value(100, 1), get(mCache, "a")));
+        assertTrue(Arrays.equals(value(200, 2), get(mCache, "b")));
+        assertEquals(2, mCache.getEntryCount());
+    }
+
+    public void testReplace() throws IOException {
+        put(mCache, "a", value(100, 1));
+        put(mCache, "a", value(50, 3));
+
+        assertTrue(Arrays.equals(value(50, 3), get(mCache, "a")));
+        assertEquals(1, mCache.getEntryCount());
+    }
+
+    public void testRemove() throws IOException {
+        put(mCache, "a", value(100, 1));
+        put(mCache, "b", value(100, 2));
+
+        assertTrue(mCache.remove("a"));
+        assertFalse(mCache.remove("a"));
+        assertNull(mCache.get("a"));
+        assertTrue(Arrays.equals(value(100, 2), get(mCache, "b")));
+        assertEquals(1, mCache.getEntryCount());
+    }
+
+    public void testAbort() throws IOException {
+        DiskCache.Editor editor = mCache.edit("a");
+        assertNull("Already being edited", mCache.edit("a"));
+        editor.newOutputStream().write(value(10, 1));
+        editor.abort();
+
+        assertNull(mCache.get("a"));
+        assertNotNull(mCache.edit("a"));
+    }
+
+    public void testReopen() throws IOException {
+        put(mCache, "a", value(100, 1));
+        mCache.close();
+
+        // The index keeps its size when the maximum size changes
+        mCache = SegmentDiskCache.open(mDirectory, MAX_SIZE * 4);
+        assertTrue(Arrays.equals(value(100, 1), get(mCache, "a")));
+        assertEquals(1, mCache.getEntryCount());
+    }
+
+    public void testOpenDeletesForeignFiles() throws IOException {
+        mCache.close();
+        try (FileWriter writer = new FileWriter(new File(mDirectory, "journal"))) {
+            writer.write("libcore.io.DiskLruCache\n");
+        }
+        new File(mDirectory, SegmentDiskCache.INDEX_FILE).delete();
+
+        mCache = SegmentDiskCache.open(mDirectory, MAX_SIZE);
+        assertFalse(new File(mDirectory, "journal").exists());
+        assertEquals(0, mCache.getEntryCount());
+    }
+
+    public void testEvictsOldestSegment() throws IOException {
+        // Segments are 64 KB, write twice the maximum size
+        for (int i = 0; i < 64; i++) {
+            put(mCache, "key" + i, value(8 * 1024, i));
+            if (i < 16) {
+                // Keep reading the first entry, so it survives eviction
+                assertNotNull(get(mCache, "key0"));
+            }
+        }
+        mCache.trim();
+
+        assertTrue(mCache.size() <= MAX_SIZE);
+        assertTrue(Arrays.equals(value(8 * 1024, 0), get(mCache, "key0")));
+        assertNull(mCache.get("key1"));
+        assertTrue(Arrays.equals(value(8 * 1024, 63), get(mCache, "key63")));
+    }
+
+    /**
+     * Values much smaller than expected fill the index while they all fit in one segment. Writes
+     * must still complete, by evicting segments themselves.
+     */
+    public void testManyTinyValues() throws IOException {
+        mCache.delete();
+        mCache = SegmentDiskCache.open(mDirectory, 1024 * 1024);
+
+        for (int i = 0; i < 4096; i++) {
+            put(mCache, "key" + i, value(16, i));
+            if (i % 2 == 0) {
+                // Read half the entries, so evictions also copy entries
+                assertTrue(Arrays.equals(value(16, i), get(mCache, "key" + i)));
+            }
+        }
+
+        assertTrue(mCache.getEntryCount() < 256);
+        assertTrue(Arrays.equals(value(16, 4095), get(mCache, "key4095")));
+
+        mCache.close();
+        mCache = SegmentDiskCache.open(mDirectory, 1024 * 1024);
+        assertTrue(Arrays.equals(value(16, 4095), get(mCache, "key4095")));
+        put(mCache, "key", value(16, 1));
+        assertTrue(Arrays.equals(value(16, 1), get(mCache, "key")));
+    }
+
+    public void testClosed() throws IOException {
+        mCache.close();
+        assertTrue(mCache.isClosed());
+        try {
+            mCache.get("a");
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Measure the throughput of concurrent cache hits from up to 8 threads. Reads share the index
+     * lock and read the values without a lock, so every read must hit, and adding readers must
+     * not lower the combined throughput much below that of a single reader, whatever the number
+     * of cores.
+     */
+    public void testConcurrentHitThroughput() throws Exception {
+        final int entries = 256;
+        mCache.delete();
+        mCache = SegmentDiskCache.open(mDirectory, 16 * 1024 * 1024);
+        for (int i = 0; i < entries; i++) {
+            put(mCache, "key" + i, value(4 * 1024, i));
+        }
+
+        // Warm up, so the single reader isn't measured before the code is compiled
+        readConcurrently(mCache, entries, 1);
+
+        double single = readConcurrently(mCache, entries, 1);
+        for (int threads : new int[]{2, 4, 8}) {
+            double concurrent = readConcurrently(mCache, entries, threads);
+            assertTrue(threads + " threads: " + concurrent + " reads/ms, 1 thread: " + single,
+                    concurrent >= single / 2);
+        }
+    }
+
+    private static final int READS_PER_THREAD = 5000;
+
+    /**
+     * Read a fixed number of values from each of the supplied number of threads, and check that
+     * they all hit.
+     *
+     * @return The best throughput of three runs, in reads per millisecond
+     */
+    private static double readConcurrently(final DiskCache cache, final int entries, int threads) throws Exception {
+        double best = 0;
+        for (int run = 0; run < 3; run++) {
+            final AtomicLong hits = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            InputStream in = cache.get("key" + ((seed * 31 + i) % entries));
+                            if (in != null) {
+                                in.close();
+                                hits.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        // Counted as misses
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+            assertEquals((long) threads * READS_PER_THREAD, hits.get());
+            best = Math.max(best, hits.get() * 1_000_000.0 / elapsed);
+        }
+        return best;
+    }
+}